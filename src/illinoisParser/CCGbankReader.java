@@ -1,10 +1,14 @@
 package illinoisParser;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,6 +17,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -22,11 +35,55 @@ import java.util.zip.GZIPInputStream;
  * (The CCGbankTrainer class is the one responsible for e.g. turning an AUTO parse string into a coarse 
  * structure of recursively-linked ChartItems) 
  * 
+ * CCGbank sections are read by parsing their AUTO files on several threads (words and categories are 
+ * interned, so repeated strings are shared), and the result is cached in a binary snapshot file in 
+ * the AUTO directory; later reads of the same sections load the snapshot instead, as long as 
+ * the AUTO files haven't changed.
+ * 
  * @author ramusa2
  *
  */
 public class CCGbankReader {
 
+	/** Identifies a snapshot file ("CCGB") **/
+	private static final int SNAPSHOT_MAGIC = 0x43434742;
+
+	/** Current version of the snapshot layout **/
+	private static final int SNAPSHOT_VERSION = 1;
+
+	/** Marks a string defined inline in a snapshot (the string follows) **/
+	private static final int NEW_STRING = -1;
+
+	/** Number of threads used to parse AUTO files **/
+	private static int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** If false, sections are always read from the AUTO files **/
+	private static boolean useSnapshots = true;
+
+	/** Directory for snapshot files (null means the AUTO directory) **/
+	private static File snapshotDir = null;
+
+	/**
+	 * Sets the number of threads used to parse AUTO files (1 reads them one at a time).
+	 */
+	public static void setNumThreads(int threads) {
+		numThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Enables or disables binary snapshots of parsed CCGbank sections.
+	 */
+	public static void setUseSnapshots(boolean use) {
+		useSnapshots = use;
+	}
+
+	/**
+	 * Sets the directory where snapshots are saved (by default, the AUTO directory being read).
+	 */
+	public static void setSnapshotDirectory(File dir) {
+		snapshotDir = dir;
+	}
+
 
 	public static Collection<Sentence> getSentencesToParseFromMultiplePosFiles(String... posFiles) {
 		Collection<Sentence> sens = new ArrayList<Sentence>();
@@ -100,25 +157,15 @@ public class CCGbankReader {
 	}
 	
 	public static Collection<Sentence> getCCGbankData(int lowSec, int highSec, String autoDir) {
-		Collection<Sentence> sens = new ArrayList<Sentence>();
+		int[] sections = new int[Math.max(0, highSec-lowSec+1)];
 		for(int s=lowSec; s<=highSec; s++) {
-			Util.logln("Reading section "+s);
-			sens.addAll(CCGbankReader.readSection(s, autoDir));
+			sections[s-lowSec] = s;
 		}
-		int index = 1;
-		for(Sentence sen : sens) {
-			sen.setID(index++);
-		}
-		Util.logln("Read "+sens.size()+" sentences");
-		return sens;
+		return getCCGbankData(sections, autoDir);
 	}
 
 	public static Collection<Sentence> getCCGbankData(int[] sections, String autoDir) {
-		Collection<Sentence> sens = new ArrayList<Sentence>();
-		for(int s : sections) {
-			Util.logln("Reading section "+s);
-			sens.addAll(CCGbankReader.readSection(s, autoDir));
-		}
+		Collection<Sentence> sens = CCGbankReader.readSections(sections, autoDir);
 		int index = 1;
 		for(Sentence sen : sens) {
 			sen.setID(index++);
@@ -129,25 +176,53 @@ public class CCGbankReader {
 	
 	public static Collection<Sentence> getCCGbankDataOmittingSections(int lowSec, int highSec, 
 			String autoDir, int... omit) {
-		Collection<Sentence> sens = new ArrayList<Sentence>();
+		ArrayList<Integer> kept = new ArrayList<Integer>();
 		for(int s=lowSec; s<=highSec; s++) {
 			if(Util.arrayContains(omit, s)) {
 				System.out.println("Skipping section "+s);
 				continue;
 			}
-			Util.logln("Reading section "+s);
-			sens.addAll(CCGbankReader.readSection(s, autoDir));
+			kept.add(s);
 		}
-		int index = 1;
-		for(Sentence sen : sens) {
-			sen.setID(index++);
+		int[] sections = new int[kept.size()];
+		for(int i=0; i<sections.length; i++) {
+			sections[i] = kept.get(i);
+		}
+		return getCCGbankData(sections, autoDir);
+	}
+
+	/**
+	 * Reads the specified sections (in order), from a snapshot if an up-to-date one exists, 
+	 * or else by parsing the AUTO files (and then saving a snapshot).
+	 */
+	private static ArrayList<Sentence> readSections(int[] sections, String autoDirPath) {
+		ArrayList<File> autoDocs = new ArrayList<File>();
+		for(int s : sections) {
+			autoDocs.addAll(Arrays.asList(getSectionFiles(s, autoDirPath)));
+		}
+		File snapshot = null;
+		long fingerprint = 0L;
+		if(useSnapshots) {
+			snapshot = getSnapshotFile(sections, autoDirPath);
+			fingerprint = fingerprint(autoDocs);
+			ArrayList<Sentence> cached = readSnapshot(snapshot, fingerprint);
+			if(cached != null) {
+				Util.logln("Read sections "+Arrays.toString(sections)+" from snapshot "+snapshot.getPath());
+				return cached;
+			}
+		}
+		Util.logln("Reading sections "+Arrays.toString(sections)+" ("+autoDocs.size()+" files)");
+		ArrayList<Sentence> sens = parseAutoFiles(autoDocs);
+		if(snapshot != null) {
+			writeSnapshot(snapshot, fingerprint, sens);
 		}
-		Util.logln("Read "+sens.size()+" sentences");
 		return sens;
 	}
 
-	private static Collection<Sentence> readSection(int s, String autoDirPath) {
-		Collection<Sentence> sens = new ArrayList<Sentence>();
+	/**
+	 * Returns the AUTO files in a section, sorted by name.
+	 */
+	private static File[] getSectionFiles(int s, String autoDirPath) {
 		String autoDir = String.format("%s/%02d/", autoDirPath, s);
 		File sect = new File(autoDir);
 		File[] autoDocs = sect.listFiles(new FilenameFilter() {
@@ -155,37 +230,243 @@ public class CCGbankReader {
 				return name.matches("wsj_\\d\\d\\d\\d\\.auto\\.gz") || name.contains(".auto");
 			}
 		});
+		if(autoDocs == null) {
+			Util.logln("Missing section directory: "+sect.getPath());
+			return new File[0];
+		}
 		Arrays.sort(autoDocs, new Comparator<File>() {
 			public int compare(File f1, File f2) {
 				return f1.getName().compareTo(f2.getName());
 			}
 		});
+		return autoDocs;
+	}
+
+	/**
+	 * Parses AUTO files on a pool of threads; sentences are returned in file order.
+	 */
+	private static ArrayList<Sentence> parseAutoFiles(List<File> autoDocs) {
+		final ConcurrentHashMap<String, String> interned = new ConcurrentHashMap<String, String>();
+		ArrayList<Sentence> sens = new ArrayList<Sentence>();
+		if(numThreads <= 1 || autoDocs.size() <= 1) {
+			for(File autoDoc : autoDocs) {
+				sens.addAll(readAutoFile(autoDoc, interned));
+			}
+			return sens;
+		}
+		ExecutorService workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ccgbank-reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			ArrayList<Future<ArrayList<Sentence>>> parsed = new ArrayList<Future<ArrayList<Sentence>>>();
+			for(final File autoDoc : autoDocs) {
+				parsed.add(workers.submit(new Callable<ArrayList<Sentence>>() {
+					@Override
+					public ArrayList<Sentence> call() {
+						return readAutoFile(autoDoc, interned);
+					}
+				}));
+			}
+			for(Future<ArrayList<Sentence>> file : parsed) {
+				sens.addAll(file.get());
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Util.Error("Interrupted while reading CCGbank");
+		}
+		catch(ExecutionException e) {
+			e.printStackTrace();
+			Util.Error("Failed to read CCGbank: "+e.getCause());
+		}
+		finally {
+			workers.shutdown();
+		}
+		return sens;
+	}
+
+	private static ArrayList<Sentence> readAutoFile(File autoDoc, ConcurrentHashMap<String, String> interned) {
+		ArrayList<Sentence> sens = new ArrayList<Sentence>();
+		try {
+			BufferedReader autoBR = getFileReader(autoDoc);
+			String autoLine;
+			while ((autoLine = autoBR.readLine()) != null) {					
+				if (!autoLine.startsWith("ID=")) {
+					autoLine = processParse(autoLine);
+					Sentence current_sentence = getWord_POS(autoLine.split("[<>]"), interned);
+					current_sentence.addCCGbankParse(autoLine);
+					sens.add(current_sentence);
+				}
+			}
+			autoBR.close();
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+			Util.Error("Failed to open file: "+autoDoc.getAbsolutePath());
+		}
+		return sens;
+	}
+
+	private static String intern(String str, ConcurrentHashMap<String, String> interned) {
+		if(interned == null) {
+			return str;
+		}
+		String shared = interned.putIfAbsent(str, str);
+		return shared == null ? str : shared;
+	}
+
+	/**
+	 * Returns the snapshot file for a list of sections.
+	 */
+	private static File getSnapshotFile(int[] sections, String autoDirPath) {
+		File dir = (snapshotDir == null) ? new File(autoDirPath) : snapshotDir;
+		StringBuilder name = new StringBuilder("ccgbank");
+		int i = 0;
+		while(i < sections.length) {
+			// Collapse runs of consecutive sections (e.g. 02-21)
+			int j = i;
+			while(j+1 < sections.length && sections[j+1] == sections[j]+1) {
+				j++;
+			}
+			name.append(String.format(j > i ? "_%02d-%02d" : "_%02d", sections[i], sections[j]));
+			i = j+1;
+		}
+		name.append(Configuration.ignorePunctuation ? "_nopunct" : "");
+		name.append(".snapshot");
+		return new File(dir, name.toString());
+	}
+
+	/**
+	 * Hashes the names, sizes and modification times of the AUTO files (and the reader settings 
+	 * that affect parsing), so that stale snapshots can be detected.
+	 */
+	private static long fingerprint(List<File> autoDocs) {
+		long hash = 17L;
+		hash = 31L*hash + (Configuration.ignorePunctuation ? 1 : 0);
 		for(File autoDoc : autoDocs) {
-			int autoCount = 0;
-			int usIndex = autoDoc.getName().indexOf('_');
-			String docID = autoDoc.getName().substring(usIndex+1, usIndex+5);
+			hash = 31L*hash + autoDoc.getName().hashCode();
+			hash = 31L*hash + autoDoc.length();
+			hash = 31L*hash + autoDoc.lastModified();
+		}
+		return hash;
+	}
+
+	/**
+	 * Reads a snapshot, or returns null if it doesn't exist, is stale or can't be read.
+	 */
+	private static ArrayList<Sentence> readSnapshot(File snapshot, long fingerprint) {
+		if(!snapshot.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16));
+			if(in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION
+					|| in.readLong() != fingerprint) {
+				return null;
+			}
+			int n = in.readInt();
+			ArrayList<Sentence> sens = new ArrayList<Sentence>(n);
+			ArrayList<String> strings = new ArrayList<String>();
+			for(int s=0; s<n; s++) {
+				byte[] auto = new byte[in.readInt()];
+				in.readFully(auto);
+				LexicalToken[] tokens = new LexicalToken[in.readInt()];
+				for(int t=0; t<tokens.length; t++) {
+					String word = readSnapshotString(in, strings);
+					String pos = readSnapshotString(in, strings);
+					String cat = readSnapshotString(in, strings);
+					tokens[t] = new LexicalToken(word, pos, cat);
+				}
+				sens.add(new Sentence(tokens, -1, new String(auto, "UTF-8")));
+			}
+			return sens;
+		}
+		catch(IOException e) {
+			System.out.println("Failed to read CCGbank snapshot: "+snapshot.getPath());
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private static String readSnapshotString(DataInputStream in, ArrayList<String> strings) throws IOException {
+		int id = in.readInt();
+		if(id == NEW_STRING) {
+			String str = in.readUTF();
+			strings.add(str);
+			return str;
+		}
+		return strings.get(id);
+	}
+
+	/**
+	 * Saves a snapshot (written to a temporary file and then renamed, so a partial snapshot 
+	 * is never read); failures are reported but otherwise ignored.
+	 */
+	private static void writeSnapshot(File snapshot, long fingerprint, List<Sentence> sens) {
+		File tmp = new File(snapshot.getPath()+".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
 			try {
-				BufferedReader autoBR = getFileReader(autoDoc);
-				String autoLine;
-				while ((autoLine = autoBR.readLine()) != null) {					
-					if (!autoLine.startsWith("ID=")) {
-						autoLine = processParse(autoLine);
-						Sentence current_sentence = getWord_POS(autoLine.split("[<>]"));
-						current_sentence.addCCGbankParse(autoLine);
-						sens.add(current_sentence);
-					}
-					else {
-						autoCount = Integer.parseInt(autoLine.split("[\\\\.\\s]")[1]);
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeLong(fingerprint);
+				out.writeInt(sens.size());
+				HashMap<String, Integer> strings = new HashMap<String, Integer>();
+				for(Sentence sen : sens) {
+					byte[] auto = sen.getCCGbankParse().getBytes("UTF-8");
+					out.writeInt(auto.length);
+					out.write(auto);
+					LexicalToken[] tokens = sen.getTokens();
+					out.writeInt(tokens.length);
+					for(LexicalToken lt : tokens) {
+						writeSnapshotString(out, lt.getWord(), strings);
+						writeSnapshotString(out, lt.getPOS().toString(), strings);
+						writeSnapshotString(out, lt.getCategory(), strings);
 					}
 				}
-				autoBR.close();
 			}
-			catch(IOException e) {
-				e.printStackTrace();
-				Util.Error("Failed to open file: "+autoDoc.getAbsolutePath());
+			finally {
+				out.close();
 			}
+			snapshot.delete();
+			if(!tmp.renameTo(snapshot)) {
+				throw new IOException("Failed to rename "+tmp.getPath());
+			}
+			Util.logln("Saved CCGbank snapshot: "+snapshot.getPath());
+		}
+		catch(IOException e) {
+			System.out.println("Failed to save CCGbank snapshot: "+snapshot.getPath());
+			e.printStackTrace();
+			tmp.delete();
+		}
+	}
+
+	private static void writeSnapshotString(DataOutputStream out, String str, 
+			HashMap<String, Integer> strings) throws IOException {
+		Integer id = strings.get(str);
+		if(id == null) {
+			strings.put(str, strings.size());
+			out.writeInt(NEW_STRING);
+			out.writeUTF(str);
+		}
+		else {
+			out.writeInt(id);
 		}
-		return sens;
 	}
 
 	private static BufferedReader getFileReader(File file) throws FileNotFoundException, IOException {
@@ -198,6 +479,10 @@ public class CCGbankReader {
 	}
 
 	private static Sentence getWord_POS(String[] nodes) { 
+		return getWord_POS(nodes, null);
+	}
+
+	private static Sentence getWord_POS(String[] nodes, ConcurrentHashMap<String, String> interned) { 
 		Sentence ret = new Sentence();
 		for (int k = 1; k < nodes.length; k += 2) {
 			String[] params = nodes[k].split(" ");
@@ -219,7 +504,7 @@ public class CCGbankReader {
 				} else if (params[4].equals("_")) {
 					word = "UNDERSCORE";
 				}
-				LexicalToken lt = new LexicalToken(word, tag, category);
+				LexicalToken lt = new LexicalToken(intern(word, interned), tag, intern(category, interned));
 				ret.addLexicalItem(lt);
 			}
 		}
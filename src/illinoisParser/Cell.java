@@ -1,10 +1,15 @@
 package illinoisParser;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.concurrent.ConcurrentHashMap;
 
 //public class Cell implements Externalizable {
@@ -12,6 +17,15 @@ public class Cell implements Serializable {
 	private static final long serialVersionUID = 11112010;
 	private ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>> cats
 	= new ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>>();
+	/** Dense index over the categories in this cell (bit c is set iff category c is present) **/
+	private BitSet catBits = new BitSet();
+	/** Categories in this cell, in insertion order (the first numCats entries are valid) **/
+	private int[] catList = new int[8];
+	private int numCats = 0;
+	/** Every item in this cell, stored contiguously in insertion order **/
+	private ArrayList<CoarseChartItem> items = new ArrayList<CoarseChartItem>();
+	/** True iff items were appended with addRestoredCat since the category map was last built **/
+	private transient volatile boolean catMapStale = false;
 	private int X;
 	private int Y;
 	public Chart chart;
@@ -31,26 +45,114 @@ public class Cell implements Serializable {
 	}
 
 	final Collection<Integer> cats() {
-		return cats.keySet();
+		return catMap().keySet();
 	}
 
 	final Collection<CoarseChartItem> values(Integer cat) {
-		return this.cats.get(cat).values();
+		return catMap().get(cat).values();
 	}
 
+	/**
+	 * Returns a copy of the items in this cell (safe to hold while the cell is modified).
+	 */
 	public final Collection<CoarseChartItem> values() {
-		HashSet<CoarseChartItem> values = new HashSet<CoarseChartItem>();
-		for (ConcurrentHashMap<CoarseChartItem, CoarseChartItem> map : this.cats.values()) {
-			values.addAll(map.values());
-		}
-		return values;
+		return new ArrayList<CoarseChartItem>(this.items);
+	}
+
+	/**
+	 * Returns a read-only view of the items in this cell, without copying; the cell must not
+	 * be modified while the view is being iterated.
+	 */
+	public final Collection<CoarseChartItem> items() {
+		return Collections.unmodifiableList(this.items);
+	}
+
+	/**
+	 * Returns the number of items in this cell.
+	 */
+	public final int size() {
+		return this.items.size();
+	}
+
+	/**
+	 * Returns true iff this cell contains at least one item with category cat (no boxing).
+	 */
+	public final boolean hasCat(int cat) {
+		return cat >= 0 && this.catBits.get(cat);
+	}
+
+	/**
+	 * Returns the number of distinct categories in this cell.
+	 */
+	public final int numberOfCats() {
+		return this.numCats;
+	}
+
+	/**
+	 * Returns the i'th distinct category in this cell (0 <= i < numberOfCats()), in insertion order.
+	 */
+	public final int catAt(int i) {
+		return this.catList[i];
 	}
 
 	public CoarseChartItem addCat(CoarseChartItem ci) {
 		return addCatHelper(ci);
 	}
 
+	/**
+	 * Appends an item read from a compact chart, which is known to be distinct from the items 
+	 * already in this cell. The item and its category go straight into the item list and dense 
+	 * index; the category map is only rebuilt if something asks for it.
+	 */
+	void addRestoredCat(CoarseChartItem ci) {
+		int cat = ci.category();
+		if(!this.hasCat(cat) && (cat >= 0 || !this.listsCat(cat))) {
+			this.indexCat(cat);
+		}
+		this.items.add(ci);
+		this.catMapStale = true;
+	}
+
+	private boolean listsCat(int cat) {
+		for(int i=0; i<this.numCats; i++) {
+			if(this.catList[i] == cat) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the category map, first rebuilding it from the item list if items were appended 
+	 * with addRestoredCat.
+	 */
+	private ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>> catMap() {
+		if(this.catMapStale) {
+			this.rebuildCatMap();
+		}
+		return this.cats;
+	}
+
+	private synchronized void rebuildCatMap() {
+		if(!this.catMapStale) {
+			return;
+		}
+		ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>> map
+		= new ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>>();
+		for(CoarseChartItem ci : this.items) {
+			ConcurrentHashMap<CoarseChartItem, CoarseChartItem> temp = map.get(ci.category());
+			if(temp == null) {
+				temp = new ConcurrentHashMap<CoarseChartItem, CoarseChartItem>();
+				map.put(ci.category(), temp);
+			}
+			temp.put(ci, ci);
+		}
+		this.cats = map;
+		this.catMapStale = false;
+	}
+
 	private CoarseChartItem addCatHelper(CoarseChartItem newC) {
+		ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>> cats = catMap();
 		ConcurrentHashMap<CoarseChartItem, CoarseChartItem> temp;
 		if ((temp = cats.get(newC.category())) != null) {
 			CoarseChartItem cat;
@@ -58,14 +160,76 @@ public class Cell implements Serializable {
 				return cat;
 			}
 			temp.put(newC, newC);
+			this.items.add(newC);
 			return newC;
 		}
 		temp = new ConcurrentHashMap<CoarseChartItem, CoarseChartItem>();
 		temp.put(newC, newC);
 		cats.put(newC.category(), temp);
+		this.indexCat(newC.category());
+		this.items.add(newC);
 		return newC;
 	}
 
+	private void indexCat(int cat) {
+		if(cat >= 0) {
+			this.catBits.set(cat);
+		}
+		if(this.numCats == this.catList.length) {
+			this.catList = Arrays.copyOf(this.catList, 2*this.catList.length);
+		}
+		this.catList[this.numCats++] = cat;
+	}
+
+	/**
+	 * Makes sure the category map is complete before the cell is serialized.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		this.catMap();
+		out.defaultWriteObject();
+	}
+
+	/**
+	 * Rebuilds the dense index when reading cells that were serialized before it existed.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if(this.items == null || this.catList == null || this.catBits == null) {
+			this.items = new ArrayList<CoarseChartItem>();
+			this.catList = new int[8];
+			this.catBits = new BitSet();
+			this.numCats = 0;
+			if(this.cats != null) {
+				for (ConcurrentHashMap<CoarseChartItem, CoarseChartItem> map : this.cats.values()) {
+					this.items.addAll(map.values());
+				}
+				for(Integer cat : this.cats.keySet()) {
+					this.indexCat(cat);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the dense category index and item list from the category map
+	 * (called after items are removed).
+	 */
+	private void reindex() {
+		this.catBits = new BitSet();
+		this.numCats = 0;
+		ArrayList<CoarseChartItem> retained = new ArrayList<CoarseChartItem>(this.items.size());
+		for(CoarseChartItem ci : this.items) {
+			ConcurrentHashMap<CoarseChartItem, CoarseChartItem> map = this.cats.get(ci.category());
+			if(map != null && map.get(ci) == ci) {
+				retained.add(ci);
+			}
+		}
+		this.items = retained;
+		for(Integer cat : this.cats.keySet()) {
+			this.indexCat(cat);
+		}
+	}
+
 	CoarseChartItem addCat(Binary v, CoarseChartItem B, CoarseChartItem C) throws Exception {
 		CoarseChartItem newC = null;
 		switch (Configuration.NF) {
@@ -149,7 +313,7 @@ public class Cell implements Serializable {
 		String ret = "Cell [" + X + ", " + Y + "]\n";
 		ret += "Cats:\n";
 		if (cats != null) {
-			for (ConcurrentHashMap<CoarseChartItem, CoarseChartItem> map : cats.values()) {
+			for (ConcurrentHashMap<CoarseChartItem, CoarseChartItem> map : catMap().values()) {
 				for (CoarseChartItem ci : map.values()) {
 					ret += " \n" + ci;
 				}
@@ -160,7 +324,7 @@ public class Cell implements Serializable {
 
 	public void removeUnusedCats() {
 		ArrayList<CoarseChartItem> AL;
-		for (ConcurrentHashMap<CoarseChartItem, CoarseChartItem> map : cats.values()) {
+		for (ConcurrentHashMap<CoarseChartItem, CoarseChartItem> map : catMap().values()) {
 			AL = new ArrayList<CoarseChartItem>(map.keySet());
 			for (CoarseChartItem ci : AL) {
 				if (!ci.used) {
@@ -168,10 +332,11 @@ public class Cell implements Serializable {
 				}
 			}
 		}
+		this.reindex();
 	}
 
 	public boolean isEmpty() {
-		return cats.isEmpty();
+		return catMap().isEmpty();
 	}
 
 	public void addAllCats(Collection<CoarseChartItem> newCats) {
@@ -189,6 +354,7 @@ public class Cell implements Serializable {
 	//  }
 
 	public Collection<CoarseChartItem> getCats(Integer cat) {
+		ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>> cats = catMap();
 		if (cats.containsKey(cat)) {
 			return cats.get(cat).values();
 		}
@@ -196,6 +362,7 @@ public class Cell implements Serializable {
 	}
 
 	public CoarseChartItem getCat(CoarseChartItem c) {
+		ConcurrentHashMap<Integer,ConcurrentHashMap<CoarseChartItem, CoarseChartItem>> cats = catMap();
 		if (cats.containsKey(c.category())) {
 			return cats.get(c.category()).get(c);
 		}
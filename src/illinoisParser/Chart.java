@@ -6,9 +6,11 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Scanner;
 
 import perceptron.parser.PerceptronParser;
@@ -193,6 +195,226 @@ public strictfp class Chart implements Externalizable {
 
 
 
+	/** Ints per item in the compact format: kind, category, X, Y, rule type, punctuation, arity **/
+	private static final int COMPACT_ITEM_FIELDS = 7;
+
+	/** Item kinds in the compact format **/
+	private static final int COMPACT_INTERNAL_ITEM = 0, COMPACT_LEXICAL_ITEM = 1;
+
+	/**
+	 * Writes this chart in the compact format read by readCompact. The coarse items reachable from the 
+	 * coarse root are numbered cell by cell (shorter spans first) and written as flat records: 
+	 * (kind, category, X, Y, rule type, punctuation, arity, number of parses) per item, followed by
+	 * its backpointers as (rule, left child, right child) indices into a per-chart rule table and 
+	 * the item numbering. 
+	 * 
+	 * Only coarse charts are written this way; a chart with fine items is written with writeExternal.
+	 */
+	public void writeCompact(ObjectOutput out) throws IOException {
+		ArrayList<CoarseChartItem> items = this.compactItemOrder();
+		if(items == null) {
+			out.writeBoolean(false);
+			this.writeExternal(out);
+			return;
+		}
+		out.writeBoolean(true);
+		Sentence sen = this.getSentence();
+		out.writeInt(sen.getID());
+		out.writeObject(sen.getTokens());
+		out.writeObject(sen.getCCGbankParse());
+		out.writeObject(this.tags);
+		out.writeObject(this.words);
+		out.writeDouble(this.parses);
+		out.writeInt(this.id);
+		out.writeObject(this.disallowed_constituents);
+
+		IdentityHashMap<CoarseChartItem, Integer> itemIDs = new IdentityHashMap<CoarseChartItem, Integer>();
+		for(CoarseChartItem ci : items) {
+			itemIDs.put(ci, itemIDs.size());
+		}
+		// Rules are written once per chart; backpointers refer to them by index
+		IdentityHashMap<Rule, Integer> ruleIDs = new IdentityHashMap<Rule, Integer>();
+		ArrayList<Rule> rules = new ArrayList<Rule>();
+		for(CoarseChartItem ci : items) {
+			for(BackPointer bp : ci.children) {
+				if(!ruleIDs.containsKey(bp.r)) {
+					ruleIDs.put(bp.r, rules.size());
+					rules.add(bp.r);
+				}
+			}
+		}
+		out.writeObject(rules.toArray(new Rule[rules.size()]));
+		out.writeInt(items.size());
+		out.writeInt(this.coarseRoot == null ? -1 : itemIDs.get(this.coarseRoot));
+		// Ints are written one at a time (rather than as int[]s), since most are small
+		for(CoarseChartItem ci : items) {
+			out.writeInt((ci instanceof CoarseLexicalCategoryChartItem) ? COMPACT_LEXICAL_ITEM : COMPACT_INTERNAL_ITEM);
+			out.writeInt(ci.category());
+			out.writeInt(ci.X());
+			out.writeInt(ci.Y());
+			out.writeInt((ci.type() == null) ? -1 : ci.type().ordinal());
+			out.writeInt(ci.punc().ordinal());
+			out.writeInt(ci.arity());
+			out.writeDouble(ci.parses);
+			out.writeInt(ci.children.size());
+			for(BackPointer bp : ci.children) {
+				out.writeInt(ruleIDs.get(bp.r));
+				out.writeInt(itemIDs.get(bp.B));
+				out.writeInt((bp.C == null) ? -1 : itemIDs.get(bp.C));
+			}
+		}
+	}
+
+	/**
+	 * Returns the coarse items reachable from the coarse root, grouped by cell (in order of span 
+	 * length, then start index, and in insertion order within a cell), or null if the chart has 
+	 * fine items (and can't be written in the compact format).
+	 */
+	private ArrayList<CoarseChartItem> compactItemOrder() {
+		if(this.fineRoot != null) {
+			return null;
+		}
+		IdentityHashMap<CoarseChartItem, Boolean> reachable = new IdentityHashMap<CoarseChartItem, Boolean>();
+		ArrayList<CoarseChartItem> found = new ArrayList<CoarseChartItem>();
+		if(this.coarseRoot != null) {
+			ArrayList<CoarseChartItem> stack = new ArrayList<CoarseChartItem>();
+			stack.add(this.coarseRoot);
+			reachable.put(this.coarseRoot, Boolean.TRUE);
+			while(!stack.isEmpty()) {
+				CoarseChartItem ci = stack.remove(stack.size()-1);
+				if(!ci.fineItems().isEmpty()) {
+					return null;
+				}
+				found.add(ci);
+				for(BackPointer bp : ci.children) {
+					if(reachable.put(bp.B, Boolean.TRUE) == null) {
+						stack.add(bp.B);
+					}
+					if(bp.C != null && reachable.put(bp.C, Boolean.TRUE) == null) {
+						stack.add(bp.C);
+					}
+				}
+			}
+		}
+		ArrayList<CoarseChartItem> ordered = new ArrayList<CoarseChartItem>(found.size());
+		if(this.chart != null) {
+			for(int s=0; s<this.chart.length; s++) {
+				for(int i=0; i<this.chart.length-s; i++) {
+					Cell cell = this.chart[i][i+s];
+					if(cell == null) {
+						continue;
+					}
+					for(CoarseChartItem ci : cell.items()) {
+						if(reachable.remove(ci) != null) {
+							ordered.add(ci);
+						}
+					}
+				}
+			}
+		}
+		// Items that aren't in a cell (if any) go last
+		for(CoarseChartItem ci : found) {
+			if(reachable.remove(ci) != null) {
+				ordered.add(ci);
+			}
+		}
+		return ordered;
+	}
+
+	/**
+	 * Reads a chart written by writeCompact, rebuilding its cells (only the items reachable from
+	 * the coarse root are restored, as with readExternal). Items are appended to their cells in 
+	 * stored order.
+	 */
+	public void readCompact(ObjectInput in) throws IOException, ClassNotFoundException {
+		if(!in.readBoolean()) {
+			this.readExternal(in);
+			return;
+		}
+		int senID = in.readInt();
+		LexicalToken[] tokens = (LexicalToken[]) in.readObject();
+		String auto = (String) in.readObject();
+		this.sentence = new Sentence(tokens, senID, auto);
+		this.tags = (int[]) in.readObject();
+		this.words = (int[]) in.readObject();
+		this.parses = in.readDouble();
+		this.id = in.readInt();
+		this.disallowed_constituents = (boolean[][]) in.readObject();
+		this.length = tokens.length;
+
+		Rule[] rules = (Rule[]) in.readObject();
+		int n = in.readInt();
+		int root = in.readInt();
+		int[] fields = new int[COMPACT_ITEM_FIELDS*n];
+		double[] itemParses = new double[n];
+		int[] firstChild = new int[n+1];
+		int[] bpRule = new int[Math.max(16, n)];
+		int[] bpLeft = new int[bpRule.length];
+		int[] bpRight = new int[bpRule.length];
+		int b = 0;
+		for(int i=0; i<n; i++) {
+			for(int f=COMPACT_ITEM_FIELDS*i; f<COMPACT_ITEM_FIELDS*(i+1); f++) {
+				fields[f] = in.readInt();
+			}
+			itemParses[i] = in.readDouble();
+			firstChild[i] = b;
+			int numChildren = in.readInt();
+			if(b+numChildren > bpRule.length) {
+				int capacity = Math.max(2*bpRule.length, b+numChildren);
+				bpRule = Arrays.copyOf(bpRule, capacity);
+				bpLeft = Arrays.copyOf(bpLeft, capacity);
+				bpRight = Arrays.copyOf(bpRight, capacity);
+			}
+			for(int c=0; c<numChildren; c++, b++) {
+				bpRule[b] = in.readInt();
+				bpLeft[b] = in.readInt();
+				bpRight[b] = in.readInt();
+			}
+		}
+		firstChild[n] = b;
+
+		int l = tokens.length;
+		this.chart = new Cell[l][l];
+		for(int i=0; i<l; i++) {
+			for(int s=0; s<l-i; s++) {
+				this.chart[i][i+s] = new Cell(this, i, i+s);
+			}
+		}
+		Rule_Type[] types = Rule_Type.values();
+		Punctuation[] puncs = Punctuation.values();
+		CoarseChartItem[] items = new CoarseChartItem[n];
+		for(int i=0; i<n; i++) {
+			int f = COMPACT_ITEM_FIELDS*i;
+			Cell cell = this.chart[fields[f+2]][fields[f+3]];
+			CoarseChartItem ci;
+			if(fields[f] == COMPACT_LEXICAL_ITEM) {
+				ci = new CoarseLexicalCategoryChartItem(cell, fields[f+1]);
+			}
+			else {
+				Rule_Type type = (fields[f+4] < 0) ? null : types[fields[f+4]];
+				ci = new CoarseChartItem(cell, fields[f+1], type, fields[f+6], Punctuation.None);
+			}
+			ci.restore(puncs[fields[f+5]], itemParses[i]);
+			// Items are distinct and already in cell order, so they bypass the hashing in addCat
+			cell.addRestoredCat(ci);
+			items[i] = ci;
+		}
+		for(int i=0; i<n; i++) {
+			CoarseChartItem ci = items[i];
+			for(int c=firstChild[i]; c<firstChild[i+1]; c++) {
+				Rule r = rules[bpRule[c]];
+				if(bpRight[c] < 0) {
+					ci.children.add(new BackPointer((Unary) r, items[bpLeft[c]]));
+				}
+				else {
+					ci.children.add(new BackPointer((Binary) r, items[bpLeft[c]], items[bpRight[c]]));
+				}
+			}
+		}
+		this.coarseRoot = (root < 0) ? null : items[root];
+		this.fineRoot = null;
+	}
+
 	public final void cleanChart() {
 		if(this.coarseRoot != null) {
 			this.markUsed(this.coarseRoot);
@@ -665,6 +887,133 @@ public strictfp class Chart implements Externalizable {
 		getUnary(this.chart[0][this.getSentence().length()-1], Rule_Type.TYPE_TOP);
 	}
 
+	/**
+	 * Extends an existing coarse chart (built by coarseParseWithSupertags) with additional lexical
+	 * categories, e.g. when adaptive supertagging moves to a smaller beta. Lexical categories already 
+	 * in the chart are ignored. Only combinations that involve at least one newly added item are 
+	 * built, so each backpointer is created exactly once and the result matches the chart that 
+	 * coarseParseWithSupertags would build from the union of the old and new categories.
+	 * 
+	 * @param additionalLexcats	lexical categories to add to the chart
+	 * @throws Exception
+	 */
+	public void extendCoarseParseWithSupertags(SupertagAssignment additionalLexcats) throws Exception {
+		if(this.chart == null) {
+			throw new IllegalStateException("Chart must be coarse parsed before it can be extended.");
+		}
+		int n = this.chart.length;
+		@SuppressWarnings("unchecked")
+		HashSet<CoarseChartItem>[][] added = new HashSet[n][n];
+		for (int s = 0; s < n; s++) {
+			for (int i = 0; i < n - s; i++) {
+				if (s == 0) {
+					added[i][i] = extendLexicalCell(i, additionalLexcats);
+				} else {
+					added[i][i+s] = extendBinaryCell(i, i + s, added);
+				}
+			}
+		}
+		if(!added[0][n-1].isEmpty()) {
+			getUnary(this.chart[0][n-1], Rule_Type.TYPE_TOP, added[0][n-1]);
+		}
+	}
+
+	/**
+	 * Adds new lexical categories to the existing lexical cell (i,i), and applies unary rules to the 
+	 * new items. Returns the set of items added to the cell.
+	 */
+	private HashSet<CoarseChartItem> extendLexicalCell(int i, SupertagAssignment additionalLexcats) throws Exception {
+		Cell cell = this.chart[i][i];
+		HashSet<CoarseChartItem> added = new HashSet<CoarseChartItem>();
+		for(LexicalCategoryEntry supertag : additionalLexcats.getAll(i)) {
+			Integer lexCat = grammar.getCatID(supertag.category());
+			CoarseChartItem ci = new CoarseLexicalCategoryChartItem(cell, lexCat);
+			if(cell.addCat(ci) == ci) {
+				added.add(ci);
+			}
+		}
+		if(!added.isEmpty()) {
+			added.addAll(getUnary(cell, Rule_Type.TYPE_CHANGE, added));
+			if (Configuration.typeRaising) {
+				added.addAll(getUnary(cell, Rule_Type.FW_TYPERAISE, added));
+				added.addAll(getUnary(cell, Rule_Type.BW_TYPERAISE, added));
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Extends the existing binary cell (i,j) with the combinations of new items in its 
+	 * child cells (new-new, new-old, and old-new pairs), and applies unary rules to the new items.
+	 * Returns the set of items added to the cell.
+	 */
+	private HashSet<CoarseChartItem> extendBinaryCell(int i, int j, HashSet<CoarseChartItem>[][] added) throws Exception {
+		Cell cell = this.chart[i][j];
+		HashSet<CoarseChartItem> existing = new HashSet<CoarseChartItem>(cell.values());
+		CompiledGrammar rules = grammar.compiled();
+		Cell B, C;
+		for (int k = i; k <= j - 1; k++) {
+			HashSet<CoarseChartItem> newB = added[i][k];
+			HashSet<CoarseChartItem> newC = added[k + 1][j];
+			if(newB.isEmpty() && newC.isEmpty()) {
+				continue;
+			}
+			B = this.chart[i][k];
+			C = this.chart[k + 1][j];
+			for (int bi = 0; bi < B.numberOfCats(); bi++) {
+				int b_cat = B.catAt(bi);
+				int pairEnd = rules.pairEnd(b_cat);
+				int p = rules.pairStart(b_cat);
+				if (p < pairEnd) {
+					ArrayList<CoarseChartItem> oldBItems = new ArrayList<CoarseChartItem>();
+					ArrayList<CoarseChartItem> newBItems = new ArrayList<CoarseChartItem>();
+					splitItems(B.values(b_cat), newB, oldBItems, newBItems);
+					for (; p < pairEnd; p++) {
+						int c_cat = rules.pairRight(p);
+						if (C.hasCat(c_cat)) {
+							Collection<CoarseChartItem> cItems = C.values(c_cat);
+							if(!newBItems.isEmpty()) {
+								combine(cell, rules, p, newBItems, cItems);
+							}
+							if(!oldBItems.isEmpty() && !newC.isEmpty()) {
+								ArrayList<CoarseChartItem> oldCItems = new ArrayList<CoarseChartItem>();
+								ArrayList<CoarseChartItem> newCItems = new ArrayList<CoarseChartItem>();
+								splitItems(cItems, newC, oldCItems, newCItems);
+								if(!newCItems.isEmpty()) {
+									combine(cell, rules, p, oldBItems, newCItems);
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		HashSet<CoarseChartItem> addedHere = new HashSet<CoarseChartItem>();
+		for(CoarseChartItem ci : cell.values()) {
+			if(!existing.contains(ci)) {
+				addedHere.add(ci);
+			}
+		}
+		if(!addedHere.isEmpty()) {
+			addedHere.addAll(getUnary(cell, Rule_Type.TYPE_CHANGE, addedHere));
+			addedHere.addAll(getUnary(cell, Rule_Type.FW_TYPERAISE, addedHere));
+			addedHere.addAll(getUnary(cell, Rule_Type.BW_TYPERAISE, addedHere));
+		}
+		return addedHere;
+	}
+
+	private static void splitItems(Collection<CoarseChartItem> items, HashSet<CoarseChartItem> newItems,
+			ArrayList<CoarseChartItem> oldList, ArrayList<CoarseChartItem> newList) {
+		for(CoarseChartItem ci : items) {
+			if(newItems.contains(ci)) {
+				newList.add(ci);
+			}
+			else {
+				oldList.add(ci);
+			}
+		}
+	}
+
 	/**
 	 * Fill lexical cell of chart (i,i) with chart type specific getLex and then
 	 * if appropriate try to type raise the categories.
@@ -727,18 +1076,18 @@ public strictfp class Chart implements Externalizable {
 		Cell cell = new Cell(this, i, j);
 		this.chart[i][j] = cell;
 		//if (this.punctuationBracketing(i, j)) {
+		CompiledGrammar rules = grammar.compiled();
 		Cell B, C;
 		for (int k = i; k <= j - 1; k++) {
 			B = this.chart[i][k];
 			C = this.chart[k + 1][j];
-			for (Integer b_cat : B.cats()) {
-				Collection<Integer> possible_c_cats = grammar.rightCats(b_cat);
-				if (possible_c_cats != null) {
-					for (Integer c_cat : possible_c_cats) {
-						if (C.cats().contains(c_cat)) {
-							grammar.combine(cell, b_cat, B.values(b_cat),
-									c_cat, C.values(c_cat));
-						}
+			for (int bi = 0; bi < B.numberOfCats(); bi++) {
+				int b_cat = B.catAt(bi);
+				int pairEnd = rules.pairEnd(b_cat);
+				for (int p = rules.pairStart(b_cat); p < pairEnd; p++) {
+					int c_cat = rules.pairRight(p);
+					if (C.hasCat(c_cat)) {
+						combine(cell, rules, p, B.values(b_cat), C.values(c_cat));
 					}
 				}
 			}
@@ -793,6 +1142,38 @@ public strictfp class Chart implements Externalizable {
 		return true;
 	}
 
+	/**
+	 * Applies the binary rules for a compiled (left, right) category pair to every pair of
+	 * items from the child cells, adding the results to cell
+	 * @param cell
+	 *    Cell to fill
+	 * @param rules
+	 *    Compiled grammar
+	 * @param pair
+	 *    Index of the (left, right) pair in the compiled grammar
+	 * @param B
+	 *    Items from the left child cell
+	 * @param C
+	 *    Items from the right child cell
+	 * @throws Exception
+	 */
+	private void combine(Cell cell, CompiledGrammar rules, int pair,
+			Collection<CoarseChartItem> B, Collection<CoarseChartItem> C) throws Exception {
+		int ruleEnd = rules.ruleEnd(pair);
+		for (int r = rules.ruleStart(pair); r < ruleEnd; r++) {
+			Rule_Type type = rules.binaryType(r);
+			int arity = rules.binaryArity(r);
+			for (CoarseChartItem b_cat : B) {
+				for (CoarseChartItem c_cat : C) {
+					if (NF.binaryNF(type, arity, b_cat.type(), b_cat.arity(),
+							c_cat.type(), c_cat.arity())) {
+						cell.addCat(rules.binaryRule(r), b_cat, c_cat);
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Attempts to apply rules of a given type to all categories in the cell
 	 * @param cell
@@ -802,13 +1183,31 @@ public strictfp class Chart implements Externalizable {
 	 * @throws Exception
 	 */
 	void getUnary(Cell cell, Rule_Type type) throws Exception {
+		getUnary(cell, type, cell.values());
+	}
+
+	/**
+	 * Attempts to apply rules of a given type to the specified categories in the cell
+	 * @param cell
+	 *    Cell to fill
+	 * @param type
+	 *    Type of rule to apply
+	 * @param children
+	 *    Items in the cell to apply the rules to
+	 * @return
+	 *    The items that were added to the cell
+	 * @throws Exception
+	 */
+	Collection<CoarseChartItem> getUnary(Cell cell, Rule_Type type, 
+			Collection<CoarseChartItem> children) throws Exception {
 		HashMap<CoarseChartItem, CoarseChartItem> newCats =
 				new HashMap<CoarseChartItem, CoarseChartItem>();
-		for (CoarseChartItem cat : cell.values()) {
-			IntPair B = new IntPair(cat.category());
-			for (Rule r : grammar.getRules(B)) {
-				Unary u = (Unary) r;
-				if (u.getType().equals(type)) {
+		CompiledGrammar rules = grammar.compiled();
+		for (CoarseChartItem cat : children) {
+			int unaryEnd = rules.unaryEnd(cat.category());
+			for (int ur = rules.unaryStart(cat.category()); ur < unaryEnd; ur++) {
+				if (rules.unaryType(ur) == type) {
+					Unary u = rules.unaryRule(ur);
 					if (NF.unaryNF(cat.type(), u.Type)) {
 						CoarseChartItem c;
 						switch(Configuration.NF) {
@@ -843,6 +1242,7 @@ public strictfp class Chart implements Externalizable {
 			}
 		}
 		cell.addAllCats(newCats);
+		return newCats.values();
 	}
 
 	public Tree<? extends FineChartItem> getViterbiParse() {
@@ -920,7 +1320,7 @@ public strictfp class Chart implements Externalizable {
 			this.debug("Creating fine items for cell ["+cell.X()+", "+cell.Y()+"], spanning : \""+this.getSentence().asWords(cell.X(), cell.Y())+"\"");
 
 		}
-		for(CoarseChartItem ci : cell.values()) {
+		for(CoarseChartItem ci : cell.items()) {
 			if(ci.used) {
 				try {
 					itemsProcessed = createFineItem(ci, model, itemsProcessed);
@@ -941,7 +1341,7 @@ public strictfp class Chart implements Externalizable {
 			this.debug("Creating fine items for cell ["+cell.X()+", "+cell.Y()+"], spanning : \""+this.getSentence().asWords(cell.X(), cell.Y())+"\"");
 
 		}
-		for(CoarseChartItem ci : cell.values()) {
+		for(CoarseChartItem ci : cell.items()) {
 			if(ci.used) {
 				try {
 					itemsProcessed = createFineItem(ci, parser, itemsProcessed, scoreForest);
@@ -1141,6 +1541,68 @@ public strictfp class Chart implements Externalizable {
 		}
 	}
 
+	private void applyBeamToCell(Cell cell, PerceptronParser parser, double beamWidth, int maxItems) {
+		try {
+			Collection<CoarseChartItem> coarseItems = cell.items();
+			int numItems = 0;
+			for(CoarseChartItem ci : coarseItems) {
+				numItems += ci.fineItems().size();
+			}
+			if(numItems == 0) {
+				return;
+			}
+			// Scores are kept unboxed, in arrays sized to the cell
+			CoarseChartItem[] owners = new CoarseChartItem[numItems];
+			FineChartItem[] items = new FineChartItem[numItems];
+			double[] scores = new double[numItems];
+			double maxScore = Double.NEGATIVE_INFINITY;
+			int n = 0;
+			for(CoarseChartItem ci : coarseItems) {
+				for(FineChartItem fineCI : ci.fineItems()) {
+					double figureOfMerit = parser.getFigureOfMerit(fineCI, this);
+					maxScore = Math.max(maxScore, figureOfMerit);
+					owners[n] = ci;
+					items[n] = fineCI;
+					scores[n] = figureOfMerit;
+					n++;
+				}
+			}
+			double cutoff = maxScore - beamWidth;
+			if(maxItems > 0 && numItems > maxItems) {
+				// Tighten the cutoff so that at most maxItems survive 
+				double[] sorted = Arrays.copyOf(scores, numItems);
+				Arrays.sort(sorted);
+				cutoff = Math.max(cutoff, sorted[sorted.length - maxItems]);
+			}
+			HashMap<CoarseChartItem, ArrayList<FineChartItem>> retained = 
+					new HashMap<CoarseChartItem, ArrayList<FineChartItem>>();
+			for(CoarseChartItem ci : coarseItems) {
+				retained.put(ci, new ArrayList<FineChartItem>());
+			}
+			// Keep items above the cutoff, then fill any remaining space with items tied at the cutoff
+			int numRetained = 0;
+			for(int i=0; i<numItems; i++) {
+				if(scores[i] > cutoff) {
+					retained.get(owners[i]).add(items[i]);
+					numRetained++;
+				}
+			}
+			for(int i=0; i<numItems; i++) {
+				if(scores[i] == cutoff && (maxItems <= 0 || numRetained < maxItems)) {
+					retained.get(owners[i]).add(items[i]);
+					numRetained++;
+				}
+			}
+			for(CoarseChartItem ci : coarseItems) {
+				ci.setFineGrained(retained.get(ci));
+			}
+		}
+		catch(Exception e) {
+			e.printStackTrace();
+			Util.Error("Exception while applying beam.");
+		}
+	}
+
 	public void initializeCoarseChart() { 
 		// Fills the 2-D chart array with empty cells
 		this.chart = new Cell[this.getSentence().length()][this.getSentence().length()];
@@ -1189,7 +1651,19 @@ public strictfp class Chart implements Externalizable {
 	}
 
 	public void fineParseWithPerceptronModel(PerceptronParser parser, boolean scoreForest) {
+		this.fineParseWithPerceptronModel(parser, scoreForest, parser.getParserConfig());
+	}
+
+	/**
+	 * Fine parses the coarse chart with a perceptron model. If the forest is being scored and the 
+	 * config enables the perceptron beam, each cell (other than the top cell) is pruned after it is
+	 * built: items scoring more than the beam width below the best item in the cell are removed, and
+	 * at most config.getMaxFineItemsPerCell() items are kept.
+	 */
+	public void fineParseWithPerceptronModel(PerceptronParser parser, boolean scoreForest,
+			SupervisedParsingConfig config) {
 		if(this.successfulCoarseParse()) {
+			boolean useBeam = scoreForest && config != null && config.usePerceptronBeam();
 			// Mark which items belong to a successful parse (the rest will be ignored)
 			this.markUsed(this.coarseRoot);
 			this.debug(" Starting fine parsing for: "+this.getSentence().asWords());
@@ -1198,6 +1672,10 @@ public strictfp class Chart implements Externalizable {
 				for (int i = 0; i < chart.length - s; i++) {
 					Cell cell = this.getCoarseCell(i, i+s);
 					this.createFineItemsForCell(cell, parser, scoreForest);
+					if(useBeam && s != chart.length-1) {
+						this.applyBeamToCell(cell, parser, 
+								config.getPerceptronBeamWidth(), config.getMaxFineItemsPerCell());
+					}
 				}
 			}
 			for(FineChartItem fine : this.coarseRoot.fineItems()) {
@@ -494,6 +494,14 @@ strictfp public class CoarseChartItem implements Externalizable {
     out.writeObject(FineGrained);
   }
   
+  /**
+   * Restores the fields that the constructors don't set (used by Chart.readCompact)
+   */
+  final void restore(Punctuation punctuation, double numParses) {
+    this.punc = punctuation;
+    this.parses = numParses;
+  }
+
   public boolean setCell(Cell c) {
 	  if(this.cell != null) {
 		  return false;
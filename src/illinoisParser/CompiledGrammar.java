@@ -0,0 +1,292 @@
+package illinoisParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * An immutable, array-based view of a Grammar's (non-lexical) binary and unary rules, used by the
+ * chart parser's inner loops in place of the rhsToRuleMap and leftCatToRightCatMap lookups.
+ *
+ * Binary rules are stored in compressed sparse row form: for a left category b, the entries
+ * pairStart(b) (inclusive) to pairEnd(b) (exclusive) list the distinct right categories c that b can
+ * combine with (in increasing order), and for each such pair p the entries ruleStart(p) to ruleEnd(p)
+ * list the rules b c -> a (rule ID, result, type, arity and head direction). Unary rules are stored
+ * the same way, keyed by the child category.
+ *
+ * A CompiledGrammar is a snapshot: rules or categories added to the Grammar after it was built are
+ * not visible (categories outside the snapshot simply have no rules). Since it is never modified after
+ * construction, a single instance can be shared by any number of parsing threads.
+ *
+ * @author ramusa2
+ *
+ */
+public final class CompiledGrammar {
+
+	/** Rule types, indexed by ordinal **/
+	private static final Rule_Type[] TYPES = Rule_Type.values();
+
+	/** Head directions, indexed by ordinal **/
+	private static final Rule_Direction[] HEADS = Rule_Direction.values();
+
+	/** Number of categories covered by the snapshot **/
+	private final int numCats;
+
+	/** Left category -> range of pairs (length numCats+1) **/
+	private final int[] leftToPair;
+
+	/** Right category of each pair **/
+	private final int[] pairRight;
+
+	/** Pair -> range of binary rules (length numPairs+1) **/
+	private final int[] pairToRule;
+
+	/** Binary rule fields **/
+	private final int[] binaryID;
+	private final int[] binaryResult;
+	private final int[] binaryType;
+	private final int[] binaryArity;
+	private final int[] binaryHead;
+	private final Binary[] binaryRules;
+
+	/** Child category -> range of unary rules (length numCats+1) **/
+	private final int[] childToUnary;
+
+	/** Unary rule fields **/
+	private final int[] unaryID;
+	private final int[] unaryResult;
+	private final int[] unaryType;
+	private final Unary[] unaryRules;
+
+	/**
+	 * Compiles the current (non-lexical) rules of the grammar.
+	 */
+	CompiledGrammar(Grammar grammar) {
+		final IntegerMapping<Rule> ruleIDs = grammar.Rules;
+		ArrayList<Binary> binaries = new ArrayList<Binary>();
+		ArrayList<Unary> unaries = new ArrayList<Unary>();
+		int maxCat = grammar.getNumberOfCategories() - 1;
+		for(Rule r : ruleIDs.items()) {
+			if(r.getType() == Rule_Type.PRODUCTION) {
+				continue;
+			}
+			if(r instanceof Binary) {
+				binaries.add((Binary) r);
+				maxCat = Math.max(maxCat, Math.max(r.B, ((Binary) r).C));
+			}
+			else if(r instanceof Unary) {
+				unaries.add((Unary) r);
+				maxCat = Math.max(maxCat, r.B);
+			}
+		}
+		this.numCats = maxCat + 1;
+
+		// Binary rules, sorted by (left, right, rule ID)
+		Collections.sort(binaries, new Comparator<Binary>() {
+			@Override
+			public int compare(Binary r1, Binary r2) {
+				if(r1.B.intValue() != r2.B.intValue()) {
+					return r1.B < r2.B ? -1 : 1;
+				}
+				if(r1.C.intValue() != r2.C.intValue()) {
+					return r1.C < r2.C ? -1 : 1;
+				}
+				return Integer.compare(ruleIDs.checkID(r1), ruleIDs.checkID(r2));
+			}
+		});
+		int numBinary = binaries.size();
+		this.binaryID = new int[numBinary];
+		this.binaryResult = new int[numBinary];
+		this.binaryType = new int[numBinary];
+		this.binaryArity = new int[numBinary];
+		this.binaryHead = new int[numBinary];
+		this.binaryRules = binaries.toArray(new Binary[numBinary]);
+		int numPairs = 0;
+		for(int r=0; r<numBinary; r++) {
+			Binary rule = this.binaryRules[r];
+			this.binaryID[r] = ruleIDs.checkID(rule);
+			this.binaryResult[r] = rule.A;
+			this.binaryType[r] = rule.getType().ordinal();
+			this.binaryArity[r] = rule.arity;
+			this.binaryHead[r] = rule.head.ordinal();
+			if(r == 0 || !samePair(this.binaryRules[r-1], rule)) {
+				numPairs++;
+			}
+		}
+		this.leftToPair = new int[this.numCats+1];
+		this.pairRight = new int[numPairs];
+		this.pairToRule = new int[numPairs+1];
+		int p = -1;
+		for(int r=0; r<numBinary; r++) {
+			Binary rule = this.binaryRules[r];
+			if(r == 0 || !samePair(this.binaryRules[r-1], rule)) {
+				p++;
+				this.pairRight[p] = rule.C;
+				this.pairToRule[p] = r;
+				this.leftToPair[rule.B+1]++;
+			}
+		}
+		this.pairToRule[numPairs] = numBinary;
+		cumulate(this.leftToPair);
+
+		// Unary rules, sorted by (child, rule ID)
+		Collections.sort(unaries, new Comparator<Unary>() {
+			@Override
+			public int compare(Unary r1, Unary r2) {
+				if(r1.B.intValue() != r2.B.intValue()) {
+					return r1.B < r2.B ? -1 : 1;
+				}
+				return Integer.compare(ruleIDs.checkID(r1), ruleIDs.checkID(r2));
+			}
+		});
+		int numUnary = unaries.size();
+		this.unaryID = new int[numUnary];
+		this.unaryResult = new int[numUnary];
+		this.unaryType = new int[numUnary];
+		this.unaryRules = unaries.toArray(new Unary[numUnary]);
+		this.childToUnary = new int[this.numCats+1];
+		for(int u=0; u<numUnary; u++) {
+			Unary rule = this.unaryRules[u];
+			this.unaryID[u] = ruleIDs.checkID(rule);
+			this.unaryResult[u] = rule.A;
+			this.unaryType[u] = rule.getType().ordinal();
+			this.childToUnary[rule.B+1]++;
+		}
+		cumulate(this.childToUnary);
+	}
+
+	private static boolean samePair(Binary r1, Binary r2) {
+		return r1.B.intValue() == r2.B.intValue() && r1.C.intValue() == r2.C.intValue();
+	}
+
+	/**
+	 * Converts per-key counts (stored at key+1) into CSR offsets
+	 */
+	private static void cumulate(int[] offsets) {
+		for(int i=1; i<offsets.length; i++) {
+			offsets[i] += offsets[i-1];
+		}
+	}
+
+	/**
+	 * Returns the number of categories covered by this snapshot.
+	 */
+	public int numberOfCategories() {
+		return this.numCats;
+	}
+
+	/**
+	 * Returns the number of binary rules in this snapshot.
+	 */
+	public int numberOfBinaryRules() {
+		return this.binaryRules.length;
+	}
+
+	/**
+	 * Returns the number of (non-lexical) unary rules in this snapshot.
+	 */
+	public int numberOfUnaryRules() {
+		return this.unaryRules.length;
+	}
+
+	/**
+	 * Returns the index of the first (left, right) pair with the specified left category.
+	 */
+	public int pairStart(int leftCat) {
+		if(leftCat < 0 || leftCat >= this.numCats) {
+			return 0;
+		}
+		return this.leftToPair[leftCat];
+	}
+
+	/**
+	 * Returns one past the index of the last (left, right) pair with the specified left category.
+	 */
+	public int pairEnd(int leftCat) {
+		if(leftCat < 0 || leftCat >= this.numCats) {
+			return 0;
+		}
+		return this.leftToPair[leftCat+1];
+	}
+
+	/**
+	 * Returns the right category of the specified pair.
+	 */
+	public int pairRight(int pair) {
+		return this.pairRight[pair];
+	}
+
+	/**
+	 * Returns the index of the first binary rule for the specified pair.
+	 */
+	public int ruleStart(int pair) {
+		return this.pairToRule[pair];
+	}
+
+	/**
+	 * Returns one past the index of the last binary rule for the specified pair.
+	 */
+	public int ruleEnd(int pair) {
+		return this.pairToRule[pair+1];
+	}
+
+	public int binaryRuleID(int r) {
+		return this.binaryID[r];
+	}
+
+	public int binaryResult(int r) {
+		return this.binaryResult[r];
+	}
+
+	public Rule_Type binaryType(int r) {
+		return TYPES[this.binaryType[r]];
+	}
+
+	public int binaryArity(int r) {
+		return this.binaryArity[r];
+	}
+
+	public Rule_Direction binaryHead(int r) {
+		return HEADS[this.binaryHead[r]];
+	}
+
+	public Binary binaryRule(int r) {
+		return this.binaryRules[r];
+	}
+
+	/**
+	 * Returns the index of the first unary rule with the specified child category.
+	 */
+	public int unaryStart(int childCat) {
+		if(childCat < 0 || childCat >= this.numCats) {
+			return 0;
+		}
+		return this.childToUnary[childCat];
+	}
+
+	/**
+	 * Returns one past the index of the last unary rule with the specified child category.
+	 */
+	public int unaryEnd(int childCat) {
+		if(childCat < 0 || childCat >= this.numCats) {
+			return 0;
+		}
+		return this.childToUnary[childCat+1];
+	}
+
+	public int unaryRuleID(int u) {
+		return this.unaryID[u];
+	}
+
+	public int unaryResult(int u) {
+		return this.unaryResult[u];
+	}
+
+	public Rule_Type unaryType(int u) {
+		return TYPES[this.unaryType[u]];
+	}
+
+	public Unary unaryRule(int u) {
+		return this.unaryRules[u];
+	}
+}
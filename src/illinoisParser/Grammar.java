@@ -1,8 +1,14 @@
 package illinoisParser;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
@@ -10,6 +16,7 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,6 +44,11 @@ public class Grammar implements Serializable {
 	 * A map from word IDs to the IDs of the categories that can generate them
 	 */
 	ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Boolean>> wordToLexicalCategoryMap;
+	/**
+	 * Immutable array-based snapshot of the rules, used by the chart parser (rebuilt lazily 
+	 * after the rules change)
+	 */
+	private transient volatile CompiledGrammar compiledRules;
 
 	/*
 	 * Nonterminal Symbols
@@ -263,7 +275,10 @@ public class Grammar implements Serializable {
 		this.Rules.getIDAndAddIfAbsent(r);
 		if(r.getType() != Rule_Type.PRODUCTION) { // we store production rules in wordToLexicalCategoryMap instead
 			this.rhsToRuleMap.putIfAbsent(BC, new ConcurrentHashMap<Rule,Boolean>());
-			this.rhsToRuleMap.get(BC).put(r, true);
+			if(this.rhsToRuleMap.get(BC).putIfAbsent(r, true) == null) {
+				// Only a new rule invalidates the compiled rule table
+				this.compiledRules = null;
+			}
 		}
 		return r;
 	}
@@ -340,6 +355,20 @@ public class Grammar implements Serializable {
 				leftCatToRightCatMap.get(r.B).add(((Binary) r).C);
 			}
 		}
+		this.compiledRules = new CompiledGrammar(this);
+	}
+
+	/**
+	 * Returns an immutable, array-based snapshot of this grammar's (non-lexical) rules, 
+	 * compiling it first if the rules have changed since the last call.
+	 */
+	public CompiledGrammar compiled() {
+		CompiledGrammar cg = this.compiledRules;
+		if(cg == null) {
+			cg = new CompiledGrammar(this);
+			this.compiledRules = cg;
+		}
+		return cg;
 	}
 
 	public Set<Integer> rightCats(Integer leftCat) {
@@ -452,6 +481,8 @@ public class Grammar implements Serializable {
 				rpw.println(ruleLine);
 			}
 			rpw.close();
+			// Write binary snapshot (read by load in place of the text files)
+			this.saveSnapshot(new File(saveDir.getCanonicalPath()+"/"+SNAPSHOT_FILE_NAME));
 		}
 		catch(IOException e) {
 			System.out.println("Failed to save grammar; " +
@@ -467,6 +498,40 @@ public class Grammar implements Serializable {
 	 * @return a new Grammar object with parameters defined by the load directory 
 	 */
 	public static Grammar load(File loadDir) {
+		try {
+			// Use the binary snapshot if it is at least as new as the text files
+			File snapshot = new File(loadDir.getCanonicalPath()+"/"+SNAPSHOT_FILE_NAME);
+			if(isSnapshotCurrent(loadDir, snapshot)) {
+				try {
+					return loadSnapshot(snapshot);
+				}
+				catch(IOException e) {
+					System.out.println("Failed to load grammar snapshot "+snapshot.getPath()
+							+"; reading text files instead.");
+					e.printStackTrace();
+				}
+			}
+			Grammar grammar = loadText(loadDir);
+			try {
+				grammar.saveSnapshot(snapshot);
+			}
+			catch(IOException e) {
+				System.out.println("Failed to save grammar snapshot: "+snapshot.getPath());
+			}
+			return grammar;
+		}
+		catch(IOException e) {
+			System.out.println("Failed to load grammar; " +
+					"IOException while attempting to read from disk.\nExiting...");
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Loads a grammar from the text files written by save.
+	 */
+	private static Grammar loadText(File loadDir) {
 		try {
 			// Initialize new Grammar object
 			Grammar grammar = new Grammar();
@@ -568,6 +633,218 @@ public class Grammar implements Serializable {
 		}
 	}
 
+	/** Name of the binary snapshot written by save (and by load, after reading the text files) **/
+	public static final String SNAPSHOT_FILE_NAME = "grammar.bin";
+
+	/** Identifies a grammar snapshot ("GRMB") **/
+	private static final int SNAPSHOT_MAGIC = 0x47524D42;
+
+	/** Current version of the snapshot layout **/
+	private static final int SNAPSHOT_VERSION = 1;
+
+	/** Text files written by save **/
+	private static final String[] TEXT_FILE_NAMES = {"words.txt", "known_words.txt", "categories.txt", "rules.txt"};
+
+	/**
+	 * Returns true iff the snapshot exists and none of the text files is newer than it.
+	 */
+	private static boolean isSnapshotCurrent(File loadDir, File snapshot) {
+		if(!snapshot.isFile()) {
+			return false;
+		}
+		for(String name : TEXT_FILE_NAMES) {
+			File text = new File(loadDir, name);
+			if(text.exists() && text.lastModified() > snapshot.lastModified()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes this grammar to a binary snapshot: the word, known word, category and rule tables
+	 * (in ID order), followed by the rule indexes (rules grouped by right-hand side, lexical 
+	 * categories grouped by word, and right categories grouped by left category), so that 
+	 * loadSnapshot can fill each map with presized entries instead of rebuilding it rule by rule.
+	 * 
+	 * Layout (big-endian): MAGIC, VERSION, words (count, UTF each), known word IDs (count, ints),
+	 * categories (count, UTF each), rules (count; per rule: arity N, type ordinal, A, B, and for
+	 * binary rules C, arity and head ordinal), then the three indexes (count; per group: key, 
+	 * size, members).
+	 */
+	public void saveSnapshot(File file) throws IOException {
+		File tmp = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(this.Words.size());
+			for(String word : this.Words.items()) {
+				out.writeUTF(word);
+			}
+			out.writeInt(this.learnedWords.size());
+			for(String word : this.learnedWords.items()) {
+				out.writeInt(this.Words.checkID(word));
+			}
+			out.writeInt(this.Symbols.size());
+			for(String cat : this.Symbols.items()) {
+				out.writeUTF(cat);
+			}
+			out.writeInt(this.Rules.size());
+			for(Rule rule : this.Rules.items()) {
+				out.writeByte(rule.N);
+				out.writeByte(rule.getType().ordinal());
+				out.writeInt(rule.A);
+				out.writeInt(rule.B);
+				if(rule instanceof Binary) {
+					Binary brule = (Binary) rule;
+					out.writeInt(brule.C);
+					out.writeInt(brule.arity);
+					out.writeByte(brule.head.ordinal());
+				}
+			}
+			// Rules by right-hand side
+			out.writeInt(this.rhsToRuleMap.size());
+			for(Map.Entry<IntPair, ConcurrentHashMap<Rule, Boolean>> entry : this.rhsToRuleMap.entrySet()) {
+				Collection<Rule> rules = entry.getValue().keySet();
+				Rule first = rules.iterator().next();
+				out.writeInt(first.B);
+				out.writeInt((first instanceof Binary) ? ((Binary) first).C : -1);
+				out.writeInt(rules.size());
+				for(Rule rule : rules) {
+					out.writeInt(this.Rules.checkID(rule));
+				}
+			}
+			// Lexical categories by word
+			out.writeInt(this.wordToLexicalCategoryMap.size());
+			for(Map.Entry<Integer, ConcurrentHashMap<Integer, Boolean>> entry : this.wordToLexicalCategoryMap.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for(Integer cat : entry.getValue().keySet()) {
+					out.writeInt(cat);
+				}
+			}
+			// Right categories by left category
+			if(this.leftCatToRightCatMap == null) {
+				this.buildLeftToRightMap();
+			}
+			out.writeInt(this.leftCatToRightCatMap.size());
+			for(Map.Entry<Integer, Set<Integer>> entry : this.leftCatToRightCatMap.entrySet()) {
+				out.writeInt(entry.getKey());
+				out.writeInt(entry.getValue().size());
+				for(Integer cat : entry.getValue()) {
+					out.writeInt(cat);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+		file.delete();
+		if(!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Failed to rename "+tmp.getPath());
+		}
+	}
+
+	/**
+	 * Loads a grammar from a binary snapshot written by saveSnapshot.
+	 */
+	public static Grammar loadSnapshot(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if(in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not a grammar snapshot: "+file.getPath());
+			}
+			int version = in.readInt();
+			if(version != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported grammar snapshot version "+version+": "+file.getPath());
+			}
+			Grammar grammar = new Grammar();
+			int numWords = in.readInt();
+			grammar.Words = new IntegerMapping<String>("Words", String.class, numWords);
+			for(int w=0; w<numWords; w++) {
+				grammar.Words.getIDAndAddIfAbsent(in.readUTF());
+			}
+			int numKnown = in.readInt();
+			grammar.learnedWords = new IntegerMapping<String>("Known Words", String.class, numKnown);
+			for(int w=0; w<numKnown; w++) {
+				grammar.learnedWords.getIDAndAddIfAbsent(grammar.Words.getItemByID(in.readInt()));
+			}
+			int numCats = in.readInt();
+			for(int c=0; c<numCats; c++) {
+				String cat = in.readUTF();
+				if(grammar.Symbols.getIDAndAddIfAbsent(cat) != c) {
+					throw new IOException("Mismatched ID for category "+cat+" in grammar snapshot");
+				}
+			}
+			if(grammar.Words.size() != numWords || grammar.Words.checkID("#UNK#") != grammar.UNK) {
+				throw new IOException("Mismatched word IDs in grammar snapshot");
+			}
+			Rule_Type[] types = Rule_Type.values();
+			Rule_Direction[] heads = Rule_Direction.values();
+			int numRules = in.readInt();
+			grammar.Rules = new IntegerMapping<Rule>("Rules", Rule.class, numRules);
+			Rule[] rules = new Rule[numRules];
+			for(int r=0; r<numRules; r++) {
+				int n = in.readByte();
+				Rule_Type type = types[in.readByte()];
+				int a = in.readInt();
+				int b = in.readInt();
+				if(n == 2) {
+					int c = in.readInt();
+					int arity = in.readInt();
+					rules[r] = new Binary(a, b, c, type, arity, heads[in.readByte()]);
+				}
+				else {
+					rules[r] = new Unary(a, b, type);
+				}
+				if(grammar.Rules.getIDAndAddIfAbsent(rules[r]) != r) {
+					throw new IOException("Mismatched ID for rule "+r+" in grammar snapshot");
+				}
+			}
+			int numRHS = in.readInt();
+			grammar.rhsToRuleMap = new ConcurrentHashMap<IntPair, ConcurrentHashMap<Rule, Boolean>>(2*numRHS);
+			for(int g=0; g<numRHS; g++) {
+				int b = in.readInt();
+				int c = in.readInt();
+				int size = in.readInt();
+				ConcurrentHashMap<Rule, Boolean> group = new ConcurrentHashMap<Rule, Boolean>(2*size);
+				for(int i=0; i<size; i++) {
+					group.put(rules[in.readInt()], true);
+				}
+				grammar.rhsToRuleMap.put((c < 0) ? new IntPair(b) : new IntPair(b, c), group);
+			}
+			int numLexWords = in.readInt();
+			grammar.wordToLexicalCategoryMap = new ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, Boolean>>(2*numLexWords);
+			for(int g=0; g<numLexWords; g++) {
+				int word = in.readInt();
+				int size = in.readInt();
+				ConcurrentHashMap<Integer, Boolean> group = new ConcurrentHashMap<Integer, Boolean>(2*size);
+				for(int i=0; i<size; i++) {
+					group.put(in.readInt(), true);
+				}
+				grammar.wordToLexicalCategoryMap.put(word, group);
+			}
+			int numLeft = in.readInt();
+			grammar.leftCatToRightCatMap = new ConcurrentHashMap<Integer, Set<Integer>>(2*numLeft);
+			for(int g=0; g<numLeft; g++) {
+				int left = in.readInt();
+				int size = in.readInt();
+				HashSet<Integer> group = new HashSet<Integer>(2*size);
+				for(int i=0; i<size; i++) {
+					group.add(in.readInt());
+				}
+				grammar.leftCatToRightCatMap.put(left, group);
+			}
+			grammar.compiledRules = new CompiledGrammar(grammar);
+			return grammar;
+		}
+		finally {
+			in.close();
+		}
+	}
+
 	/**
 	 * Returns a Rule object for a particular lexical category-word pair.
 	 * 
@@ -23,10 +23,18 @@ public class IntegerMapping<T> implements Serializable {
 	private final List<T> idToType;
 	
 	public IntegerMapping(String mapName, Class<T> type) {
+		this(mapName, type, 16);
+	}
+
+	/**
+	 * Creates an empty mapping sized for the expected number of items (e.g. when loading a
+	 * saved mapping).
+	 */
+	public IntegerMapping(String mapName, Class<T> type, int expectedSize) {
 		this.objectType = type;
 		this.nameOfMapping = mapName;
-		this.objectToID = new ConcurrentHashMap<T, Integer>();
-		this.idToType = new ArrayList<T>(); 
+		this.objectToID = new ConcurrentHashMap<T, Integer>(Math.max(16, 2*expectedSize));
+		this.idToType = new ArrayList<T>(expectedSize); 
 	}
 	
 	/**
@@ -45,7 +45,7 @@ public class POS implements Externalizable {
 
   @Override
   public String toString() {
-    return TAGSET.STRINGS.get(id);
+    return TAGSET.get(id);
   }
 
   @Override
@@ -56,6 +56,6 @@ public class POS implements Externalizable {
 
   @Override
   public void writeExternal(ObjectOutput out) throws IOException {
-	  out.writeObject(TAGSET.STRINGS.get(id));
+	  out.writeObject(TAGSET.get(id));
   }
 }
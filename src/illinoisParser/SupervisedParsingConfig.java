@@ -27,6 +27,15 @@ public class SupervisedParsingConfig extends SupervisedConfig {
 	
 	/** Beam width for beam search (in logspace) **/
 	private static final String BEAM_WIDTH_LOGSPACE = "beamWidthInLogspace";
+	
+	/** If true, use a beam during the fine pass of the perceptron parser **/
+	private static final String USE_PERCEPTRON_BEAM = "usePerceptronBeam";
+	
+	/** Beam width for the perceptron parser (margin below the best score in a cell) **/
+	private static final String PERCEPTRON_BEAM_WIDTH = "perceptronBeamWidth";
+	
+	/** Maximum number of fine items retained per cell by the perceptron parser (0 for no limit) **/
+	private static final String MAX_FINE_ITEMS_PER_CELL = "maxFineItemsPerCell";
 
 	/**
 	 * Private default constructor used by factory method(s)
@@ -47,6 +56,10 @@ public class SupervisedParsingConfig extends SupervisedConfig {
 		
 		super.addNewParameter(USE_BEAM_SEARCH, new ParameterSetting(true));
 		super.addNewParameter(BEAM_WIDTH_LOGSPACE, new ParameterSetting(Math.log(0.0001)));
+		
+		super.addNewParameter(USE_PERCEPTRON_BEAM, new ParameterSetting(false));
+		super.addNewParameter(PERCEPTRON_BEAM_WIDTH, new ParameterSetting(10.0));
+		super.addNewParameter(MAX_FINE_ITEMS_PER_CELL, new ParameterSetting(0));
 	}
 	
 	/**
@@ -137,4 +150,27 @@ public class SupervisedParsingConfig extends SupervisedConfig {
 	public double getLogBeamWidth() {
 		return (double) this.lookup(BEAM_WIDTH_LOGSPACE).getValue();
 	}
+
+	/**
+	 * Returns true if pruning fine items during the perceptron parser's fine pass, else false
+	 */
+	public boolean usePerceptronBeam() {
+		return (boolean) this.lookup(USE_PERCEPTRON_BEAM).getValue();
+	}
+
+	/**
+	 * Returns the width of the perceptron parser's beam, i.e. how far below the best
+	 * score in a cell an item's score may fall before it is pruned
+	 */
+	public double getPerceptronBeamWidth() {
+		return ((Number) this.lookup(PERCEPTRON_BEAM_WIDTH).getValue()).doubleValue();
+	}
+
+	/**
+	 * Returns the maximum number of fine items the perceptron parser keeps in a cell
+	 * (zero or less means no limit)
+	 */
+	public int getMaxFineItemsPerCell() {
+		return ((Number) this.lookup(MAX_FINE_ITEMS_PER_CELL).getValue()).intValue();
+	}
 }
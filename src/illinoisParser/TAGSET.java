@@ -14,7 +14,7 @@ public class TAGSET {
   /**
    * String representations of the tags
    */
-  final static ArrayList<String> STRINGS = new ArrayList<String>();
+  private final static ArrayList<String> STRINGS = new ArrayList<String>();
   /**
    * A None tag.
    */
@@ -200,12 +200,12 @@ public class TAGSET {
   }
 
   /**
-   * Creates a new tag from String.
+   * Creates a new tag from String (synchronized, since sentences may be read on several threads).
    * 
    * @param val
    * @return int
    */
-  public static int add(String val) {
+  public static synchronized int add(String val) {
     int i = STRINGS.indexOf(val);
     if (i == -1) {
       STRINGS.add(val);
@@ -214,6 +214,16 @@ public class TAGSET {
     return i;
   }
 
+  /**
+   * Returns the String for a tag id (synchronized with add, which may be growing the list).
+   * 
+   * @param id
+   * @return String
+   */
+  static synchronized String get(int id) {
+    return STRINGS.get(id);
+  }
+
   /**
    * Returns the POS value of a string if present.  Returns null otherwise.
    * @param val human readable POS
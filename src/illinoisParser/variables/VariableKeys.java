@@ -0,0 +1,93 @@
+package illinoisParser.variables;
+
+/**
+ * The VariableKeys class packs short lists of integer variables (a feature template ID followed by
+ * at most three values) into a single long key, so that features can be looked up in a primitive
+ * hash table without allocating ConditioningVariables objects.
+ *
+ * Layout (from the most significant bit): 2 bits for the number of values, 5 bits for the template,
+ * and three 18-bit fields for the values (each offset by one, so that -1 can be stored). Keys are
+ * always non-negative; variables that do not fit this layout are mapped to NOT_PACKABLE and should
+ * be looked up through VariablesFactory instead.
+ *
+ * @author ramusa2
+ *
+ */
+public abstract class VariableKeys {
+
+	/** Returned for variables that cannot be packed into a key **/
+	public static final long NOT_PACKABLE = -1L;
+
+	/** Number of bits per value field **/
+	private static final int FIELD_BITS = 18;
+
+	/** Largest value that fits in a field (after offsetting) **/
+	private static final int MAX_VALUE = (1 << FIELD_BITS) - 2;
+
+	/** Largest template ID that fits in the template field **/
+	private static final int MAX_TEMPLATE = (1 << 5) - 1;
+
+	/** Bit offset of the template field **/
+	private static final int TEMPLATE_SHIFT = 3*FIELD_BITS;
+
+	/** Bit offset of the arity field **/
+	private static final int ARITY_SHIFT = TEMPLATE_SHIFT + 5;
+
+	public static final long pack(int template, int a) {
+		if(outOfRange(template, a)) {
+			return NOT_PACKABLE;
+		}
+		return header(template, 1) | field(a, 0);
+	}
+
+	public static final long pack(int template, int a, int b) {
+		if(outOfRange(template, a) || outOfRange(b)) {
+			return NOT_PACKABLE;
+		}
+		return header(template, 2) | field(a, 0) | field(b, 1);
+	}
+
+	public static final long pack(int template, int a, int b, int c) {
+		if(outOfRange(template, a) || outOfRange(b) || outOfRange(c)) {
+			return NOT_PACKABLE;
+		}
+		return header(template, 3) | field(a, 0) | field(b, 1) | field(c, 2);
+	}
+
+	/**
+	 * Returns the packed key for an existing set of variables (the first variable is treated as the
+	 * template ID), or NOT_PACKABLE if the variables don't fit in a key.
+	 */
+	public static final long pack(ConditioningVariables vars) {
+		if(vars == null || vars instanceof ComplexConditioningVariables) {
+			return NOT_PACKABLE;
+		}
+		switch(vars.length()) {
+		case 2:
+			return pack(vars.getVariableValue(0), vars.getVariableValue(1));
+		case 3:
+			return pack(vars.getVariableValue(0), vars.getVariableValue(1), vars.getVariableValue(2));
+		case 4:
+			return pack(vars.getVariableValue(0), vars.getVariableValue(1), vars.getVariableValue(2),
+					vars.getVariableValue(3));
+		default:
+			return NOT_PACKABLE;
+		}
+	}
+
+	private static final long header(int template, int arity) {
+		return ((long) arity << ARITY_SHIFT) | ((long) template << TEMPLATE_SHIFT);
+	}
+
+	private static final long field(int value, int position) {
+		return ((long) (value + 1)) << (position*FIELD_BITS);
+	}
+
+	private static final boolean outOfRange(int template, int value) {
+		return template < 0 || template > MAX_TEMPLATE || outOfRange(value);
+	}
+
+	private static final boolean outOfRange(int value) {
+		return value < -1 || value > MAX_VALUE;
+	}
+}
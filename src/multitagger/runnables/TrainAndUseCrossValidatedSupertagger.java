@@ -26,13 +26,20 @@ public class TrainAndUseCrossValidatedSupertagger {
 
 	private static int HIGH = 21;
 
+	/** Tokens per SGD update (set with --batchSize=N) **/
+	private static int batchSize = 1;
+
+	/** Number of Hogwild training threads (set with --threads=N; values below one use all cores) **/
+	private static int numThreads = 1;
+
 	public static void main(String[] args) throws Exception {		
 		System.out.println("Make sure CCGbank data is at data/CCGbank/");
 		if(args.length <2) {
 			System.out.println("Requires at least two arguments: "
 					+"\n  1) output directory"
 					+"\n  2) category file"
-					+"\n  3...) indices of sections to omit from 2-21");
+					+"\n  3...) indices of sections to omit from 2-21"
+					+"\n  (optional: --batchSize=N for mini-batch training, --threads=N for Hogwild training)");
 			return;
 		}
 		outputDir = new File(args[0]);
@@ -41,12 +48,24 @@ public class TrainAndUseCrossValidatedSupertagger {
 		categoryFile = args[1];
 		System.out.println("Category file: "+categoryFile);
 		System.out.println("Omitting sections: ");
-		omitSecs = new int[args.length-2];
+		ArrayList<Integer> omitted = new ArrayList<Integer>();
 		for(int i=2; i<args.length; i++) {
-			omitSecs[i-2] = Integer.parseInt(args[i]);
-			System.out.print(" "+args[i]);
+			if(args[i].startsWith("--batchSize=")) {
+				batchSize = Integer.parseInt(args[i].substring("--batchSize=".length()));
+			}
+			else if(args[i].startsWith("--threads=")) {
+				numThreads = Integer.parseInt(args[i].substring("--threads=".length()));
+			}
+			else {
+				omitted.add(Integer.parseInt(args[i]));
+				System.out.print(" "+args[i]);
+			}
 		}
 		System.out.println();
+		omitSecs = new int[omitted.size()];
+		for(int i=0; i<omitSecs.length; i++) {
+			omitSecs[i] = omitted.get(i);
+		}
 		Collection<Sentence> data = CCGbankReader.getCCGbankDataOmittingSections(LOW, HIGH, AUTO_DIR, omitSecs);
 
 
@@ -99,7 +118,12 @@ public class TrainAndUseCrossValidatedSupertagger {
 		double learningRate = 0.01;
 		int T = 15;
 		System.out.println("Starting training for "+T+" iterations with learning rate of "+learningRate);
-		net.train(data, T, learningRate, outputDir.getAbsolutePath(), startIter);
+		if(batchSize == 1 && numThreads == 1) {
+			net.train(data, T, learningRate, outputDir.getAbsolutePath(), startIter);
+		}
+		else {
+			net.train(data, T, learningRate, outputDir.getAbsolutePath(), startIter, batchSize, numThreads);
+		}
 		System.out.println("Finished training.");
 		System.out.println("Saving file to "+outputDir);
 		net.save(outputDir);
@@ -34,11 +34,47 @@ public abstract class Module implements Externalizable {
 		return this.output;
 	}
 
+	/**
+	 * Calculates the output of this layer given the specified input, and stores it in a
+	 * caller-owned outputVector (which is overwritten and returned). Unlike forward(input),
+	 * nothing is cached, so several threads may share a module for inference as long as
+	 * each uses its own output vectors (and parameters are not being updated); the cached
+	 * forward/backward pair remains the (single-threaded) training path.
+	 */
+	public final DoubleMatrix forward(DoubleMatrix inputVector, DoubleMatrix outputVector) {
+		this.clear(outputVector);
+		return this.calculateOutput(inputVector, outputVector);
+	}
+
+	/**
+	 * Calculates the output of this layer for each column of inputs (one input vector
+	 * per column) and returns the outputs as the columns of a new matrix.
+	 * 
+	 * This default implementation calls forward once per column (so it caches the last
+	 * column's input and output); subclasses override it with a single batched operation
+	 * that leaves the cached vectors untouched.
+	 */
+	public DoubleMatrix forwardBatch(DoubleMatrix inputs) {
+		DoubleMatrix outputs = null;
+		for(int j=0; j<inputs.columns; j++) {
+			DoubleMatrix out = this.forward(inputs.getColumn(j));
+			if(outputs == null) {
+				outputs = new DoubleMatrix(out.rows, inputs.columns);
+			}
+			outputs.putColumn(j, out);
+		}
+		return (outputs == null) ? new DoubleMatrix(0, 0) : outputs;
+	}
+
 	/**
 	 * Calculates the output of this layer given an input vector, and stores the result
 	 * in outputVector.
 	 * 
 	 * Precondition: outputVector is initialized to the zero vector.
+	 * 
+	 * Implementations must only read inputVector and the layer's parameters (not the cached
+	 * input/output vectors or other per-call fields), so they can be used by the stateless
+	 * forward(input, output).
 	 */
 	protected abstract DoubleMatrix calculateOutput(DoubleMatrix inputVector, DoubleMatrix outputVector);
 
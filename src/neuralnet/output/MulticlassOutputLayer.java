@@ -21,6 +21,30 @@ public class MulticlassOutputLayer extends OutputLayer implements Externalizable
 		return this.transfer.forward(this.weights.forward(input));
 	}
 	
+	/**
+	 * Stateless version of predict(input): computes the predicted distribution into 
+	 * caller-owned vectors (linearOutput and output each have one entry per class) and 
+	 * returns output. Safe to call from several threads at once, each with its own vectors.
+	 */
+	public final DoubleMatrix predict(DoubleMatrix input, DoubleMatrix linearOutput, DoubleMatrix output) {
+		return this.transfer.forward(this.weights.forward(input, linearOutput), output);
+	}
+	
+	/**
+	 * Returns the number of classes (the dimension of the predicted distribution)
+	 */
+	public final int numberOfClasses() {
+		return this.transfer.numberOfOutputs();
+	}
+	
+	/**
+	 * Returns the predicted distribution for each column of inputs (one input vector per
+	 * column), as the columns of a new matrix.
+	 */
+	public final DoubleMatrix predictBatch(DoubleMatrix inputs) {
+		return this.transfer.forwardBatch(this.weights.forwardBatch(inputs));
+	}
+	
 	public final DoubleMatrix getBackpropagatedGradient(DoubleMatrix input, int targetClass) {
 		return this.weights.backward(this.transfer.backward(this.loss.getLoss(this.predict(input), targetClass)));
 	}
@@ -43,4 +43,15 @@ public abstract class OutputLayer implements Externalizable {
 	public void loadWeightsFromFile(File file) {
 		this.weights.loadWeightsFromFile(file);
 	}
+	
+	public void saveWeightsToFile(File file) {
+		this.weights.saveWeightsToFile(file);
+	}
+	
+	/**
+	 * Returns the linear layer that feeds the transfer function
+	 */
+	public LinearLayer getLinearLayer() {
+		return this.weights;
+	}
 }
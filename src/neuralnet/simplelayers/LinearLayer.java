@@ -6,12 +6,14 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Scanner;
 
 import neuralnet.regularizers.Regularizer;
 
 import org.jblas.DoubleMatrix;
+import org.jblas.NativeBlas;
 
 import util.Util;
 
@@ -53,6 +55,52 @@ public class LinearLayer extends SimpleLayer implements Externalizable {
 		return outputVector;
 	}
 
+	/**
+	 * Computes W*inputs + b for a matrix with one input vector per column, as a single
+	 * matrix-matrix product.
+	 */
+	@Override
+	public DoubleMatrix forwardBatch(DoubleMatrix inputs) {
+		DoubleMatrix outputs = this.parameters.mmul(inputs);
+		outputs.addiColumnVector(this.bias);
+		return outputs;
+	}
+
+	/**
+	 * Returns the gradient with respect to each column of a batch of inputs (W^T times
+	 * the output gradients, one column per input), without caching anything.
+	 */
+	public DoubleMatrix backwardBatch(DoubleMatrix outputGradients) {
+		DoubleMatrix inputGradients = new DoubleMatrix(this.numInputs, outputGradients.columns);
+		// dgemm with a transposed first argument avoids copying the parameter matrix
+		NativeBlas.dgemm('T', 'N', this.numInputs, outputGradients.columns, this.numOutputs, 1.0,
+				this.parameters.data, 0, this.numOutputs, outputGradients.data, 0, this.numOutputs,
+				0.0, inputGradients.data, 0, this.numInputs);
+		return inputGradients;
+	}
+
+	/**
+	 * Adds stepSize times the parameter gradient for a batch (output gradients times the 
+	 * transposed inputs, one column per example) directly to the parameters, and stepSize 
+	 * times the summed output gradients to the bias.
+	 * 
+	 * No locks are taken, so concurrent calls (e.g. Hogwild-style training) may interleave
+	 * their updates.
+	 */
+	public void updateParametersBatch(DoubleMatrix inputs, DoubleMatrix outputGradients, double stepSize) {
+		NativeBlas.dgemm('N', 'T', this.numOutputs, this.numInputs, inputs.columns, stepSize,
+				outputGradients.data, 0, this.numOutputs, inputs.data, 0, this.numInputs,
+				1.0, this.parameters.data, 0, this.numOutputs);
+		double[] grad = outputGradients.data;
+		double[] bias = this.bias.data;
+		int offset = 0;
+		for(int j=0; j<outputGradients.columns; j++) {
+			for(int i=0; i<this.numOutputs; i++) {
+				bias[i] += stepSize*grad[offset++];
+			}
+		}
+	}
+
 	@Override
 	protected void updateParameterGradients(DoubleMatrix input,
 			DoubleMatrix outputGradient) {
@@ -116,6 +164,42 @@ public class LinearLayer extends SimpleLayer implements Externalizable {
 		this.bias = (DoubleMatrix) in.readObject();
 	}
 
+	/**
+	 * Returns the weight matrix (one row per node)
+	 */
+	public DoubleMatrix getWeights() {
+		return this.parameters;
+	}
+
+	/**
+	 * Returns the bias vector
+	 */
+	public DoubleMatrix getBias() {
+		return this.bias;
+	}
+
+	/**
+	 * Saves the weights in the format read by loadWeightsFromFile (one line per node: its
+	 * weights followed by its bias).
+	 */
+	public void saveWeightsToFile(File file) {
+		try {
+			PrintWriter pw = new PrintWriter(file);
+			for(int index=0; index<this.parameters.rows; index++) {
+				StringBuilder line = new StringBuilder();
+				for(int i=0; i<this.parameters.columns; i++) {
+					line.append(this.parameters.get(index, i));
+					line.append(' ');
+				}
+				line.append(this.bias.get(index));
+				pw.println(line.toString());
+			}
+			pw.close();
+		} catch (FileNotFoundException e) {
+			System.out.println("Failed to save linear layer weights to: "+file.getPath());
+		}
+	}
+
 	/**
 	 * Note: Deprecated. Holdover from previous implementation of neural net code.
 	 * 
@@ -19,24 +19,30 @@ public class HardMax extends TransferFunction implements Externalizable {
 		super(numInputs, numOutputs);
 	}
 
-	private int hardMaxID = -1;
-
 	@Override
 	protected DoubleMatrix calculateOutput(DoubleMatrix inputVector,
 			DoubleMatrix outputVector) {
-		hardMaxID = -1;
-		int i=0;
+		int hardMaxID = argmax(inputVector);
+		if(hardMaxID > -1) {
+			outputVector.put(hardMaxID, inputVector.get(hardMaxID));
+		}
+		return outputVector;
+	}
+
+	/**
+	 * Returns the index of the (last) largest element, or -1 for an empty vector.
+	 */
+	private static int argmax(DoubleMatrix vector) {
+		int hardMaxID = -1;
 		double max = Double.NEGATIVE_INFINITY;
-		for(double v : inputVector.data) {
-			if(v >= max) {
-				max = v;
+		double[] data = vector.data;
+		for(int i=0; i<data.length; i++) {
+			if(data[i] >= max) {
+				max = data[i];
 				hardMaxID = i;
 			}
 		}
-		if(hardMaxID > -1) {
-			outputVector.put(hardMaxID, max);
-		}
-		return outputVector;
+		return hardMaxID;
 	}
 
 	@Override
@@ -48,8 +54,10 @@ public class HardMax extends TransferFunction implements Externalizable {
 		else {
 			Arrays.fill(this.inputGradient.data, 0.0);
 		}
-		if(this.hardMaxID > -1) {
-			this.inputGradient.put(this.hardMaxID, outputGradient.get(this.hardMaxID));
+		// The selected element is recomputed from the cached input
+		int hardMaxID = argmax(inputVector);
+		if(hardMaxID > -1) {
+			this.inputGradient.put(hardMaxID, outputGradient.get(hardMaxID));
 		}
 		return this.inputGradient;
 	}
@@ -18,7 +18,7 @@ public class Logistic extends TransferFunction implements Externalizable {
 	}
 
 	private double logistic(DoubleMatrix inputVector) {
-		return 1.0/(1.0+Math.exp(-input.sum()));
+		return 1.0/(1.0+Math.exp(-inputVector.sum()));
 	}
 
 	@Override
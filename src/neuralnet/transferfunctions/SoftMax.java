@@ -31,6 +31,33 @@ public class SoftMax extends TransferFunction implements Externalizable {
 		return outputVector;
 	}
 
+	/**
+	 * Applies the softmax to each column of inputs (in place, and returns inputs).
+	 */
+	@Override
+	public DoubleMatrix forwardBatch(DoubleMatrix inputs) {
+		double[] data = inputs.data;
+		int rows = inputs.rows;
+		for(int j=0; j<inputs.columns; j++) {
+			int start = j*rows;
+			int end = start+rows;
+			double max = Double.NEGATIVE_INFINITY;
+			for(int i=start; i<end; i++) {
+				max = Math.max(max, data[i]);
+			}
+			double Z = 0.0;
+			for(int i=start; i<end; i++) {
+				double x = Math.exp(data[i] - max);
+				data[i] = x;
+				Z += x;
+			}
+			for(int i=start; i<end; i++) {
+				data[i] /= Z;
+			}
+		}
+		return inputs;
+	}
+
 	@Override
 	protected DoubleMatrix backward(DoubleMatrix inputVector,
 			DoubleMatrix outputGradient) {
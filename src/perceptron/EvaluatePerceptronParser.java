@@ -1,20 +1,20 @@
 package perceptron;
 
 import illinoisParser.CCGbankReader;
-import illinoisParser.FineChartItem;
 import illinoisParser.Grammar;
-import illinoisParser.ParseResult;
 import illinoisParser.Sentence;
 import illinoisParser.SupervisedParsingConfig;
-import illinoisParser.Tree;
 import illinoisParser.Util;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Collection;
 
+import perceptron.parser.ParseService;
+import perceptron.parser.ParseService.ParseOutput;
 import perceptron.parser.PerceptronParser;
 import perceptron.parser.ccnormalform.NormalFormPerceptronParser;
 import supertagger.lewissteedman.LSSupertagger;
@@ -34,6 +34,8 @@ public class EvaluatePerceptronParser {
 	private static String outputDir = "results";
 	private static String outputFilePrefix = "eval";
 	
+	private static int numThreads = 1;
+	
 	public static void main(String[] args) {
 		parseArgs(args);
 		printArgs();
@@ -59,51 +61,39 @@ public class EvaluatePerceptronParser {
 		dir.mkdirs();
 		PrintWriter pw = new PrintWriter(new File(outputDir+File.separator+outputFilePrefix)); // output file
 		PrintWriter apw = new PrintWriter(new File(outputDir+File.separator+outputFilePrefix+".auto")); // output file
+		PrintWriter ppw = new PrintWriter(new File(outputDir+File.separator+outputFilePrefix+".parg")); // output file
 		PrintWriter bpw = new PrintWriter(new File(outputDir+File.separator+outputFilePrefix+".bracket.txt")); // output file
 		PrintWriter tpw = new PrintWriter(new File(outputDir+File.separator+outputFilePrefix+".tex")); // output file
 		createTeXHeader(tpw, false);
 		int maxLength = 100;
+		ParseService service = new ParseService(parser, tagger, numThreads);
+		System.out.println("Parsing "+sentences.size()+" sentences with "+service.numberOfThreads()+" thread(s).");
+		ArrayList<ParseOutput> results = service.parseAll(sentences, beta, maxLength);
+		service.shutdown();
 		int count = 0;
-		for(Sentence sen : sentences) {
+		for(ParseOutput result : results) {
 			if(count != 0) {
 				pw.println();
 			}
+			Sentence sen = result.sentence();
 			pw.println(sen.toString());
 			pw.println(sen.getCCGbankParse());
-			if(sen.length() <= maxLength) {					
-				Tree<? extends FineChartItem> vit = parser.parse(sen, tagger, beta);
-				if(vit == null) {
-					Util.logln("Failed to build feature structure: "+sen);
-					pw.println("PARSE_FAILURE");
-					apw.println("PARSE_FAILURE");
-				}
-				else {
-					System.out.println("Score of viterbi parse: "+vit.probability());
-					ParseResult pr = new ParseResult(sen, vit, false);
-					StringBuilder sb = new StringBuilder();
-					Util.buildAUTORecurse(sb, sen, parser.grammar(), pr.getViterbiParse());
-					apw.println(sb.toString().trim());
-	
-					pw.println(pr.viterbiCCGDependencies());
-					System.out.println(sen);
-					System.out.println(pr.viterbiCCGDependencies());
-				}
-			}
-			else {
-				pw.println("TOO_LONG");
-				apw.println("TOO_LONG");
+			if(result.auto().equals(ParseService.TOO_LONG)) {
 				System.out.println("Skipping too-long sentence: "+sen.asWords());
-			}	
-			pw.print("###");
-			count++;
-			if(count % 100 == 0) {
-				System.out.println("Parsed "+count+" out of "+sentences.size()+" sentences.");
 			}
+			else if(!result.succeeded()) {
+				Util.logln("Failed to build feature structure: "+sen);
+			}
+			pw.println(result.dependencies());
+			apw.println(result.auto());
+			ppw.println(result.parg());
+			pw.print("###");
 			count++;
 		}
 		System.out.println("Finished parsing.");
 		pw.close();
 		apw.close();
+		ppw.close();
 		bpw.close();
 		closeTeXFile(tpw, false);
 		tpw.close();
@@ -117,7 +107,8 @@ public class EvaluatePerceptronParser {
 					+"\n  grammar="+grammarDir
 					+"\n  sentences="+sentenceFile
 					+"\n  outputDir="+outputDir
-					+"\n  outputFilePrefix="+outputFilePrefix);
+					+"\n  outputFilePrefix="+outputFilePrefix
+					+"\n  threads="+numThreads);
 	}
 
 	private static void parseArgs(String[] args) {
@@ -142,7 +133,8 @@ public class EvaluatePerceptronParser {
 					+"\n  grammar=PATH_TO_GRAMMAR_DIRECTORY"
 					+"\n  sentences=PATH_TO_AUTO_FILE"
 					+"\n  outputDir=PATH_TO_OUTPUT_DIR"
-					+"\n  outputFilePrefix=OUTPUT_FILENAME_PREFIX");
+					+"\n  outputFilePrefix=OUTPUT_FILENAME_PREFIX"
+					+"\n  threads=NUMBER_OF_PARSING_THREADS");
 			e.printStackTrace();
 			System.exit(0);
 		}
@@ -173,6 +165,9 @@ public class EvaluatePerceptronParser {
 		else if(checkArg(var, "of", "outputFilePrefix", "outFile", "outputFile")) {
 			outputFilePrefix = val;
 		}
+		else if(checkArg(var, "threads", "numThreads", "th", "j")) {
+			numThreads = Integer.parseInt(val);
+		}
 	}
 	
 	private static boolean checkArg(String key, String... matches) {
@@ -0,0 +1,582 @@
+package perceptron.core.representations.parsing;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import perceptron.parser.AveragedWeightStore;
+import perceptron.parser.TrainingForest;
+
+/**
+ * The FlatFeatureForest class is a read-only view of a packed feature forest stored in a flat,
+ * pointer-free int encoding, either on the heap (PackedFeatureForest stores its forest this way) or in
+ * a memory-mapped file (see MappedFeatureForests). Viterbi decoding and perceptron updates run directly
+ * over the encoding, without building FeatureNode or FeatureTree objects.
+ *
+ * A forest is stored as the length of its packed forest section, followed by the packed forest
+ * section and then the gold tree section. Each section is:
+ * <pre>
+ *   int         number of nodes (N); zero for a forest without a fine parse
+ *   int         number of backpointers (M)
+ *   int[N+1]    node -> start of its features in the feature pool
+ *   int[N+1]    node -> start of its backpointers (a node is a leaf if it has none)
+ *   int[M]      backpointer -> left child node
+ *   int[M]      backpointer -> right child node (-1 for unary backpointers)
+ *   int[M+1]    backpointer -> start of its features in the feature pool
+ *   int[]       feature pool (feature IDs): all node features, then all backpointer features
+ * </pre>
+ * Nodes are stored children-first, so the root is the last node, and a single pass in node order
+ * computes the Viterbi scores. In the gold section every node has at most one backpointer.
+ *
+ * @author ramusa2
+ *
+ */
+public final class FlatFeatureForest implements TrainingForest {
+
+	/** Per-thread Viterbi scratch space (reused across forests) **/
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final IntBuffer buf;
+
+	/** Start of the packed forest and gold tree sections **/
+	private final int forestBase;
+	private final int goldBase;
+
+	/**
+	 * Creates a view of the forest encoded at the specified (absolute) position of the buffer.
+	 */
+	public FlatFeatureForest(IntBuffer data, int position) {
+		this.buf = data;
+		this.forestBase = position+1;
+		this.goldBase = this.forestBase + data.get(position);
+	}
+
+	/**
+	 * Returns the number of ints used to encode this forest.
+	 */
+	public int encodedLength() {
+		return 1 + (this.goldBase-this.forestBase) + this.sectionLength(this.goldBase);
+	}
+
+	public boolean trainable() {
+		return this.numNodes(this.forestBase) > 0;
+	}
+
+	@Override
+	public boolean perceptronUpdate(AveragedWeightStore store, double delta, double c) {
+		int n = this.numNodes(this.forestBase);
+		int goldRoot = this.numNodes(this.goldBase)-1;
+		if(n == 0 || goldRoot < 0) {
+			return false;
+		}
+		Scratch scratch = SCRATCH.get();
+		scratch.ensureCapacity(n);
+		int[] best = scratch.best;
+		this.calculateViterbi(store.weights(), scratch.scores, best);
+		if(this.matches(n-1, best, goldRoot)) {
+			return false;
+		}
+		this.updateDerivation(this.forestBase, n-1, best, -delta, c, store);
+		this.updateDerivation(this.goldBase, goldRoot, null, delta, c, store);
+		return true;
+	}
+
+	/**
+	 * Computes the Viterbi score and backpointer of every node of the packed forest
+	 * (best[node] is -1 for leaves); ties keep the first backpointer, as in FeatureNode.checkAndSetViterbi.
+	 */
+	private void calculateViterbi(double[] weights, double[] scores, int[] best) {
+		int b = this.forestBase;
+		int n = this.numNodes(b);
+		int m = this.numBPs(b);
+		int nodeFeats = b+2;
+		int nodeBPs = nodeFeats+n+1;
+		int bpLeft = nodeBPs+n+1;
+		int bpRight = bpLeft+m;
+		int bpFeats = bpRight+m;
+		int pool = bpFeats+m+1;
+		IntBuffer data = this.buf;
+		for(int i=0; i<n; i++) {
+			double nodeScore = score(data, pool+data.get(nodeFeats+i), pool+data.get(nodeFeats+i+1), weights);
+			int start = data.get(nodeBPs+i);
+			int end = data.get(nodeBPs+i+1);
+			if(start == end) {
+				scores[i] = nodeScore;
+				best[i] = -1;
+				continue;
+			}
+			double bestScore = Double.NEGATIVE_INFINITY;
+			int bestBP = start;
+			for(int bp=start; bp<end; bp++) {
+				int right = data.get(bpRight+bp);
+				double score = nodeScore
+						+ score(data, pool+data.get(bpFeats+bp), pool+data.get(bpFeats+bp+1), weights)
+						+ scores[data.get(bpLeft+bp)]
+						+ (right < 0 ? 0.0 : scores[right]);
+				if(bp == start || score > bestScore) {
+					bestScore = score;
+					bestBP = bp;
+				}
+			}
+			scores[i] = bestScore;
+			best[i] = bestBP;
+		}
+	}
+
+	private static double score(IntBuffer data, int start, int end, double[] weights) {
+		double score = 0.0;
+		for(int i=start; i<end; i++) {
+			score += weights[data.get(i)];
+		}
+		return score;
+	}
+
+	/**
+	 * Returns true iff the Viterbi subtree rooted at node matches the gold subtree rooted at goldNode
+	 * (with the same semantics as FeatureTree.matches).
+	 */
+	private boolean matches(int node, int[] best, int goldNode) {
+		int bp = best[node];
+		int goldBP = this.chosenBP(this.goldBase, goldNode, null);
+		if(bp < 0 && goldBP < 0) {
+			return this.sameFeatures(this.nodeFeatureStart(this.forestBase, node),
+					this.nodeFeatureStart(this.forestBase, node+1),
+					this.nodeFeatureStart(this.goldBase, goldNode),
+					this.nodeFeatureStart(this.goldBase, goldNode+1));
+		}
+		if(bp < 0 || goldBP < 0) {
+			return false;
+		}
+		if(!this.sameFeatures(this.bpFeatureStart(this.forestBase, bp), this.bpFeatureStart(this.forestBase, bp+1),
+				this.bpFeatureStart(this.goldBase, goldBP), this.bpFeatureStart(this.goldBase, goldBP+1))) {
+			return false;
+		}
+		if(!this.matches(this.bpLeft(this.forestBase, bp), best, this.bpLeft(this.goldBase, goldBP))) {
+			return false;
+		}
+		int right = this.bpRight(this.forestBase, bp);
+		int goldRight = this.bpRight(this.goldBase, goldBP);
+		if(right >= 0 && goldRight >= 0) {
+			return this.matches(right, best, goldRight);
+		}
+		return true;
+	}
+
+	private boolean sameFeatures(int start, int end, int otherStart, int otherEnd) {
+		if(end-start != otherEnd-otherStart) {
+			return false;
+		}
+		for(int i=0; i<end-start; i++) {
+			if(this.buf.get(start+i) != this.buf.get(otherStart+i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Changes the weights of every feature in the derivation rooted at node, following
+	 * best (or, if best is null, each node's only backpointer).
+	 */
+	private void updateDerivation(int base, int node, int[] best, double delta, double c,
+			AveragedWeightStore store) {
+		store.update(this.buf, this.nodeFeatureStart(base, node), this.nodeFeatureStart(base, node+1), delta, c);
+		int bp = this.chosenBP(base, node, best);
+		if(bp >= 0) {
+			store.update(this.buf, this.bpFeatureStart(base, bp), this.bpFeatureStart(base, bp+1), delta, c);
+			this.updateDerivation(base, this.bpLeft(base, bp), best, delta, c, store);
+			int right = this.bpRight(base, bp);
+			if(right >= 0) {
+				this.updateDerivation(base, right, best, delta, c, store);
+			}
+		}
+	}
+
+	private int chosenBP(int base, int node, int[] best) {
+		if(best != null) {
+			return best[node];
+		}
+		int start = this.bpStart(base, node);
+		return start == this.bpStart(base, node+1) ? -1 : start;
+	}
+
+	/**
+	 * Returns the index of the first backpointer of the specified node 
+	 * (or, for node N, the number of backpointers).
+	 */
+	private int bpStart(int base, int node) {
+		int n = this.numNodes(base);
+		return this.buf.get(base+2+n+1+node);
+	}
+
+	private int numNodes(int base) {
+		return this.buf.get(base);
+	}
+
+	private int numBPs(int base) {
+		return this.buf.get(base+1);
+	}
+
+	/**
+	 * Returns the absolute position of the first feature of the specified node
+	 * (or, for node N, the end of the last node's features).
+	 */
+	private int nodeFeatureStart(int base, int node) {
+		return this.poolStart(base) + this.buf.get(base+2+node);
+	}
+
+	private int bpLeft(int base, int bp) {
+		int n = this.numNodes(base);
+		return this.buf.get(base+2+2*(n+1)+bp);
+	}
+
+	private int bpRight(int base, int bp) {
+		int n = this.numNodes(base);
+		int m = this.numBPs(base);
+		return this.buf.get(base+2+2*(n+1)+m+bp);
+	}
+
+	private int bpFeatureStart(int base, int bp) {
+		int n = this.numNodes(base);
+		int m = this.numBPs(base);
+		return this.poolStart(base) + this.buf.get(base+2+2*(n+1)+2*m+bp);
+	}
+
+	private int poolStart(int base) {
+		int n = this.numNodes(base);
+		int m = this.numBPs(base);
+		return base+2+2*(n+1)+3*m+1;
+	}
+
+	private int poolLength(int base) {
+		int n = this.numNodes(base);
+		int m = this.numBPs(base);
+		return this.buf.get(base+2+2*(n+1)+3*m);
+	}
+
+	private int sectionLength(int base) {
+		return (this.poolStart(base)-base) + this.poolLength(base);
+	}
+
+	/**
+	 * Returns the Viterbi tree according to the specified weight vector, or null if the
+	 * forest is empty.
+	 */
+	public FeatureTree viterbiTree(double[] weights) {
+		int n = this.numNodes(this.forestBase);
+		if(n == 0) {
+			return null;
+		}
+		Scratch scratch = SCRATCH.get();
+		scratch.ensureCapacity(n);
+		this.calculateViterbi(weights, scratch.scores, scratch.best);
+		return this.buildTree(this.forestBase, n-1, scratch.best);
+	}
+
+	/**
+	 * Returns the gold tree (built from the encoding).
+	 */
+	public FeatureTree goldTree() {
+		int n = this.numNodes(this.goldBase);
+		if(n == 0) {
+			return null;
+		}
+		return this.buildTree(this.goldBase, n-1, null);
+	}
+
+	private FeatureTree buildTree(int base, int node, int[] best) {
+		int[] nodeFeatures = this.features(this.nodeFeatureStart(base, node), this.nodeFeatureStart(base, node+1));
+		int bp = this.chosenBP(base, node, best);
+		if(bp < 0) {
+			return new FeatureTree(nodeFeatures);
+		}
+		int[] bpFeatures = this.features(this.bpFeatureStart(base, bp), this.bpFeatureStart(base, bp+1));
+		FeatureTree left = this.buildTree(base, this.bpLeft(base, bp), best);
+		int right = this.bpRight(base, bp);
+		if(right < 0) {
+			return new FeatureTree(nodeFeatures, new FeatureTreeBackPointer(bpFeatures, left));
+		}
+		return new FeatureTree(nodeFeatures, 
+				new FeatureTreeBackPointer(bpFeatures, left, this.buildTree(base, right, best)));
+	}
+
+	private int[] features(int start, int end) {
+		int[] features = new int[end-start];
+		for(int i=0; i<features.length; i++) {
+			features[i] = this.buf.get(start+i);
+		}
+		return features;
+	}
+
+	/**
+	 * Adds every feature used in the forest or the gold tree to the set.
+	 */
+	public void addActiveFeatures(Set<Integer> active) {
+		for(int base : new int[]{this.forestBase, this.goldBase}) {
+			int end = this.poolStart(base) + this.poolLength(base);
+			for(int i=this.poolStart(base); i<end; i++) {
+				active.add(this.buf.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Returns true iff some derivation in the forest has the same features and shape as the tree.
+	 */
+	public boolean containsTree(FeatureTree tree) {
+		int n = this.numNodes(this.forestBase);
+		return n > 0 && this.containsTree(n-1, tree);
+	}
+
+	private boolean containsTree(int node, FeatureTree tree) {
+		int base = this.forestBase;
+		if(!this.sameFeatures(this.nodeFeatureStart(base, node), this.nodeFeatureStart(base, node+1), tree.features())) {
+			return false;
+		}
+		int start = this.bpStart(base, node);
+		int end = this.bpStart(base, node+1);
+		if(start == end || tree.isLeaf()) {
+			return start == end && tree.isLeaf();
+		}
+		FeatureTreeBackPointer treeBP = tree.backpointer();
+		for(int bp=start; bp<end; bp++) {
+			if(this.sameFeatures(this.bpFeatureStart(base, bp), this.bpFeatureStart(base, bp+1), treeBP.features())) {
+				int right = this.bpRight(base, bp);
+				boolean matches;
+				if(right < 0 || treeBP.isUnary()) {
+					matches = right < 0 && treeBP.isUnary()
+							&& this.containsTree(this.bpLeft(base, bp), treeBP.leftChild());
+				}
+				else {
+					matches = this.containsTree(this.bpLeft(base, bp), treeBP.leftChild())
+							&& this.containsTree(right, treeBP.rightChild());
+				}
+				if(matches) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean sameFeatures(int start, int end, int[] other) {
+		if(end-start != other.length) {
+			return false;
+		}
+		for(int i=0; i<other.length; i++) {
+			if(this.buf.get(start+i) != other[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the encoding of this forest with every feature replaced by its image under 
+	 * the map (features without an image are dropped).
+	 */
+	public int[] remapFeatures(Map<Integer, Integer> featureMap) {
+		SectionBuilder packed = new SectionBuilder();
+		packed.addRemappedSection(this, this.forestBase, featureMap);
+		SectionBuilder gold = new SectionBuilder();
+		gold.addRemappedSection(this, this.goldBase, featureMap);
+		return concatenate(packed.toArray(), gold.toArray());
+	}
+
+	/**
+	 * Encodes a packed feature forest (see the class comment for the layout).
+	 * 
+	 * @param root	root of the packed forest (null if the sentence has no fine parse)
+	 * @param gold	gold tree
+	 */
+	public static int[] encode(FeatureNode root, FeatureTree gold) {
+		SectionBuilder packed = new SectionBuilder();
+		if(root != null) {
+			packed.addNode(root, new IdentityHashMap<FeatureNode, Integer>());
+		}
+		SectionBuilder goldSection = new SectionBuilder();
+		if(gold != null) {
+			goldSection.addTree(gold);
+		}
+		return concatenate(packed.toArray(), goldSection.toArray());
+	}
+
+	private static int[] concatenate(int[] packedSection, int[] goldSection) {
+		int[] encoded = new int[1+packedSection.length+goldSection.length];
+		encoded[0] = packedSection.length;
+		System.arraycopy(packedSection, 0, encoded, 1, packedSection.length);
+		System.arraycopy(goldSection, 0, encoded, 1+packedSection.length, goldSection.length);
+		return encoded;
+	}
+
+	/**
+	 * Accumulates the arrays of one section while walking a forest or tree children-first.
+	 */
+	private static class SectionBuilder {
+
+		private final IntList nodeFeats = new IntList();
+		private final IntList nodeBPs = new IntList();
+		private final IntList bpLeft = new IntList();
+		private final IntList bpRight = new IntList();
+		private final IntList bpFeats = new IntList();
+		private final IntList nodePool = new IntList();
+		private final IntList bpPool = new IntList();
+
+		private int addNode(FeatureNode node, IdentityHashMap<FeatureNode, Integer> ids) {
+			Integer cached = ids.get(node);
+			if(cached != null) {
+				return cached;
+			}
+			int numChildren = node.isLeaf() ? 0 : node.children().size();
+			int[] left = new int[numChildren];
+			int[] right = new int[numChildren];
+			for(int i=0; i<numChildren; i++) {
+				FeatureBackPointer bp = node.children().get(i);
+				left[i] = this.addNode(bp.leftChild(), ids);
+				right[i] = bp.isUnary() ? -1 : this.addNode(bp.rightChild(), ids);
+			}
+			int id = this.nodeFeats.size();
+			this.nodeFeats.add(this.nodePool.size());
+			this.nodePool.addAll(node.features());
+			this.nodeBPs.add(this.bpLeft.size());
+			for(int i=0; i<numChildren; i++) {
+				this.bpLeft.add(left[i]);
+				this.bpRight.add(right[i]);
+				this.bpFeats.add(this.bpPool.size());
+				this.bpPool.addAll(node.children().get(i).features());
+			}
+			ids.put(node, id);
+			return id;
+		}
+
+		private int addTree(FeatureTree tree) {
+			int left = -1;
+			int right = -1;
+			FeatureTreeBackPointer bp = tree.backpointer();
+			if(bp != null) {
+				left = this.addTree(bp.leftChild());
+				if(!bp.isUnary()) {
+					right = this.addTree(bp.rightChild());
+				}
+			}
+			int id = this.nodeFeats.size();
+			this.nodeFeats.add(this.nodePool.size());
+			this.nodePool.addAll(tree.features());
+			this.nodeBPs.add(this.bpLeft.size());
+			if(bp != null) {
+				this.bpLeft.add(left);
+				this.bpRight.add(right);
+				this.bpFeats.add(this.bpPool.size());
+				this.bpPool.addAll(bp.features());
+			}
+			return id;
+		}
+
+		private void addRemappedSection(FlatFeatureForest forest, int base, Map<Integer, Integer> featureMap) {
+			int n = forest.numNodes(base);
+			for(int i=0; i<n; i++) {
+				this.nodeFeats.add(this.nodePool.size());
+				addRemapped(forest, forest.nodeFeatureStart(base, i), forest.nodeFeatureStart(base, i+1), 
+						featureMap, this.nodePool);
+				this.nodeBPs.add(this.bpLeft.size());
+				for(int bp=forest.bpStart(base, i); bp<forest.bpStart(base, i+1); bp++) {
+					this.bpLeft.add(forest.bpLeft(base, bp));
+					this.bpRight.add(forest.bpRight(base, bp));
+					this.bpFeats.add(this.bpPool.size());
+					addRemapped(forest, forest.bpFeatureStart(base, bp), forest.bpFeatureStart(base, bp+1), 
+							featureMap, this.bpPool);
+				}
+			}
+		}
+
+		private static void addRemapped(FlatFeatureForest forest, int start, int end, 
+				Map<Integer, Integer> featureMap, IntList pool) {
+			for(int i=start; i<end; i++) {
+				Integer mapped = featureMap.get(forest.buf.get(i));
+				if(mapped != null) {
+					pool.add(mapped);
+				}
+			}
+		}
+
+		private int[] toArray() {
+			int n = this.nodeFeats.size();
+			int m = this.bpLeft.size();
+			// Backpointer features follow the node features in the pool
+			int nodePoolSize = this.nodePool.size();
+			int[] bpStarts = this.bpFeats.toArray();
+			for(int i=0; i<m; i++) {
+				bpStarts[i] += nodePoolSize;
+			}
+			this.nodeFeats.add(nodePoolSize);
+			this.nodeBPs.add(m);
+			IntList out = new IntList();
+			out.add(n);
+			out.add(m);
+			out.addAll(this.nodeFeats.toArray());
+			out.addAll(this.nodeBPs.toArray());
+			out.addAll(this.bpLeft.toArray());
+			out.addAll(this.bpRight.toArray());
+			out.addAll(bpStarts);
+			out.add(nodePoolSize+this.bpPool.size());
+			out.addAll(this.nodePool.toArray());
+			out.addAll(this.bpPool.toArray());
+			return out.toArray();
+		}
+	}
+
+	/**
+	 * Growable int array.
+	 */
+	private static class IntList {
+
+		private int[] values = new int[16];
+		private int size = 0;
+
+		void add(int value) {
+			if(this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, 2*this.size);
+			}
+			this.values[this.size++] = value;
+		}
+
+		void addAll(int[] more) {
+			if(this.size+more.length > this.values.length) {
+				this.values = Arrays.copyOf(this.values, Math.max(2*this.values.length, this.size+more.length));
+			}
+			System.arraycopy(more, 0, this.values, this.size, more.length);
+			this.size += more.length;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(this.values, this.size);
+		}
+	}
+
+	/**
+	 * Viterbi score and backpointer arrays, grown as needed.
+	 */
+	private static class Scratch {
+
+		double[] scores = new double[0];
+		int[] best = new int[0];
+
+		void ensureCapacity(int n) {
+			if(this.scores.length < n) {
+				this.scores = new double[Math.max(n, 2*this.scores.length)];
+				this.best = new int[this.scores.length];
+			}
+		}
+	}
+}
@@ -4,8 +4,7 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -13,31 +12,58 @@ import illinoisParser.AutoDecoder;
 import illinoisParser.Chart;
 import illinoisParser.FineBackPointer;
 import illinoisParser.Sentence;
+import perceptron.parser.AveragedWeightStore;
 import perceptron.parser.PerceptronChart;
 import perceptron.parser.PerceptronParser;
+import perceptron.parser.TrainingForest;
 import perceptron.parser.ccnormalform.NormalFormChartItem;
 
-public class PackedFeatureForest implements Externalizable {
-
-	private FeatureNode root;
-
-	private FeatureTree gold;
+/**
+ * The PackedFeatureForest class stores the packed forest of candidate parses for a training
+ * sentence (as feature sets) together with its gold parse. The forest is built as a graph of 
+ * FeatureNode objects, but stored in the flat struct-of-arrays encoding read by 
+ * {@link FlatFeatureForest} (nodes in topological order, backpointer child indices, and a single
+ * feature ID pool), so Viterbi decoding and weight updates are loops over a single int array.
+ * 
+ * @author ramusa2
+ *
+ */
+public class PackedFeatureForest implements Externalizable, TrainingForest {
+
+	/** Flat encoding of the forest and gold tree **/
+	private int[] data;
+
+	/** View of the encoding (created on first use) **/
+	private transient FlatFeatureForest flat;
 	
 	public PackedFeatureForest(){}
 
-	private PackedFeatureForest(FeatureNode myRoot, FeatureTree myGold) {
-		this.root = myRoot;
-		this.gold = myGold;
+	private PackedFeatureForest(int[] encoded) {
+		this.data = encoded;
 	}
 
 	public PackedFeatureForest(PerceptronChart chart, PerceptronParser parser, boolean addNewFeaturesToParser) {
-		this.gold = buildFeatureTreeFromAuto(chart.getSentence(), parser, addNewFeaturesToParser);
+		FeatureTree gold = buildFeatureTreeFromAuto(chart.getSentence(), parser, addNewFeaturesToParser);
+		FeatureNode root = null;
 		if(chart.successfulFineParse()) {
-			this.root = buildPackedForest(chart, parser, addNewFeaturesToParser);
+			root = buildPackedForest(chart, parser, addNewFeaturesToParser);
 		}
-		else {
-			this.root = null;
+		this.data = FlatFeatureForest.encode(root, gold);
+	}
+
+	private FlatFeatureForest flat() {
+		if(this.flat == null) {
+			this.flat = new FlatFeatureForest(IntBuffer.wrap(this.data), 0);
 		}
+		return this.flat;
+	}
+
+	/**
+	 * Returns the flat encoding of this forest (see FlatFeatureForest); not a copy, 
+	 * so it must not be modified.
+	 */
+	public int[] flatEncoding() {
+		return this.data;
 	}
 
 	private FeatureNode buildPackedForest(PerceptronChart chart,
@@ -103,227 +129,66 @@ public class PackedFeatureForest implements Externalizable {
 	}
 
 	public boolean trainable() {
-		return this.root != null;
+		return this.flat().trainable();
 	}
 
 	public FeatureTree getViterbiTree(PerceptronParser parser) {	
-		if(this.root == null) {
-			return null;
-		}
-		this.calculateViterbi(this.root, parser);
-		return this.buildViterbiTree(this.root);
+		return this.getViterbiTree(parser.weightVector());
 	}
 
-	private void calculateViterbi(FeatureNode node, PerceptronParser parser) {
-		if(node.viterbiScore() != Double.NEGATIVE_INFINITY) {
-			return;
-		}
-		if(node.isLeaf()) {
-			node.checkAndSetViterbi(parser.score(node.features()), null);
-			return;
-		}
-		double nodeScore = parser.score(node.features());
-		for(FeatureBackPointer bp : node.children()) {
-			calculateViterbi(bp.leftChild(), parser);
-			if(!bp.isUnary()) {
-				calculateViterbi(bp.rightChild(), parser);
-			}
-			double score = nodeScore + parser.score(bp.features())
-					+bp.getViterbiScoreOfChildren();
-			node.checkAndSetViterbi(score, bp);
-		}
+	/**
+	 * Returns the Viterbi tree according to the specified weight vector (which need not
+	 * belong to a parser, e.g. a worker's local weights during parallel training).
+	 */
+	public FeatureTree getViterbiTree(double[] weights) {	
+		return this.flat().viterbiTree(weights);
 	}
 
-	private FeatureTree buildViterbiTree(FeatureNode node) {
-		if(node.isLeaf()) {
-			return new FeatureTree(node.features());
-		}
-		FeatureBackPointer bp = node.viterbi();
-		if(bp.isUnary()) {
-			return new FeatureTree(node.features(), 
-					new FeatureTreeBackPointer(bp.features(), 
-							buildViterbiTree(bp.leftChild())));
-		}
-		return new FeatureTree(node.features(), 
-				new FeatureTreeBackPointer(bp.features(), 
-						buildViterbiTree(bp.leftChild()),
-						buildViterbiTree(bp.rightChild())));
+	public FeatureTree getGoldTree() {
+		return this.flat().goldTree();
 	}
 
-	public FeatureTree getGoldTree() {
-		return this.gold;
+	@Override
+	public boolean perceptronUpdate(AveragedWeightStore store, double delta, double c) {
+		return this.flat().perceptronUpdate(store, delta, c);
 	}
 
 	public PackedFeatureForest pruneFeatureForest(PackedFeatureForest unpruned,
 			HashMap<Integer, Integer> featureMap) {
-		FeatureNode newRoot = null;
-		if(this.root != null) {
-			newRoot = pruneFeatureForestRecurse(this.root, featureMap);
-		}
-		else {
+		if(!this.trainable()) {
 			System.out.println("Warning: unpruned feature forest has a null root");
 		}
-		FeatureTree newGold = pruneFeatureTreeRecurse(this.gold, featureMap);
-		return new PackedFeatureForest(newRoot, newGold);
-	}
-
-	private FeatureNode pruneFeatureForestRecurse(FeatureNode node,
-			HashMap<Integer, Integer> featureMap) {
-		FeatureNode cachedNewNode = node.pruned();
-		if(cachedNewNode != null) {
-			return cachedNewNode;
-		}
-		
-		FeatureNode newNode = new FeatureNode(pruneFeatures(node.features(), featureMap));
-		node.setPruned(newNode);
-		if(node.isLeaf()) {
-			return newNode;
-		}
-
-		for(FeatureBackPointer bp : node.children()) {
-			int[] bpFeatures = pruneFeatures(bp.features(), featureMap);
-			
-			FeatureNode B = pruneFeatureForestRecurse(bp.leftChild(), featureMap);
-			FeatureBackPointer fbp;
-			if(bp.isUnary()) {
-				fbp = new FeatureBackPointer(bpFeatures, B);
-			}
-			else {
-				FeatureNode C = pruneFeatureForestRecurse(bp.rightChild(), featureMap);
-				fbp = new FeatureBackPointer(bpFeatures, B, C);
-			}
-			newNode.addChild(fbp);
-		}
-		return newNode;
-	}
-
-	private FeatureTree pruneFeatureTreeRecurse(FeatureTree tree,
-			HashMap<Integer, Integer> featureMap) {
-		if(tree.isLeaf()) {
-			return new FeatureTree(pruneFeatures(tree.features(), featureMap));
-		}
-		FeatureTreeBackPointer bp = tree.backpointer();
-		FeatureTreeBackPointer newBP;
-		if(bp.isUnary()) {
-			FeatureTree newLeft = pruneFeatureTreeRecurse(bp.leftChild(), featureMap);
-			newBP = new FeatureTreeBackPointer(pruneFeatures(bp.features(), featureMap), newLeft);
-		}
-		else {
-			FeatureTree newLeft = pruneFeatureTreeRecurse(bp.leftChild(), featureMap);
-			FeatureTree newRight = pruneFeatureTreeRecurse(bp.rightChild(), featureMap);
-			newBP = new FeatureTreeBackPointer(pruneFeatures(bp.features(), featureMap), newLeft, newRight);
-		}
-		return new FeatureTree(pruneFeatures(tree.features(), featureMap), newBP);
-	}
-
-	private int[] pruneFeatures(int[] originalFeatures, HashMap<Integer, Integer> featureMap) {
-		ArrayList<Integer> feats = new ArrayList<Integer>();
-		for(int f : originalFeatures) {
-			Integer newF = featureMap.get(f);
-			if(newF != null) {
-				feats.add(newF);
-			}
-		}
-		int[] newFeats = new int[feats.size()];
-		for(int f=0; f<feats.size(); f++) {
-			newFeats[f] = feats.get(f);
-		}
-		return newFeats;
+		return new PackedFeatureForest(this.flat().remapFeatures(featureMap));
 	}
 
 	public HashSet<Integer> getActiveFeatures() {
 		HashSet<Integer> active = new HashSet<Integer>();
-		if(this.root != null) {
-			this.getActiveFeaturesRecurse(this.root, active);
-		}
-		this.getGoldFeaturesRecurse(this.gold, active);
+		this.flat().addActiveFeatures(active);
 		return active;
 	}
 
-	private void getGoldFeaturesRecurse(FeatureTree tree,
-			HashSet<Integer> active) {
-		for(int f : tree.features()) {
-			active.add(f);
-		}
-		if(!tree.isLeaf()) {
-			FeatureTreeBackPointer bp = tree.backpointer();
-			for(int f : bp.features()) {
-				active.add(f);
-			}
-			getGoldFeaturesRecurse(bp.leftChild(), active);
-			if(!bp.isUnary()) {
-				getGoldFeaturesRecurse(bp.rightChild(), active);
-			}
-		}
-	}
-
-	private void getActiveFeaturesRecurse(FeatureNode node,
-			HashSet<Integer> active) {
-		if(node.processed()) {
-			return;
-		}
-		node.setProcessed(true);
-		for(int f : node.features()) {
-			active.add(f);
-		}
-		if(!node.isLeaf()) {
-			for(FeatureBackPointer bp : node.children()) {
-				for(int f : bp.features()) {
-					active.add(f);
-				}
-				getActiveFeaturesRecurse(bp.leftChild(), active);
-				if(!bp.isUnary()) {
-					getActiveFeaturesRecurse(bp.rightChild(), active);
-				}
-			}
-		}
-	}
-
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
-		out.writeObject(this.root);
-		out.writeObject(this.gold);
+		out.writeObject(this.data);
 	}
 
 	@Override
 	public void readExternal(ObjectInput in) throws IOException,
 			ClassNotFoundException {
-		this.root = (FeatureNode) in.readObject();
-		this.gold = (FeatureTree) in.readObject();
-	}
-
-	public boolean containsTree(FeatureTree goldTree) {
-		if(this.root == null) {
-			return false;
+		Object first = in.readObject();
+		if(first instanceof int[]) {
+			this.data = (int[]) first;
 		}
-		return checkForestContainsTree(this.root, goldTree);
+		else {
+			// Forests saved before the flat encoding: root node, then gold tree
+			FeatureNode root = (FeatureNode) first;
+			FeatureTree gold = (FeatureTree) in.readObject();
+			this.data = FlatFeatureForest.encode(root, gold);
+		}
+		this.flat = null;
 	}
 
-	private boolean checkForestContainsTree(FeatureNode forestNode,
-			FeatureTree treeNode) {
-		if(!Arrays.equals(forestNode.features(), treeNode.features())) {
-			return false;
-		}
-		if(forestNode.isLeaf() || treeNode.isLeaf()) {
-			return forestNode.isLeaf() && treeNode.isLeaf();
-		}
-		FeatureTreeBackPointer treeBP = treeNode.backpointer();
-		for(FeatureBackPointer bp : forestNode.children()) {
-			if(Arrays.equals(bp.features(), treeBP.features())) {
-				boolean matches = true;
-				if(bp.isUnary() || treeBP.isUnary()) {
-					matches = bp.isUnary() && treeBP.isUnary() 
-							&& checkForestContainsTree(bp.leftChild(), treeBP.leftChild());
-				}
-				else {
-					matches = checkForestContainsTree(bp.leftChild(), treeBP.leftChild())
-							&& checkForestContainsTree(bp.rightChild(), treeBP.rightChild());
-				}
-				if(matches) {
-					return true;
-				}
-			}
-		}
-		return false;
+	public boolean containsTree(FeatureTree goldTree) {
+		return this.flat().containsTree(goldTree);
 	}
 }
@@ -0,0 +1,134 @@
+package perceptron.parser;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The AveragedWeightStore class maintains a perceptron weight vector together with the running
+ * sums needed to compute the averaged weights, using lazy (timestamped) averaging: each feature
+ * stores the sum of its past weights up to the time of its last update, so an update touches only
+ * the updated features and averaging costs O(n) only when a snapshot is taken.
+ *
+ * Time is measured in training examples: the weights in effect while processing example c
+ * (1-based) contribute to the average, and an update made at example c takes effect from example
+ * c+1 on (as in the accumulated-weights formulation w - acc/c).
+ *
+ * @author ramusa2
+ *
+ */
+public class AveragedWeightStore {
+
+	/** Current weights (shared with the parser that owns this store) **/
+	private final double[] weights;
+
+	/** Sum of each feature's weight over all examples before its last update **/
+	private final double[] totals;
+
+	/** Example count at each feature's last update **/
+	private final double[] lastUpdate;
+
+	/**
+	 * Creates a store for the specified weight vector (which is updated in place).
+	 *
+	 * @param currentWeights	the weight vector
+	 * @param startCount		number of examples already seen (the averages cover later examples only)
+	 */
+	public AveragedWeightStore(double[] currentWeights, double startCount) {
+		this.weights = currentWeights;
+		this.totals = new double[currentWeights.length];
+		this.lastUpdate = new double[currentWeights.length];
+		if(startCount != 0.0) {
+			Arrays.fill(this.lastUpdate, startCount);
+		}
+	}
+
+	/**
+	 * Returns the current weight vector (not a copy).
+	 */
+	public double[] weights() {
+		return this.weights;
+	}
+
+	/**
+	 * Changes the weight of every listed feature by delta (repeated features are changed repeatedly).
+	 *
+	 * @param feats		features to change
+	 * @param delta		value to change each weight by
+	 * @param c			number of examples seen so far (including the current one)
+	 */
+	public final void update(int[] feats, double delta, double c) {
+		for(int f : feats) {
+			this.totals[f] += this.weights[f]*(c - this.lastUpdate[f]);
+			this.lastUpdate[f] = c;
+			this.weights[f] += delta;
+		}
+	}
+
+	/**
+	 * Changes the weight of the features stored in positions start (inclusive) to end (exclusive) 
+	 * of a buffer by delta, as above.
+	 */
+	public final void update(IntBuffer feats, int start, int end, double delta, double c) {
+		for(int i=start; i<end; i++) {
+			int f = feats.get(i);
+			this.totals[f] += this.weights[f]*(c - this.lastUpdate[f]);
+			this.lastUpdate[f] = c;
+			this.weights[f] += delta;
+		}
+	}
+
+	/**
+	 * Returns the sum of a feature's weight over the first c examples.
+	 */
+	private double total(int f, double c) {
+		return this.totals[f] + this.weights[f]*(c - this.lastUpdate[f]);
+	}
+
+	/**
+	 * Returns the averaged weight of a feature after c examples.
+	 */
+	public double averagedWeight(int f, double c) {
+		if(c == 0.0) {
+			return this.weights[f];
+		}
+		return this.total(f, c)/c;
+	}
+
+	/**
+	 * Returns the averaged weight vector after c examples.
+	 */
+	public double[] averagedWeights(double c) {
+		double[] averaged = new double[this.weights.length];
+		for(int f=0; f<averaged.length; f++) {
+			averaged[f] = this.averagedWeight(f, c);
+		}
+		return averaged;
+	}
+
+	/**
+	 * Replaces the weights with the uniform mixture of a set of worker stores, which each started
+	 * from this store's weights at example startCount and saw a disjoint subset of the examples up to
+	 * endCount (see PerceptronParser.trainOnPackedForests). The mixed weight vector at any example
+	 * is the average of the workers' weight vectors at that example, so the running sums are mixed
+	 * the same way.
+	 *
+	 * @param workers		the workers' stores
+	 * @param startCount	example count when the workers were created
+	 * @param endCount		example count after the last worker example
+	 */
+	public void mix(Collection<AveragedWeightStore> workers, double startCount, double endCount) {
+		double k = workers.size();
+		for(int f=0; f<this.weights.length; f++) {
+			double sumWeights = 0.0;
+			double sumTotals = 0.0;
+			for(AveragedWeightStore worker : workers) {
+				sumWeights += worker.weights[f];
+				sumTotals += worker.total(f, endCount);
+			}
+			this.totals[f] = this.total(f, startCount) + sumTotals/k;
+			this.lastUpdate[f] = endCount;
+			this.weights[f] = sumWeights/k;
+		}
+	}
+}
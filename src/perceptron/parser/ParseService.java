@@ -0,0 +1,236 @@
+package perceptron.parser;
+
+import illinoisParser.FineChartItem;
+import illinoisParser.ParseResult;
+import illinoisParser.Sentence;
+import illinoisParser.Tree;
+import illinoisParser.Util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import supertagger.SupertagAssignment;
+import supertagger.lewissteedman.LSSupertagger;
+
+/**
+ * The ParseService class parses a collection of sentences on a fixed pool of worker threads
+ * that share a single (read-only) parser, grammar and supertagger. Each worker builds its own
+ * charts, and results are returned in the same order as the input sentences.
+ *
+ * Supertagging, coarse parsing and fine parsing all run concurrently (the supertagger's
+ * inference path does not modify the tagger).
+ *
+ * @author ramusa2
+ *
+ */
+public class ParseService {
+
+	/** Marker written in place of a parse when parsing fails **/
+	public static final String PARSE_FAILURE = "PARSE_FAILURE";
+
+	/** Marker written in place of a parse when a sentence exceeds the maximum length **/
+	public static final String TOO_LONG = "TOO_LONG";
+
+	/** The parser shared by all workers **/
+	private final PerceptronParser parser;
+
+	/** The supertagger shared by all workers **/
+	private final LSSupertagger tagger;
+
+	/** Number of worker threads **/
+	private final int numThreads;
+
+	/** Worker thread pool **/
+	private final ExecutorService pool;
+
+	/**
+	 * Creates a new parse service with the specified number of worker threads.
+	 *
+	 * @param sharedParser		parser used by every worker (must not be trained while the service is running)
+	 * @param sharedTagger		supertagger used by every worker
+	 * @param numberOfThreads	number of worker threads (values below one use one thread per available core)
+	 */
+	public ParseService(PerceptronParser sharedParser, LSSupertagger sharedTagger, int numberOfThreads) {
+		this.parser = sharedParser;
+		this.tagger = sharedTagger;
+		if(numberOfThreads < 1) {
+			numberOfThreads = Runtime.getRuntime().availableProcessors();
+		}
+		this.numThreads = numberOfThreads;
+		this.pool = Executors.newFixedThreadPool(this.numThreads);
+	}
+
+	/**
+	 * Parses every sentence using adaptive supertagging (starting at beta), and returns
+	 * the results in the same order as the input collection.
+	 *
+	 * @param sentences		sentences to parse
+	 * @param beta			initial beta value used for multitagging
+	 * @param maxLength		length of the longest sentence to parse (longer sentences are skipped)
+	 * @return				a list of parse outputs, one per input sentence (a sentence whose worker
+	 * 						failed gets a PARSE_FAILURE output)
+	 */
+	public ArrayList<ParseOutput> parseAll(Collection<Sentence> sentences, double beta, int maxLength) {
+		final int total = sentences.size();
+		final AtomicInteger finished = new AtomicInteger(0);
+		ArrayList<Sentence> inputs = new ArrayList<Sentence>(sentences);
+		ArrayList<Future<ParseOutput>> futures = new ArrayList<Future<ParseOutput>>(total);
+		for(Sentence sen : inputs) {
+			futures.add(this.pool.submit(new ParseCallable(sen, beta, maxLength, finished, total)));
+		}
+		ArrayList<ParseOutput> results = new ArrayList<ParseOutput>(total);
+		for(int s=0; s<futures.size(); s++) {
+			try {
+				results.add(futures.get(s).get());
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				System.out.println("Interrupted while waiting for parse of sentence: "+inputs.get(s));
+				results.add(failure(inputs.get(s)));
+			}
+			catch(ExecutionException e) {
+				System.out.println("Failed to retrieve parse from worker thread for sentence: "+inputs.get(s));
+				e.printStackTrace();
+				results.add(failure(inputs.get(s)));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Stops the worker threads; the service cannot be used after this call.
+	 */
+	public void shutdown() {
+		this.pool.shutdown();
+	}
+
+	/**
+	 * Returns the number of worker threads used by this service.
+	 */
+	public int numberOfThreads() {
+		return this.numThreads;
+	}
+
+	/**
+	 * Tags and parses a single sentence, and formats the output strings.
+	 */
+	private ParseOutput parseSentence(Sentence sen, double beta, int maxLength) {
+		if(sen.length() > maxLength) {
+			return new ParseOutput(sen, null, TOO_LONG, TOO_LONG, TOO_LONG);
+		}
+		// The tagger's inference path is stateless, so worker threads share it without locking
+		SupertagAssignment tags = this.tagger.tagSentence(sen);
+		Tree<? extends FineChartItem> vit = this.parser.parse(tags, beta);
+		if(vit == null) {
+			return failure(sen);
+		}
+		ParseResult pr = new ParseResult(sen, vit, false);
+		StringBuilder sb = new StringBuilder();
+		Util.buildAUTORecurse(sb, sen, this.parser.grammar(), pr.getViterbiParse());
+		return new ParseOutput(sen, vit, sb.toString().trim(),
+				pr.viterbiCCGDependencies(), vit.buildPargString(sen));
+	}
+
+	/**
+	 * Returns the output for a sentence that failed to parse.
+	 */
+	private static ParseOutput failure(Sentence sen) {
+		return new ParseOutput(sen, null, PARSE_FAILURE, PARSE_FAILURE, PARSE_FAILURE);
+	}
+
+	/**
+	 * Task wrapper for parsing a single sentence on a worker thread.
+	 */
+	private class ParseCallable implements Callable<ParseOutput> {
+
+		private final Sentence sentence;
+		private final double beta;
+		private final int maxLength;
+		private final AtomicInteger finished;
+		private final int total;
+
+		ParseCallable(Sentence sen, double initialBeta, int maxSentenceLength,
+				AtomicInteger numFinished, int numTotal) {
+			this.sentence = sen;
+			this.beta = initialBeta;
+			this.maxLength = maxSentenceLength;
+			this.finished = numFinished;
+			this.total = numTotal;
+		}
+
+		@Override
+		public ParseOutput call() {
+			ParseOutput output;
+			try {
+				output = parseSentence(this.sentence, this.beta, this.maxLength);
+			}
+			catch(Exception e) {
+				System.out.println("Failed to parse sentence: "+this.sentence);
+				e.printStackTrace();
+				output = failure(this.sentence);
+			}
+			int count = this.finished.incrementAndGet();
+			if(count % 100 == 0) {
+				System.out.println("Parsed "+count+" out of "+this.total+" sentences.");
+			}
+			return output;
+		}
+	}
+
+	/**
+	 * Stores the formatted output of a single parse.
+	 */
+	public static class ParseOutput {
+
+		private final Sentence sentence;
+		private final Tree<? extends FineChartItem> viterbi;
+		private final String auto;
+		private final String deps;
+		private final String parg;
+
+		ParseOutput(Sentence sen, Tree<? extends FineChartItem> vit, String autoString,
+				String depString, String pargString) {
+			this.sentence = sen;
+			this.viterbi = vit;
+			this.auto = autoString;
+			this.deps = depString;
+			this.parg = pargString;
+		}
+
+		/** Returns the input sentence **/
+		public Sentence sentence() {
+			return this.sentence;
+		}
+
+		/** Returns the Viterbi parse, or null if the sentence was skipped or failed to parse **/
+		public Tree<? extends FineChartItem> viterbi() {
+			return this.viterbi;
+		}
+
+		/** Returns true iff the sentence was parsed **/
+		public boolean succeeded() {
+			return this.viterbi != null;
+		}
+
+		/** Returns the Viterbi parse in AUTO format (or a failure marker) **/
+		public String auto() {
+			return this.auto;
+		}
+
+		/** Returns the CCG dependencies of the Viterbi parse (or a failure marker) **/
+		public String dependencies() {
+			return this.deps;
+		}
+
+		/** Returns the PARG entry for the Viterbi parse (or a failure marker) **/
+		public String parg() {
+			return this.parg;
+		}
+	}
+}
@@ -52,6 +52,21 @@ public class PerceptronChart extends Chart implements Externalizable {
 		verbDistance = (int[]) in.readObject();
 	}
 
+	@Override
+	public void readCompact(ObjectInput in) throws IOException,
+	ClassNotFoundException {
+		super.readCompact(in);
+		punctDistance = (int[]) in.readObject();
+		verbDistance = (int[]) in.readObject();
+	}
+
+	@Override
+	public void writeCompact(ObjectOutput out) throws IOException {
+		super.writeCompact(out);
+		out.writeObject(punctDistance);
+		out.writeObject(verbDistance);
+	}
+
 	@Override
 	public void writeExternal(ObjectOutput out) throws IOException {
 		// TODO: do we need to store grammar?
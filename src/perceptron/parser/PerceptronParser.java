@@ -12,21 +12,34 @@ import illinoisParser.Sentence;
 import illinoisParser.SupervisedParsingConfig;
 import illinoisParser.Tree;
 import illinoisParser.variables.ConditioningVariables;
+import illinoisParser.variables.VariableKeys;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import perceptron.core.representations.parsing.FeatureTree;
-import perceptron.core.representations.parsing.FeatureTreeBackPointer;
 import perceptron.core.representations.parsing.PackedFeatureForest;
 import perceptron.parser.ccnormalform.NormalFormChartItem;
 import perceptron.parser.ccnormalform.NormalFormPerceptronParser;
+import perceptron.parser.io.MappedFeatureWeights;
 import perceptron.parser.training.PPFeatureExtractor;
 
 import eval.DepSet;
@@ -35,6 +48,7 @@ import supertagger.CandCSupertaggerWrapper;
 import supertagger.LexicalCategoryEntry;
 import supertagger.SupertagAssignment;
 import supertagger.lewissteedman.LSSupertagger;
+import util.LongIntOpenHashMap;
 import util.serialization.SerializedData;
 
 /**
@@ -67,11 +81,20 @@ public abstract class PerceptronParser {
 	/** Stores feature descriptions at the index corresponding to the weight vector **/
 	private ArrayList<ConditioningVariables> featureList;
 
+	/** Maps packed feature keys (see VariableKeys) to the corresponding index in the feature vector **/
+	private LongIntOpenHashMap packedFeatureIndices;
+
 	/** Stores the model's feature weights **/
 	private double[] weights;
+
+	/** Read-only weights served from a memory-mapped binary model file (null unless loaded with loadBinary) **/
+	private MappedFeatureWeights mappedWeights;
 	
-	/** Stores the accumulated weights used in training the averaged perceptron **/
-	private double[] accumulatedWeights;
+	/** Stores the running sums used in training the averaged perceptron (wraps weights) **/
+	private AveragedWeightStore averagedWeights;
+
+	/** Feature order used for binary snapshots during training (computed on first use) **/
+	private MappedFeatureWeights.Layout snapshotLayout;
 	
 	/** Stores the number of examples seen during training **/
 	private double count;
@@ -92,6 +115,7 @@ public abstract class PerceptronParser {
 		this.parserConfig = coarseParsingConfig;
 		this.featureIndices = new HashMap<ConditioningVariables, Integer>();
 		this.featureList = new ArrayList<ConditioningVariables>();
+		this.packedFeatureIndices = new LongIntOpenHashMap();
 		this.saveDir = "";
 		this.weights = null; // not set until we know how many (and which) features to use
 	}
@@ -107,89 +131,32 @@ public abstract class PerceptronParser {
 	 */
 	public Tree<? extends FineChartItem> parse(Sentence sentence,
 			LSSupertagger supertagger) {
-		// Coarse parse with adaptive supertagging
-		PerceptronChart chart = null;
-		try {
-			for(int b=0; b<betas.length; b++) {
-				chart = new PerceptronChart(sentence, grammar);
-				SupertagAssignment tags = supertagger.tagSentence(sentence, betas[b]);	
-				chart.coarseParseWithSupertags(grammar, parserConfig, tags, false);
-				if(chart.successfulCoarseParse()) {
-					break;
-				}
-			}
-			if(chart != null && chart.successfulCoarseParse()) {
-				chart.fineParseWithPerceptronModel(this, true);
-				if(chart.successfulFineParse()) {
-					return chart.getViterbiParse();
-				}
-				else {
-					System.out.println("Unsuccessful fine parse");
-				}
-			}
-			else {
-				System.out.println("Unsuccessful coarse parse");
-			}
-		}catch (Exception e) {
-			System.out.println("Failed to parse sentence: "+sentence);
-			e.printStackTrace();
-		}
-		return null;
+		return this.parse(sentence, supertagger, betas[0]);
 	}
-	
 
+	/**
+	 * Given a sentence, uses adaptive supertagging (starting at beta) to find a set of lexical 
+	 * categories that produces at least one complete parse (if one exists), then returns the 
+	 * Viterbi parse tree according to the current feature weights. The supertagger is only
+	 * run once per sentence.
+	 * 
+	 * @param sentence		the sentence to parse
+	 * @param supertagger	EasyCCG supertagger
+	 * @param beta			initial beta value used for multitagging
+	 * @return				a Tree object representing the Viterbi parse
+	 */
 	public Tree<? extends FineChartItem> parse(Sentence sentence,
 			LSSupertagger supertagger, double beta) {
-		// Coarse parse with adaptive supertagging
-		PerceptronChart chart = null;
+		SupertagAssignment tagged;
 		try {
-
-			chart = new PerceptronChart(sentence, grammar);
-			SupertagAssignment tags = supertagger.tagSentence(sentence, beta);	
-			chart.coarseParseWithSupertags(grammar, parserConfig, tags, false);
-			if(chart.successfulCoarseParse()) {
-				if(chart != null && chart.successfulCoarseParse()) {
-					chart.fineParseWithPerceptronModel(this, true);
-					if(chart.successfulFineParse()) {
-						return chart.getViterbiParse();
-					}
-					else {
-						System.out.println("Unsuccessful fine parse");
-					}
-				}
-				else {
-					System.out.println("Unsuccessful coarse parse");
-				}
-			}
-			
-			for(int b=0; b<betas.length; b++) {
-				if(betas[b] >= beta) {
-					continue;
-				}
-				chart = new PerceptronChart(sentence, grammar);
-				tags = supertagger.tagSentence(sentence, betas[b]);	
-				chart.coarseParseWithSupertags(grammar, parserConfig, tags, false);
-				if(chart.successfulCoarseParse()) {
-					break;
-				}
-			}
-			if(chart != null && chart.successfulCoarseParse()) {
-				chart.fineParseWithPerceptronModel(this, true);
-				if(chart.successfulFineParse()) {
-					return chart.getViterbiParse();
-				}
-				else {
-					System.out.println("Unsuccessful fine parse");
-				}
-			}
-			else {
-				System.out.println("Unsuccessful coarse parse");
-			}
-		}catch (Exception e) {
-			System.out.println("Failed to parse sentence: "+sentence);
+			tagged = supertagger.tagSentence(sentence);
+		}
+		catch (Exception e) {
+			System.out.println("Failed to supertag sentence: "+sentence);
 			e.printStackTrace();
+			return null;
 		}
-		return null;
+		return this.parse(tagged, beta);
 	}
 	
 	/**
@@ -233,19 +200,39 @@ public abstract class PerceptronParser {
 	}
 
 	public Tree<? extends FineChartItem> parse(SupertagAssignment tagged) {
-		// Coarse parse with adaptive supertagging
+		return this.parse(tagged, betas[0]);
+	}
+
+	/**
+	 * Given the full supertag distribution for a sentence, coarse parses using the lexical categories
+	 * within beta of the best category (backing off to the smaller default betas if the coarse parse fails),
+	 * then returns the Viterbi parse tree according to the current feature weights.
+	 * 
+	 * When the coarse parse fails, the chart is extended with the categories admitted by the next 
+	 * beta rather than rebuilt. This method does not call the supertagger, so it can be used by
+	 * several threads that share a single parser (the parser's weights and grammar are only 
+	 * read during parsing).
+	 * 
+	 * @param tagged	the full supertag distribution for the sentence to parse
+	 * @param beta		initial beta value used for multitagging
+	 * @return			a Tree object representing the Viterbi parse
+	 */
+	public Tree<? extends FineChartItem> parse(SupertagAssignment tagged, double beta) {
 		Sentence sentence = tagged.sentence();
 		PerceptronChart chart = null;
 		try {
-			for(int b=0; b<betas.length; b++) {
-				chart = new PerceptronChart(sentence, grammar);
-				SupertagAssignment tags = filterTags(tagged, betas[b]);	
-				chart.coarseParseWithSupertags(grammar, parserConfig, tags, false);
-				if(chart.successfulCoarseParse()) {
-					break;
+			chart = new PerceptronChart(sentence, grammar);
+			chart.coarseParseWithSupertags(grammar, parserConfig, filterTags(tagged, beta), false);
+			double previousBeta = beta;
+			for(int b=0; b<betas.length && !chart.successfulCoarseParse(); b++) {
+				if(betas[b] >= beta) {
+					continue;
 				}
+				// Add only the newly admitted lexical categories to the existing chart
+				chart.extendCoarseParseWithSupertags(filterTags(tagged, betas[b], previousBeta));
+				previousBeta = betas[b];
 			}
-			if(chart != null && chart.successfulCoarseParse()) {
+			if(chart.successfulCoarseParse()) {
 				chart.fineParseWithPerceptronModel(this, true);
 				if(chart.successfulFineParse()) {
 					return chart.getViterbiParse();
@@ -264,17 +251,34 @@ public abstract class PerceptronParser {
 		return null;
 	}
 
+	/**
+	 * Returns the lexical categories within beta of the best category that were not within
+	 * previousBeta of the best category (i.e. the categories admitted by widening the beam).
+	 */
+	private SupertagAssignment filterTags(SupertagAssignment full, double beta, double previousBeta) {
+		SupertagAssignment tags = new SupertagAssignment(full.sentence());
+		for(int i=0; i<full.sentence().length(); i++) {
+			double best = full.getBest(i).score();
+			double cutoff = best*beta;
+			double previousCutoff = best*previousBeta;
+			for(LexicalCategoryEntry entry : full.getAll(i)) {
+				if(entry.score() >= cutoff && entry.score() < previousCutoff) {
+					tags.addLexcat(i, entry);
+				}
+			}
+		}
+		return tags;
+	}
+
 	private SupertagAssignment filterTags(SupertagAssignment full, double beta) {
 		SupertagAssignment tags = new SupertagAssignment(full.sentence());
 		for(int i=0; i<full.sentence().length(); i++) {
 			double cutoff = full.getBest(i).score()*beta;;
 			for(LexicalCategoryEntry entry : full.getAll(i)) {
+				// getAll() is not sorted (it is a copy of a PriorityQueue), so check every entry
 				if(entry.score() >= cutoff) {
 					tags.addLexcat(i, entry);
 				}
-				else {
-					break;
-				}
 			}
 		}
 		return tags;
@@ -326,8 +330,8 @@ public abstract class PerceptronParser {
 			pw.println(this.weights == null ? -1 : this.weights.length);
 			for(ConditioningVariables f : this.featureIndices.keySet()) {
 				Integer featureIndex = this.featureIndices.get(f);
-				if(this.accumulatedWeights != null) {
-					double weight = this.weights[featureIndex] -( this.accumulatedWeights[featureIndex] / c);
+				if(this.averagedWeights != null) {
+					double weight = this.averagedWeights.averagedWeight(featureIndex, c);
 					pw.println(featureIndex+"  "+weight+"  "+f);
 				}
 				else {
@@ -343,19 +347,67 @@ public abstract class PerceptronParser {
 		}
 	}
 
+	/**
+	 * Saves binary snapshots (see saveBinary) of the current and averaged weights at the end of a 
+	 * training iteration; the feature layout is computed once per training run.
+	 * 
+	 * @param iteration		the (1-based) training iteration
+	 */
+	private void saveIterationSnapshots(int iteration) {
+		try {
+			if(this.snapshotLayout == null) {
+				this.snapshotLayout = new MappedFeatureWeights.Layout(this.featureList);
+			}
+			String prefix = this.saveDir+File.separator+"iter_"+iteration+"_saved_parser";
+			this.snapshotLayout.write(new File(prefix+".bin"), this.NAME, this.weights);
+			this.snapshotLayout.write(new File(prefix+".averaged.bin"), this.NAME, 
+					this.averagedWeights.averagedWeights(this.count));
+		} catch (IOException e) {
+			System.out.println("Failed to save parser snapshot for iteration "+iteration);
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Uses perceptron updates to learn the model's feature weights. Saves the final
 	 * model to disk; also saves a copy of the model after each training iteration to disk.
-	 * Both averaged and unaveraged models are saved.
+	 * Both averaged and unaveraged models are saved (per-iteration copies use the binary format).
 	 * 
 	 * @param data				serialized packed feature forests forests (training data)
 	 * @param numIterations		the number of iterations through the data
 	 * @param maxLength			length of longest sentence to use in training
 	 */
-	public void trainOnPackedForests(SerializedData<PackedFeatureForest> data,
+	public void trainOnPackedForests(SerializedData<? extends TrainingForest> data,
 			int numIterations, int maxLength) {
-		this.accumulatedWeights = new double[this.weights.length];
+		this.trainOnPackedForests(data, numIterations, maxLength, 1);
+	}
+
+	/**
+	 * Uses perceptron updates to learn the model's feature weights, as above. If numThreads
+	 * is greater than one, each iteration uses iterative parameter mixing (McDonald, Hall and Mann, 2010):
+	 * the forests are dealt round-robin to numThreads workers, each worker runs perceptron updates 
+	 * on its shard starting from the current weights, and the workers' weight vectors are averaged 
+	 * (uniform mixing) at the end of the iteration. 
+	 * 
+	 * Averaging covers the mixed weight vectors: each worker keeps its own AveragedWeightStore, 
+	 * timestamped with the example counts a sequential pass would use, and the stores' running sums
+	 * are mixed along with the weights (see AveragedWeightStore.mix). Each worker keeps three 
+	 * weight-sized vectors. If a worker fails, a RuntimeException is thrown at the end of that
+	 * iteration (so the model is not saved as if training had finished).
+	 * 
+	 * @param data				serialized packed feature forests forests (training data)
+	 * @param numIterations		the number of iterations through the data
+	 * @param maxLength			length of longest sentence to use in training
+	 * @param numThreads		number of workers (shards) per iteration
+	 */
+	public void trainOnPackedForests(SerializedData<? extends TrainingForest> data,
+			int numIterations, int maxLength, int numThreads) {
+		if(numThreads > 1) {
+			this.trainOnPackedForestsWithParameterMixing(data, numIterations, numThreads);
+			return;
+		}
 		this.count = 0.0;
+		this.averagedWeights = new AveragedWeightStore(this.weights, this.count);
 		PrintWriter pw = null;
 		try {
 			pw = new PrintWriter(new File(this.saveDir+File.separator+"update_indices.txt"));
@@ -366,10 +418,10 @@ public abstract class PerceptronParser {
 		for(int T=0; T<numIterations; T++) {
 			long startTime = System.nanoTime();    
 			int j=0;
-			PackedFeatureForest packed = null;
+			TrainingForest packed = null;
 			while((packed = data.next()) != null) {
 				this.count++;
-				boolean updated = this.update(packed, this.count);
+				boolean updated = update(packed, this.count, this.averagedWeights);
 				if(updated) {
 					pw.println(this.count);
 				}
@@ -379,8 +431,7 @@ public abstract class PerceptronParser {
 				}
 			}
 			System.out.println("Finished iteration "+(T+1));
-			this.save("iter_"+(T+1)+"_saved_parser.txt");
-			this.saveAveragedWeights("iter_"+(T+1)+"_saved_parser.averaged.txt", count);
+			this.saveIterationSnapshots(T+1);
 
 			long estimatedTime = System.nanoTime() - startTime;
 			System.out.println("Iteration took "+estimatedTime/Math.pow(10, 9)+" seconds.");
@@ -392,64 +443,183 @@ public abstract class PerceptronParser {
 	}
 
 	/**
-	 * Uses the current feature weights to obtain a Viterbi parse, then checks 
-	 * whether that parse is equal to the gold parse. If not, upweight features
-	 * that are active in the gold parses and downweight features active in the
-	 * Viterbi parse.
-	 * 
-	 * @param forest	packed feature forests for this training example
-	 * @param c			number of examples seen so far
-	 * @return			true iff the weight vector was changed
+	 * Perceptron training with iterative parameter mixing (see trainOnPackedForests).
 	 */
-	private boolean update(PackedFeatureForest forest, double c) {	
-		FeatureTree viterbi = forest.getViterbiTree(this);
-		if(viterbi == null) {
-			return false;
+	private void trainOnPackedForestsWithParameterMixing(SerializedData<? extends TrainingForest> data,
+			int numIterations, int numThreads) {
+		this.count = 0.0;
+		this.averagedWeights = new AveragedWeightStore(this.weights, this.count);
+		PrintWriter pw = null;
+		try {
+			pw = new PrintWriter(new File(this.saveDir+File.separator+"update_indices.txt"));
 		}
-		FeatureTree gold = forest.getGoldTree();
-		if(!gold.matches(viterbi)) {
-			this.updateWeightsFromFeatureTree(viterbi, -LR, c);
-			this.updateWeightsFromFeatureTree(gold, LR, c);
-			return true;
+		catch(Exception e) {
+			System.out.println("Failed to open update index log.");
 		}
-		return false;
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		for(int T=0; T<numIterations; T++) {
+			long startTime = System.nanoTime();
+			// Each worker starts the iteration from the current (mixed) weights
+			ArrayList<ShardTrainer> shards = new ArrayList<ShardTrainer>(numThreads);
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+			for(int k=0; k<numThreads; k++) {
+				ShardTrainer shard = new ShardTrainer(new AveragedWeightStore(this.weights.clone(), this.count));
+				shards.add(shard);
+				futures.add(pool.submit(shard));
+			}
+			// Deal forests round-robin to the workers
+			int j=0;
+			TrainingForest packed = null;
+			try {
+				while((packed = data.next()) != null) {
+					enqueue(shards.get(j % numThreads), futures.get(j % numThreads), new IndexedForest(packed, this.count+j+1));
+					j++;
+					if(j%100 == 0) {
+						System.out.println("Iteration "+(T+1)+": queued "+j+" sentences out of "+data.size());
+					}
+				}
+				for(int k=0; k<numThreads; k++) {
+					enqueue(shards.get(k), futures.get(k), IndexedForest.END);
+				}
+				for(Future<?> future : futures) {
+					future.get();
+				}
+				for(ShardTrainer shard : shards) {
+					if(shard.failure != null) {
+						throw shard.failure;
+					}
+				}
+			}
+			catch(Exception e) {
+				// Don't let the caller save a partially trained model
+				System.out.println("Failed to train on shard during iteration "+(T+1)+".");
+				pool.shutdownNow();
+				if(pw != null) {
+					pw.close();
+				}
+				data.close();
+				throw new RuntimeException("Failed to train on shard during iteration "+(T+1)+".", 
+						(e instanceof ExecutionException) ? e.getCause() : e);
+			}
+			// Mix: average the workers' weights and running sums
+			ArrayList<AveragedWeightStore> workerWeights = new ArrayList<AveragedWeightStore>(numThreads);
+			ArrayList<Double> updatedIndices = new ArrayList<Double>();
+			for(ShardTrainer shard : shards) {
+				workerWeights.add(shard.store);
+				updatedIndices.addAll(shard.updatedIndices);
+			}
+			this.averagedWeights.mix(workerWeights, this.count, this.count+j);
+			this.count += j;
+			if(pw != null) {
+				Collections.sort(updatedIndices);
+				for(Double c : updatedIndices) {
+					pw.println(c);
+				}
+			}
+			System.out.println("Finished iteration "+(T+1)+" ("+numThreads+" shards)");
+			this.saveIterationSnapshots(T+1);
+
+			long estimatedTime = System.nanoTime() - startTime;
+			System.out.println("Iteration took "+estimatedTime/Math.pow(10, 9)+" seconds.");
+			System.out.println("Saved perceptron model");
+			data.reset();
+		}
+		pool.shutdown();
+		if(pw != null) {
+			pw.close();
+		}
+		data.close();
 	}
 
 	/**
-	 * Recurses down a parse tree and increments (or decrements) the
-	 * weight for every active feature; if a feature occurs multiple times in the tree,
-	 * its weight will be adjusted multiple times. 
-	 * 
-	 * @param tree		parse tree
-	 * @param delta		value to change the weight be (increment if delta is positive, decrement if negative)
-	 * @param c			number of examples seen so far
+	 * Adds an example to a shard's queue, waiting while the queue is full. If the shard's worker
+	 * has stopped (e.g. with an Error), its queue will never drain, so the worker's failure is
+	 * thrown instead of blocking forever.
 	 */
-	private void updateWeightsFromFeatureTree(FeatureTree tree, double delta, double c) {
-		this.updateWeights(tree.features(), delta, c);
-		if(!tree.isLeaf()) {
-			FeatureTreeBackPointer bp = tree.backpointer();
-			this.updateWeights(bp.features(), delta, c);
-			this.updateWeightsFromFeatureTree(bp.leftChild(), delta, c);
-			if(!bp.isUnary()) {
-				this.updateWeightsFromFeatureTree(bp.rightChild(), delta, c);
+	private static void enqueue(ShardTrainer shard, Future<?> worker, IndexedForest item) 
+			throws InterruptedException, ExecutionException {
+		while(!shard.queue.offer(item, 1, TimeUnit.SECONDS)) {
+			if(worker.isDone()) {
+				worker.get();
+				throw new IllegalStateException("Shard worker stopped before the end of its shard.");
 			}
 		}
 	}
 
 	/**
-	 * Helper method for changing weights.
-	 * 
-	 * @param feats		list of features to change
-	 * @param delta		value to change weight by
-	 * @param c			number of examples seen
+	 * A training example paired with its (1-based) position in the sequential order of examples.
 	 */
-	private final void updateWeights(int[] feats, double delta, double c) {
-		for(int f : feats) {
-			this.weights[f] += delta;
-			this.accumulatedWeights[f] += delta*c;
+	private static class IndexedForest {
+
+		/** Marks the end of a shard **/
+		static final IndexedForest END = new IndexedForest(null, -1.0);
+
+		final TrainingForest forest;
+		final double index;
+
+		IndexedForest(TrainingForest packed, double c) {
+			this.forest = packed;
+			this.index = c;
+		}
+	}
+
+	/**
+	 * Runs perceptron updates on one shard of the training data, using a local weight store.
+	 */
+	private static class ShardTrainer implements Runnable {
+
+		/** Number of forests that may be queued for a worker **/
+		private static final int QUEUE_CAPACITY = 16;
+
+		final BlockingQueue<IndexedForest> queue = new ArrayBlockingQueue<IndexedForest>(QUEUE_CAPACITY);
+		final AveragedWeightStore store;
+		final ArrayList<Double> updatedIndices = new ArrayList<Double>();
+
+		/** First exception thrown by an update (rethrown by the dispatcher), or null **/
+		volatile RuntimeException failure;
+
+		ShardTrainer(AveragedWeightStore localStore) {
+			this.store = localStore;
+		}
+
+		@Override
+		public void run() {
+			try {
+				IndexedForest next;
+				while((next = this.queue.take()) != IndexedForest.END) {
+					if(this.failure != null) {
+						// Keep draining the shard, so the dispatcher never blocks on a full queue
+						continue;
+					}
+					try {
+						if(update(next.forest, next.index, this.store)) {
+							this.updatedIndices.add(next.index);
+						}
+					}
+					catch(RuntimeException e) {
+						System.out.println("Failed to update weights for training example "+next.index);
+						this.failure = e;
+					}
+				}
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
+	/**
+	 * Runs a perceptron update on a single training example (see TrainingForest.perceptronUpdate).
+	 * 
+	 * @param forest	packed feature forests for this training example
+	 * @param c			number of examples seen so far
+	 * @param store		weights to score with and update
+	 * @return			true iff the weight vector was changed
+	 */
+	private static boolean update(TrainingForest forest, double c, AveragedWeightStore store) {
+		return forest.perceptronUpdate(store, LR, c);
+	}
+
 	/**
 	 * Returns the sum of the weights for a collection of features (allows repeats).
 	 * 
@@ -471,6 +641,9 @@ public abstract class PerceptronParser {
 	 * @return			that feature's current weight
 	 */
 	public double weight(ConditioningVariables feature) {
+		if(this.mappedWeights != null) {
+			return this.mappedWeights.weight(feature);
+		}
 		Integer featureIndex = this.featureIndices.get(feature);
 		if(featureIndex == null) {
 			return 0.0;
@@ -478,6 +651,24 @@ public abstract class PerceptronParser {
 		return this.weight(featureIndex);
 	}
 
+	/**
+	 * Returns the current weight for a single feature specified by its packed key
+	 * (see VariableKeys); does not allocate.
+	 * 
+	 * @param packedFeature		the packed key of the feature to look up
+	 * @return					that feature's current weight
+	 */
+	public final double packedWeight(long packedFeature) {
+		if(this.mappedWeights != null) {
+			return this.mappedWeights.weight(packedFeature);
+		}
+		int featureIndex = this.packedFeatureIndices.get(packedFeature);
+		if(featureIndex == LongIntOpenHashMap.MISSING) {
+			return 0.0;
+		}
+		return this.weight(featureIndex);
+	}
+
 	/**
 	 * Returns the current weight for a single feature specified by its index.
 	 * 
@@ -492,6 +683,13 @@ public abstract class PerceptronParser {
 		return this.weights[featureIndex];
 	}
 
+	/**
+	 * Returns this parser's weight vector (not a copy; null if the weights haven't been initialized).
+	 */
+	public double[] weightVector() {
+		return this.weights;
+	}
+
 	/**
 	 * Scores a lexical chart item's features and sets the item's Viterbi 
 	 * score to be that value (a lexical chart item has no children).
@@ -499,8 +697,51 @@ public abstract class PerceptronParser {
 	 * @param fineLexicalCI		the chart item to score
 	 */
 	public void setScoreOfLexicalItem(FineChartItem fineLexicalCI) {
-		fineLexicalCI.setViterbiProb(this.score(
-				getLexicalFeatures((NormalFormChartItem)fineLexicalCI)), null);
+		fineLexicalCI.setViterbiProb(this.scoreLexicalFeatures((NormalFormChartItem)fineLexicalCI), null);
+	}
+
+	/**
+	 * Returns the sum of the weights of the features active at a lexical chart item. Subclasses
+	 * may override this method to score features without building the feature list.
+	 * 
+	 * @param fineLexicalCI		the lexical chart item
+	 * @return					the score of the item's features
+	 */
+	protected double scoreLexicalFeatures(NormalFormChartItem fineLexicalCI) {
+		return this.score(getLexicalFeatures(fineLexicalCI));
+	}
+
+	/**
+	 * Returns the score used to rank a fine chart item against the other items in its cell
+	 * when pruning the fine pass: the item's Viterbi (inside) score plus an estimate of its
+	 * outside score.
+	 * 
+	 * @param fineCI	the chart item to rank
+	 * @param chart		the chart containing the item
+	 * @return			the item's figure of merit
+	 */
+	public double getFigureOfMerit(FineChartItem fineCI, Chart chart) {
+		return fineCI.getViterbiProb() + this.getOutsideScoreEstimate(fineCI, chart);
+	}
+
+	/**
+	 * Returns an estimate of the score contributed by the rest of the sentence to a parse 
+	 * containing this item. The default estimate is zero, so items are ranked by their inside 
+	 * scores alone; subclasses may override this method to provide a better estimate.
+	 * 
+	 * @param fineCI	the chart item
+	 * @param chart		the chart containing the item
+	 * @return			an estimate of the item's outside score
+	 */
+	protected double getOutsideScoreEstimate(FineChartItem fineCI, Chart chart) {
+		return 0.0;
+	}
+
+	/**
+	 * Returns the configuration used for coarse parsing (and for pruning the fine pass); may be null.
+	 */
+	public SupervisedParsingConfig getParserConfig() {
+		return this.parserConfig;
 	}
 
 	/**
@@ -521,12 +762,24 @@ public abstract class PerceptronParser {
 	 */
 	public double getScoreOfUnaryChartItem(FineChartItem fineParentCI,
 			FineChartItem fineChildCI) {
-		return this.score(
-				this.getUnaryFeatures((NormalFormChartItem) fineParentCI, 
-						(NormalFormChartItem) fineChildCI))
+		return this.scoreUnaryFeatures((NormalFormChartItem) fineParentCI, 
+						(NormalFormChartItem) fineChildCI)
 						+ fineChildCI.getViterbiProb();
 	}
 
+	/**
+	 * Returns the sum of the weights of the features active at a unary parent chart item. Subclasses
+	 * may override this method to score features without building the feature list.
+	 * 
+	 * @param fineParentCI	the parent chart item
+	 * @param fineChildCI	the child chart item
+	 * @return				the score of the parent's (local) features
+	 */
+	protected double scoreUnaryFeatures(NormalFormChartItem fineParentCI,
+			NormalFormChartItem fineChildCI) {
+		return this.score(this.getUnaryFeatures(fineParentCI, fineChildCI));
+	}
+
 	/**
 	 * Returns a list of descriptions for the features active at a unary parent chart item.
 	 * 
@@ -546,13 +799,23 @@ public abstract class PerceptronParser {
 	 */
 	public double getScoreOfBinaryChartItem(FineChartItem parentCI,
 			FineBackPointer fineBP) {
-		return this.score(
-				this.getBinaryFeatures((NormalFormChartItem) parentCI, 
-						fineBP))
+		return this.scoreBinaryFeatures((NormalFormChartItem) parentCI, fineBP)
 						+ fineBP.B().getViterbiProb()
 						+ fineBP.C().getViterbiProb();
 	}
 
+	/**
+	 * Returns the sum of the weights of the features active at a binary parent chart item. Subclasses
+	 * may override this method to score features without building the feature list.
+	 * 
+	 * @param fineParentCI	the parent chart item
+	 * @param fineBP		backpointer to the children
+	 * @return				the score of the parent's (local) features
+	 */
+	protected double scoreBinaryFeatures(NormalFormChartItem fineParentCI, FineBackPointer fineBP) {
+		return this.score(this.getBinaryFeatures(fineParentCI, fineBP));
+	}
+
 
 	/**
 	 * Returns a list of descriptions for the features active at a binary parent chart item.
@@ -644,7 +907,7 @@ public abstract class PerceptronParser {
 		if(pw != null) {
 			pw.close();
 		}
-		if(this.accumulatedWeights != null && count != 0.0) {
+		if(this.averagedWeights != null && count != 0.0) {
 			String avgFilename = filename+".averaged";
 			this.saveAveragedWeights(avgFilename, count);
 		}
@@ -652,9 +915,17 @@ public abstract class PerceptronParser {
 
 	public static PerceptronParser load(Grammar g, SupervisedParsingConfig coarseParsingConfig, 
 			File directory, String filename, boolean cacheVariables) {
+		String path = directory.getPath()+File.separator+filename;
+		if(MappedFeatureWeights.isBinaryModel(new File(path))) {
+			PerceptronParser parser = loadBinary(g, coarseParsingConfig, path);
+			if(parser != null) {
+				parser.setSaveDirectory(directory.getPath());
+			}
+			return parser;
+		}
 		Scanner sc = null;
 		try {
-			sc = new Scanner(new File(directory.getPath()+File.separator+filename));
+			sc = new Scanner(new File(path));
 			String parserName = sc.nextLine();
 			PerceptronParser parser;
 			if(parserName.equals(NormalFormPerceptronParser.NF_NAME)) {
@@ -715,6 +986,9 @@ public abstract class PerceptronParser {
 
 	public static PerceptronParser load(Grammar g, SupervisedParsingConfig coarseParsingConfig, 
 			String weightFileName) {
+		if(MappedFeatureWeights.isBinaryModel(new File(weightFileName))) {
+			return loadBinary(g, coarseParsingConfig, weightFileName);
+		}
 		Scanner sc = null;
 		try {
 			sc = new Scanner(new File(weightFileName));
@@ -766,6 +1040,116 @@ public abstract class PerceptronParser {
 		return null;
 	}
 
+	/**
+	 * Saves this parser's features and weights in the binary model format (see MappedFeatureWeights),
+	 * which can be memory-mapped by loadBinary.
+	 * 
+	 * @param filename	name of the file to write (in this parser's save directory)
+	 */
+	public void saveBinary(String filename) {
+		ArrayList<Double> weightList = new ArrayList<Double>(this.featureList.size());
+		for(int f=0; f<this.featureList.size(); f++) {
+			weightList.add(this.weight(f));
+		}
+		try {
+			MappedFeatureWeights.write(new File(this.saveDir+File.separator+filename), 
+					this.NAME, this.featureList, weightList);
+		} catch (IOException e) {
+			System.out.println("Failed to save parser (IOException while writing binary model)");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Loads a parser whose weights are served directly from a memory-mapped binary model file;
+	 * the resulting parser can be used for parsing (by any number of threads), but not for training.
+	 * 
+	 * @param g						the grammar used by the parser
+	 * @param coarseParsingConfig	the configuration storing coarse parsing parameters
+	 * @param binaryFileName		the binary model file (see saveBinary)
+	 * @return						the loaded parser, or null if the file couldn't be loaded
+	 */
+	public static PerceptronParser loadBinary(Grammar g, SupervisedParsingConfig coarseParsingConfig, 
+			String binaryFileName) {
+		try {
+			MappedFeatureWeights mapped = MappedFeatureWeights.map(new File(binaryFileName));
+			PerceptronParser parser;
+			if(mapped.parserName().equals(NormalFormPerceptronParser.NF_NAME)) {
+				parser = new NormalFormPerceptronParser(g, coarseParsingConfig);
+			}
+			else {
+				System.err.println("Unrecognized parser name "+mapped.parserName()+
+						"; failed to instantiate a new parser");
+				return null;
+			}
+			parser.mappedWeights = mapped;
+			return parser;
+		} catch (IOException e) {
+			System.out.println("Failed to load parser (possible malformed binary model file).");
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Converts a parser saved in the text format (see save) to the binary model format, without
+	 * instantiating a parser or grammar.
+	 * 
+	 * @param textFileName		the text model file to read
+	 * @param binaryFileName	the binary model file to write
+	 * @return					true iff the conversion succeeded
+	 */
+	public static boolean convertTextModelToBinary(String textFileName, String binaryFileName) {
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(textFileName), 1 << 16);
+			String parserName = br.readLine().trim();
+			int numFeatures = Integer.parseInt(br.readLine().trim());
+			ArrayList<ConditioningVariables> features = new ArrayList<ConditioningVariables>(Math.max(numFeatures, 0));
+			ArrayList<Double> featureWeights = new ArrayList<Double>(Math.max(numFeatures, 0));
+			String line;
+			String[] toks;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty()) {
+					continue;
+				}
+				if(numFeatures < 0) {
+					// Features without weights (see save)
+					features.add(ConditioningVariables.loadFromString(line, false));
+					featureWeights.add(0.0);
+				}
+				else {
+					toks = line.split("\\s+");
+					int index = Integer.parseInt(toks[0]);
+					double w = Double.parseDouble(toks[1]);
+					String cond = line.substring((index+"  "+w).length()).trim();
+					while(features.size() <= index) {
+						features.add(null);
+						featureWeights.add(0.0);
+					}
+					features.set(index, ConditioningVariables.loadFromString(cleanVariableString(cond), false));
+					featureWeights.set(index, w);
+				}
+			}
+			br.close();
+			br = null;
+			MappedFeatureWeights.write(new File(binaryFileName), parserName, features, featureWeights);
+			return true;
+		} catch (Exception e) {
+			System.out.println("Failed to convert parser (possible malformed parser file).");
+			e.printStackTrace();
+		}
+		if(br != null) {
+			try {
+				br.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return false;
+	}
+
 	public static PerceptronParser loadIntermediateParser(
 			File directory, String filename, boolean cacheVariables) {
 		return loadIntermediateParser(directory, filename, cacheVariables, null);
@@ -833,6 +1217,7 @@ public abstract class PerceptronParser {
 
 	public void addFeature(ConditioningVariables feature, int index) {
 		this.featureIndices.put(feature,  index);
+		this.indexPackedFeature(feature, index);
 		if(this.featureList.size() <= index) {
 			while(this.featureList.size() < index) {
 				this.featureList.add(null);
@@ -849,11 +1234,22 @@ public abstract class PerceptronParser {
 		if(f == null) {
 			f = this.featureList.size();
 			this.featureIndices.put(feature, f);
+			this.indexPackedFeature(feature, f);
 			this.featureList.add(feature);
 		}
 		return f;
 	}
 
+	/**
+	 * Adds a feature to the packed feature index (if it can be packed into a long key).
+	 */
+	private void indexPackedFeature(ConditioningVariables feature, int index) {
+		long key = VariableKeys.pack(feature);
+		if(key != VariableKeys.NOT_PACKABLE) {
+			this.packedFeatureIndices.put(key, index);
+		}
+	}
+
 	public void setSaveDirectory(String dir) {
 		try {
 			(new File(dir)).mkdirs();
@@ -1023,6 +1419,7 @@ public abstract class PerceptronParser {
 		this.weights = new double[numFeatures];
 		this.featureIndices = new HashMap<ConditioningVariables, Integer>();
 		this.featureList = new ArrayList<ConditioningVariables>(numFeatures);
+		this.packedFeatureIndices = new LongIntOpenHashMap(numFeatures);
 		for(int f=0; f<featuresToSet.size(); f++) {
 			this.addFeature(featuresToSet.get(f));
 			this.weights[f] = weightsToSet.get(f);
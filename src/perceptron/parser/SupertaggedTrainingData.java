@@ -4,15 +4,17 @@ import illinoisParser.Sentence;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Scanner;
+import java.util.Iterator;
+import java.util.List;
 
 import supertagger.CandCSupertaggerWrapper;
 import supertagger.SupertagAssignment;
 
-public class SupertaggedTrainingData {
+public class SupertaggedTrainingData implements Iterable<SupertaggedSentence> {
 	
 	private ArrayList<SupertaggedSentence> data;
 	
@@ -53,8 +55,13 @@ public class SupertaggedTrainingData {
 	public Collection<SupertaggedSentence> getData() {
 		return data;
 	}
+
+	@Override
+	public Iterator<SupertaggedSentence> iterator() {
+		return data.iterator();
+	}
 	
-	private static String DELIMITER = "####";
+	static final String DELIMITER = "####";
 	
 	public void save(String filename) {
 		PrintWriter pw;
@@ -70,34 +77,53 @@ public class SupertaggedTrainingData {
 		}
 	}
 	
-	public static SupertaggedTrainingData load(String filename) {
-		SupertaggedTrainingData loaded = new SupertaggedTrainingData();
-		Scanner sc;
+	/**
+	 * Saves the data in the binary format (see {@link SupertaggedTrainingDataWriter}).
+	 * 
+	 * @param filename		output file
+	 * @param categories	category list that category ids refer to (e.g. the tagger's), or null
+	 */
+	public void saveBinary(String filename, List<String> categories) {
 		try {
-			sc = new Scanner(new File(filename));
-			String cache = "";
-			while(sc.hasNextLine()) {
-				String line = sc.nextLine().trim();
-				if(line.equals(DELIMITER)) {
-					loaded.data.add(SupertaggedSentence.fromString(cache));
-					cache = "";
-				}
-				else {
-					if(cache.isEmpty()) {
-						cache = line;
-					}
-					else {
-						cache += "\n"+line;
-					}
-				}
+			SupertaggedTrainingDataWriter writer = new SupertaggedTrainingDataWriter(new File(filename), categories);
+			for(SupertaggedSentence sen : data) {
+				writer.write(sen);
 			}
-			sc.close();
-		} catch (FileNotFoundException e) {
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("Failed to save multitagged data: "+filename);
 			e.printStackTrace();
 		}
+	}
+
+	/**
+	 * Loads a file saved by save or saveBinary (the format is detected automatically).
+	 */
+	public static SupertaggedTrainingData load(String filename) {
+		SupertaggedTrainingData loaded = new SupertaggedTrainingData();
+		SupertaggedTrainingDataReader reader = stream(filename);
+		if(reader != null) {
+			for(SupertaggedSentence sen : reader) {
+				loaded.data.add(sen);
+			}
+		}
 		return loaded;
 	}
 
+	/**
+	 * Returns a reader that streams the sentences in a file saved by save or saveBinary,
+	 * or null if the file can't be opened.
+	 */
+	public static SupertaggedTrainingDataReader stream(String filename) {
+		try {
+			return new SupertaggedTrainingDataReader(new File(filename));
+		} catch (IOException e) {
+			System.out.println("Failed to open multitagged data: "+filename);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	public int size() {
 		return data.size();
 	}
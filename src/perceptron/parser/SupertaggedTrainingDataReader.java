@@ -0,0 +1,247 @@
+package perceptron.parser;
+
+import illinoisParser.LexicalToken;
+import illinoisParser.Sentence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import supertagger.LexicalCategoryEntry;
+import supertagger.SupertagAssignment;
+
+/**
+ * The SupertaggedTrainingDataReader class streams multitagged sentences from a file, one at a time,
+ * without building the full collection in memory. It reads both the binary format written by
+ * {@link SupertaggedTrainingDataWriter} and the text format written by SupertaggedTrainingData.save
+ * (the format is detected from the first bytes of the file).
+ *
+ * The reader is its own (single-use) iterator; it is closed automatically at the end of the data.
+ *
+ * @author ramusa2
+ *
+ */
+public class SupertaggedTrainingDataReader implements Iterator<SupertaggedSentence>, Iterable<SupertaggedSentence> {
+
+	private final File file;
+
+	/** Set for binary files **/
+	private DataInputStream binary;
+
+	/** Set for text files **/
+	private BufferedReader text;
+
+	/** Category table (binary files only); categories are shared by all sentences **/
+	private final ArrayList<String> categories;
+
+	/** Next sentence to return, or null at the end of the data **/
+	private SupertaggedSentence next;
+
+	public SupertaggedTrainingDataReader(File input) throws IOException {
+		this.file = input;
+		this.categories = new ArrayList<String>();
+		InputStream in = new BufferedInputStream(new FileInputStream(input), 1 << 16);
+		if(isBinary(in)) {
+			this.binary = new DataInputStream(in);
+			this.binary.readInt();
+			int version = this.binary.readInt();
+			if(version != SupertaggedTrainingDataWriter.VERSION) {
+				in.close();
+				throw new IOException("Unsupported multitagged data version "+version+": "+input.getPath());
+			}
+			int numCategories = this.binary.readInt();
+			for(int c=0; c<numCategories; c++) {
+				this.categories.add(this.binary.readUTF());
+			}
+		}
+		else {
+			this.text = new BufferedReader(new InputStreamReader(in));
+		}
+		this.advance();
+	}
+
+	/**
+	 * Returns true iff the stream starts with the binary format's magic number (the stream is
+	 * left at its start).
+	 */
+	private static boolean isBinary(InputStream in) throws IOException {
+		in.mark(4);
+		int magic = 0;
+		for(int b=0; b<4; b++) {
+			int read = in.read();
+			if(read < 0) {
+				in.reset();
+				return false;
+			}
+			magic = (magic << 8) | read;
+		}
+		in.reset();
+		return magic == SupertaggedTrainingDataWriter.MAGIC;
+	}
+
+	/**
+	 * Returns true iff the file is in the binary format.
+	 */
+	public static boolean isBinaryFile(File file) {
+		if(!file.isFile()) {
+			return false;
+		}
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			return isBinary(in);
+		}
+		catch(IOException e) {
+			return false;
+		}
+		finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the next sentence into next (or sets it to null and closes the file at the end).
+	 */
+	private void advance() {
+		try {
+			this.next = (this.binary != null) ? this.readBinary() : this.readText();
+		}
+		catch(IOException e) {
+			System.out.println("Failed to read multitagged data: "+this.file.getPath());
+			e.printStackTrace();
+			this.next = null;
+		}
+		if(this.next == null) {
+			this.close();
+		}
+	}
+
+	private SupertaggedSentence readBinary() throws IOException {
+		int length = this.binary.readInt();
+		if(length == SupertaggedTrainingDataWriter.END_OF_DATA) {
+			return null;
+		}
+		int id = this.binary.readInt();
+		String auto = readString(this.binary);
+		int numTokens = this.binary.readInt();
+		LexicalToken[] tokens = new LexicalToken[numTokens];
+		LexicalCategoryEntry[][] tags = new LexicalCategoryEntry[numTokens][];
+		for(int i=0; i<numTokens; i++) {
+			String word = this.binary.readUTF();
+			String pos = this.binary.readUTF();
+			String gold = this.readCategory();
+			tokens[i] = (gold == null) ? new LexicalToken(word, pos) : new LexicalToken(word, pos, gold);
+			int numTags = this.binary.readInt();
+			tags[i] = new LexicalCategoryEntry[numTags];
+			for(int t=0; t<numTags; t++) {
+				String cat = this.readCategory();
+				tags[i][t] = new LexicalCategoryEntry(cat, this.binary.readFloat());
+			}
+		}
+		Sentence sen = new Sentence(tokens, id, auto);
+		SupertagAssignment assignment = new SupertagAssignment(sen);
+		boolean tagged = false;
+		for(int i=0; i<numTokens; i++) {
+			for(LexicalCategoryEntry entry : tags[i]) {
+				assignment.addLexcat(i, entry);
+				tagged = true;
+			}
+		}
+		return tagged ? new SupertaggedSentence(sen, assignment) : new SupertaggedSentence(sen);
+	}
+
+	private String readCategory() throws IOException {
+		int id = this.binary.readInt();
+		if(id == SupertaggedTrainingDataWriter.NO_CATEGORY) {
+			return null;
+		}
+		if(id == SupertaggedTrainingDataWriter.NEW_CATEGORY) {
+			String cat = this.binary.readUTF();
+			this.categories.add(cat);
+			return cat;
+		}
+		return this.categories.get(id);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private SupertaggedSentence readText() throws IOException {
+		StringBuilder cache = new StringBuilder();
+		String line;
+		while((line = this.text.readLine()) != null) {
+			line = line.trim();
+			if(line.equals(SupertaggedTrainingData.DELIMITER)) {
+				return SupertaggedSentence.fromString(cache.toString());
+			}
+			if(cache.length() > 0) {
+				cache.append('\n');
+			}
+			cache.append(line);
+		}
+		return null;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return this.next != null;
+	}
+
+	@Override
+	public SupertaggedSentence next() {
+		if(this.next == null) {
+			throw new NoSuchElementException();
+		}
+		SupertaggedSentence sen = this.next;
+		this.advance();
+		return sen;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Iterator<SupertaggedSentence> iterator() {
+		return this;
+	}
+
+	/**
+	 * Closes the file (safe to call more than once).
+	 */
+	public void close() {
+		try {
+			if(this.binary != null) {
+				this.binary.close();
+			}
+			if(this.text != null) {
+				this.text.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.next = null;
+	}
+}
@@ -0,0 +1,181 @@
+package perceptron.parser;
+
+import illinoisParser.IntegerMapping;
+import illinoisParser.LexicalToken;
+import illinoisParser.Sentence;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import supertagger.LexicalCategoryEntry;
+import supertagger.SupertagAssignment;
+
+/**
+ * The SupertaggedTrainingDataWriter class writes multitagged sentences, one at a time, in the
+ * binary format read by {@link SupertaggedTrainingDataReader}.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int      MAGIC
+ *   int      VERSION
+ *   int      number of categories in the initial category table (c)
+ *   c x UTF  categories (category ids are indices into this table)
+ *   records, each an int length followed by that many bytes:
+ *     int      sentence id
+ *     string   CCGbank parse (int length + UTF-8 bytes)
+ *     int      number of tokens
+ *     per token: UTF word, UTF POS tag, category (gold), int number of tags,
+ *                then per tag: category, float score
+ *   int      END_OF_DATA
+ * </pre>
+ * A category is written as its int id, as NO_CATEGORY for a token without a gold category, or as
+ * NEW_CATEGORY followed by a UTF string for a category not yet in the table (it is then assigned
+ * the next id). Seeding the table with the tagger's category list makes the ids match the
+ * tagger's output indices (duplicates in the seed list are written once, so the stored table
+ * always matches the ids used in the records).
+ *
+ * @author ramusa2
+ *
+ */
+public class SupertaggedTrainingDataWriter {
+
+	/** Identifies a binary multitagged data file ("STGD") **/
+	public static final int MAGIC = 0x53544744;
+
+	/** Current version of the file layout **/
+	public static final int VERSION = 1;
+
+	/** Category id of a token without a gold category **/
+	static final int NO_CATEGORY = -1;
+
+	/** Marks a category defined inline (a UTF string follows) **/
+	static final int NEW_CATEGORY = -2;
+
+	/** Record length that marks the end of the data **/
+	static final int END_OF_DATA = -1;
+
+	private final DataOutputStream out;
+
+	private final IntegerMapping<String> catToID;
+
+	/** Reused buffer for the current record **/
+	private final ByteArrayOutputStream recordBytes;
+	private final DataOutputStream record;
+
+	private int written;
+
+	/**
+	 * Creates a new file and writes its header.
+	 *
+	 * @param file			output file
+	 * @param categories	initial category table (e.g. the tagger's category list), or null
+	 */
+	public SupertaggedTrainingDataWriter(File file, List<String> categories) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		this.catToID = new IntegerMapping<String>("categories", String.class);
+		this.recordBytes = new ByteArrayOutputStream(1 << 12);
+		this.record = new DataOutputStream(this.recordBytes);
+		this.written = 0;
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+		if(categories != null) {
+			for(String cat : categories) {
+				this.catToID.getIDAndAddIfAbsent(cat);
+			}
+		}
+		this.out.writeInt(this.catToID.size());
+		for(String cat : this.catToID.items()) {
+			this.out.writeUTF(cat);
+		}
+	}
+
+	/**
+	 * Appends a sentence (and its supertags, if it has been tagged).
+	 */
+	public void write(SupertaggedSentence sen) throws IOException {
+		this.write(sen.sentence(), sen.tags());
+	}
+
+	/**
+	 * Appends a sentence and its supertags (which may be null).
+	 */
+	public void write(Sentence sen, SupertagAssignment tags) throws IOException {
+		this.recordBytes.reset();
+		this.record.writeInt(sen.getID());
+		writeString(this.record, sen.getCCGbankParse());
+		LexicalToken[] tokens = sen.getTokens();
+		this.record.writeInt(tokens.length);
+		for(int i=0; i<tokens.length; i++) {
+			LexicalToken lt = tokens[i];
+			this.record.writeUTF(lt.getWord());
+			this.record.writeUTF(lt.getPOS().toString());
+			String gold = lt.getCategory();
+			if(gold == null || gold.equals(LexicalToken.EMPTY_CAT)) {
+				this.record.writeInt(NO_CATEGORY);
+			}
+			else {
+				this.writeCategory(gold);
+			}
+			if(tags == null) {
+				this.record.writeInt(0);
+			}
+			else {
+				LexicalCategoryEntry[] entries = tags.getAll(i);
+				this.record.writeInt(entries.length);
+				for(LexicalCategoryEntry entry : entries) {
+					this.writeCategory(entry.category());
+					this.record.writeFloat((float) entry.score());
+				}
+			}
+		}
+		this.record.flush();
+		this.out.writeInt(this.recordBytes.size());
+		this.recordBytes.writeTo(this.out);
+		this.written++;
+	}
+
+	private void writeCategory(String cat) throws IOException {
+		int id = this.catToID.checkID(cat);
+		if(id == -1) {
+			this.catToID.getIDAndAddIfAbsent(cat);
+			this.record.writeInt(NEW_CATEGORY);
+			this.record.writeUTF(cat);
+		}
+		else {
+			this.record.writeInt(id);
+		}
+	}
+
+	/**
+	 * Writes a string that may be longer than writeUTF allows.
+	 */
+	static void writeString(DataOutputStream stream, String str) throws IOException {
+		if(str == null) {
+			stream.writeInt(-1);
+			return;
+		}
+		byte[] bytes = str.getBytes("UTF-8");
+		stream.writeInt(bytes.length);
+		stream.write(bytes);
+	}
+
+	/**
+	 * Returns the number of sentences written so far.
+	 */
+	public int size() {
+		return this.written;
+	}
+
+	/**
+	 * Writes the end-of-data marker and closes the file.
+	 */
+	public void close() throws IOException {
+		this.out.writeInt(END_OF_DATA);
+		this.out.close();
+	}
+}
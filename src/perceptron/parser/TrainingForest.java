@@ -0,0 +1,23 @@
+package perceptron.parser;
+
+/**
+ * A TrainingForest is a single perceptron training example: a packed forest of candidate
+ * parses (as feature sets) together with the gold parse.
+ * 
+ * @author ramusa2
+ *
+ */
+public interface TrainingForest {
+
+	/**
+	 * Finds the Viterbi parse under the store's current weights; if it does not match the gold
+	 * parse, changes the weights of the features active in the Viterbi parse by -delta and of those
+	 * active in the gold parse by +delta (repeated features are changed repeatedly).
+	 * 
+	 * @param store		weights to score with and update
+	 * @param delta		learning rate
+	 * @param c			number of examples seen so far (including this one)
+	 * @return			true iff the weight vector was changed
+	 */
+	public boolean perceptronUpdate(AveragedWeightStore store, double delta, double c);
+}
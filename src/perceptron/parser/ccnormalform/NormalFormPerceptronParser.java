@@ -18,6 +18,7 @@ import illinoisParser.Grammar;
 import illinoisParser.Rule_Direction;
 import illinoisParser.SupervisedParsingConfig;
 import illinoisParser.variables.ConditioningVariables;
+import illinoisParser.variables.VariableKeys;
 import illinoisParser.variables.VariablesFactory;
 
 /**
@@ -183,6 +184,83 @@ public class NormalFormPerceptronParser extends PerceptronParser {
 		return feats;
 	}
 
+	// Allocation-free scoring (must match the feature lists built above)
+
+	@Override
+	protected double scoreLexicalFeatures(NormalFormChartItem fineItem) {
+		return featureWeight(LC_WORD, fineItem.category(), fineItem.headWord())
+				+ featureWeight(LC_POS, fineItem.category(), fineItem.headPOS());
+	}
+
+	@Override
+	protected double scoreUnaryFeatures(NormalFormChartItem fineParent,
+			NormalFormChartItem fineChildCI) {
+		int parent = fineParent.category();
+		int child = fineChildCI.category();
+		double score = featureWeight(UNARY_RULE, parent, child)
+				+ featureWeight(UNARY_RULE_WORD, parent, child, fineParent.headWord())
+				+ featureWeight(UNARY_RULE_POS, parent, child, fineParent.headPOS());
+		if(parent == grammar.getTopCatID()) {
+			score += featureWeight(TOP_CAT, child)
+					+ featureWeight(TOP_CAT_WORD, child, fineChildCI.headWord())
+					+ featureWeight(TOP_CAT_POS, child, fineChildCI.headPOS());
+		}
+		return score;
+	}
+
+	@Override
+	protected double scoreBinaryFeatures(NormalFormChartItem fineParent, FineBackPointer bp) {
+		NormalFormChartItem left = (NormalFormChartItem) bp.B();
+		NormalFormChartItem right = (NormalFormChartItem) bp.C();
+		int ruleID = grammar.getRuleID(bp.rule());
+		int hw = fineParent.headWord();
+		int ht = fineParent.headPOS();
+		int lw = left.headWord();
+		int lt = left.headPOS();
+		int rw = right.headWord();
+		int rt = right.headPOS();
+		int dw = fineParent.dW();
+		int dp = fineParent.dP();
+		int dv = fineParent.dV();
+		return featureWeight(BINARY_RULE, ruleID)
+				+ featureWeight(BINARY_RULE_WORD, ruleID, hw)
+				+ featureWeight(BINARY_RULE_POS, ruleID, ht)
+				+ featureWeight(BINARY_RULE_WORD_WORD, ruleID, lw, rw)
+				+ featureWeight(BINARY_RULE_TAG_WORD, ruleID, lt, rw)
+				+ featureWeight(BINARY_RULE_WORD_TAG, ruleID, lw, rt)
+				+ featureWeight(BINARY_RULE_TAG_TAG, ruleID, lt, rt)
+				+ featureWeight(BINARY_RULE_WORD_DW, ruleID, hw, dw)
+				+ featureWeight(BINARY_RULE_WORD_DP, ruleID, hw, dp)
+				+ featureWeight(BINARY_RULE_WORD_DV, ruleID, hw, dv)
+				+ featureWeight(BINARY_RULE_POS_DW, ruleID, ht, dw)
+				+ featureWeight(BINARY_RULE_POS_DP, ruleID, ht, dp)
+				+ featureWeight(BINARY_RULE_POS_DV, ruleID, ht, dv);
+	}
+
+	private double featureWeight(int template, int a) {
+		long key = VariableKeys.pack(template, a);
+		if(key == VariableKeys.NOT_PACKABLE) {
+			return this.weight(VariablesFactory.get(template, a));
+		}
+		return this.packedWeight(key);
+	}
+
+	private double featureWeight(int template, int a, int b) {
+		long key = VariableKeys.pack(template, a, b);
+		if(key == VariableKeys.NOT_PACKABLE) {
+			return this.weight(VariablesFactory.get(template, a, b));
+		}
+		return this.packedWeight(key);
+	}
+
+	private double featureWeight(int template, int a, int b, int c) {
+		long key = VariableKeys.pack(template, a, b, c);
+		if(key == VariableKeys.NOT_PACKABLE) {
+			return this.weight(VariablesFactory.get(template, a, b, c));
+		}
+		return this.packedWeight(key);
+	}
+
 	private static final int[] EMPTY = new int[]{};
 
 	@Override
@@ -0,0 +1,265 @@
+package perceptron.parser.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import perceptron.core.representations.parsing.FlatFeatureForest;
+import perceptron.core.representations.parsing.PackedFeatureForest;
+import util.serialization.SerializedData;
+
+/**
+ * The MappedFeatureForests class stores a collection of packed feature forests in a single file in
+ * the flat encoding read by {@link FlatFeatureForest}, and serves them straight out of memory-mapped
+ * buffers: iterating over the collection (e.g. once per training epoch) does not read, decompress or
+ * deserialize anything, and allocates only a small view object per forest.
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int      MAGIC
+ *   int      VERSION
+ *   int      number of forests (n)
+ *   long     position of the offset table
+ *   n x int[] encoded forests
+ *   long[n+1] byte offset of each forest (and of the end of the last one)
+ * </pre>
+ * Files larger than a single mapping (2GB) are mapped in several chunks, split between forests.
+ *
+ * The collection is read-only (use write to create one); views use absolute reads only, so
+ * get may be called from several threads at once.
+ *
+ * @author ramusa2
+ *
+ */
+public class MappedFeatureForests extends SerializedData<FlatFeatureForest> {
+
+	/** Identifies a flat forest file ("PPFF") **/
+	public static final int MAGIC = 0x50504646;
+
+	/** Current version of the file layout **/
+	public static final int VERSION = 1;
+
+	/** Bytes before the first forest **/
+	private static final int HEADER_BYTES = 20;
+
+	/** Largest mapped chunk (a multiple of 8 below 2GB) **/
+	private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE & ~7L;
+
+	/** Mapped chunks, viewed as ints **/
+	private final IntBuffer[] chunks;
+
+	/** Chunk and (int) position of each forest **/
+	private final int[] forestChunk;
+	private final int[] forestPosition;
+
+	private MappedFeatureForests(IntBuffer[] mappedChunks, int[] chunkOfForest, int[] positionOfForest) {
+		super();
+		this.chunks = mappedChunks;
+		this.forestChunk = chunkOfForest;
+		this.forestPosition = positionOfForest;
+		this.total.set(chunkOfForest.length);
+	}
+
+	/**
+	 * Maps an existing flat forest file.
+	 */
+	public static MappedFeatureForests open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			while(header.hasRemaining()) {
+				if(channel.read(header, header.position()) < 0) {
+					throw new IOException("Truncated flat forest file: "+file.getPath());
+				}
+			}
+			header.flip();
+			if(header.getInt() != MAGIC) {
+				throw new IOException("Not a flat forest file: "+file.getPath());
+			}
+			int version = header.getInt();
+			if(version != VERSION) {
+				throw new IOException("Unsupported flat forest file version "+version+": "+file.getPath());
+			}
+			int n = header.getInt();
+			long tablePosition = header.getLong();
+			if(n < 0 || tablePosition < HEADER_BYTES || tablePosition+8L*(n+1) != channel.size()) {
+				throw new IOException("Corrupt flat forest file (header does not match file length): "+file.getPath());
+			}
+			LongBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, tablePosition, 8L*(n+1)).asLongBuffer();
+			if(offsets.get(0) != HEADER_BYTES || offsets.get(n) != tablePosition) {
+				throw new IOException("Corrupt flat forest file (bad offset table): "+file.getPath());
+			}
+			for(int i=0; i<n; i++) {
+				if(offsets.get(i+1) < offsets.get(i)) {
+					throw new IOException("Corrupt flat forest file (bad offset table): "+file.getPath());
+				}
+			}
+
+			// Split the forests into chunks of at most MAX_CHUNK_BYTES
+			ArrayList<IntBuffer> chunks = new ArrayList<IntBuffer>();
+			int[] chunkOfForest = new int[n];
+			int[] positionOfForest = new int[n];
+			int first = 0;
+			while(first < n) {
+				long chunkStart = offsets.get(first);
+				int last = first;
+				while(last < n && offsets.get(last+1)-chunkStart <= MAX_CHUNK_BYTES) {
+					last++;
+				}
+				if(last == first) {
+					throw new IOException("Forest "+first+" is too large to map: "+file.getPath());
+				}
+				long chunkEnd = offsets.get(last);
+				IntBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd-chunkStart).asIntBuffer();
+				for(int i=first; i<last; i++) {
+					chunkOfForest[i] = chunks.size();
+					positionOfForest[i] = (int) ((offsets.get(i)-chunkStart)/4);
+				}
+				chunks.add(chunk);
+				first = last;
+			}
+			return new MappedFeatureForests(chunks.toArray(new IntBuffer[chunks.size()]),
+					chunkOfForest, positionOfForest);
+		}
+		finally {
+			// Mappings remain valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns true iff the file exists and starts with the flat forest file's magic number.
+	 */
+	public static boolean isFlatForestFile(File file) {
+		if(!file.isFile() || file.length() < HEADER_BYTES) {
+			return false;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			return raf.readInt() == MAGIC;
+		}
+		catch(IOException e) {
+			return false;
+		}
+		finally {
+			if(raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Encodes every forest in a collection (in order) and writes them to a flat forest file;
+	 * the collection is reset afterwards. The file is written to a temporary file and renamed
+	 * once complete, so an interrupted write never leaves a partial file behind. Throws an 
+	 * IOException if any forest cannot be read.
+	 *
+	 * @param file		output file
+	 * @param forests	forests to encode
+	 * @return			the number of forests written
+	 */
+	public static int write(File file, SerializedData<PackedFeatureForest> forests) throws IOException {
+		ArrayList<Long> offsets = new ArrayList<Long>();
+		long position = HEADER_BYTES;
+		File tmp = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		boolean complete = false;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(0);
+			out.writeLong(0L);
+			forests.reset();
+			PackedFeatureForest forest;
+			while((forest = forests.next()) != null) {
+				int[] encoded = forest.flatEncoding();
+				offsets.add(position);
+				for(int v : encoded) {
+					out.writeInt(v);
+				}
+				position += 4L*encoded.length;
+			}
+			if(offsets.size() != forests.size()) {
+				// next() returns null when a forest cannot be read, which would silently truncate the file
+				throw new IOException("Read only "+offsets.size()+" out of "+forests.size()+" forests");
+			}
+			offsets.add(position);
+			for(Long offset : offsets) {
+				out.writeLong(offset);
+			}
+			out.close();
+			int n = offsets.size()-1;
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.seek(8);
+				raf.writeInt(n);
+				raf.writeLong(position);
+			}
+			finally {
+				raf.close();
+			}
+			file.delete();
+			if(!tmp.renameTo(file)) {
+				throw new IOException("Failed to rename "+tmp.getPath());
+			}
+			complete = true;
+			return n;
+		}
+		finally {
+			out.close();
+			forests.reset();
+			if(!complete) {
+				tmp.delete();
+			}
+		}
+	}
+
+	@Override
+	public FlatFeatureForest next() {
+		int id = this.current.getAndIncrement();
+		if(id >= this.total.get()) {
+			return null;
+		}
+		return this.get(id);
+	}
+
+	@Override
+	public FlatFeatureForest get(int id) {
+		if(id < 0 || id >= this.forestChunk.length) {
+			return null;
+		}
+		return new FlatFeatureForest(this.chunks[this.forestChunk[id]], this.forestPosition[id]);
+	}
+
+	@Override
+	public void addObject(FlatFeatureForest obj) {
+		throw new UnsupportedOperationException("Mapped feature forests are read-only; use MappedFeatureForests.write");
+	}
+
+	@Override
+	public void open() {}
+
+	@Override
+	public void reset() {
+		this.current.set(0);
+	}
+
+	@Override
+	public void close() {
+		this.current.set(0);
+	}
+}
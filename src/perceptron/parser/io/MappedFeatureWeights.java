@@ -0,0 +1,382 @@
+package perceptron.parser.io;
+
+import illinoisParser.variables.ConditioningVariables;
+import illinoisParser.variables.VariableKeys;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import util.LongIntOpenHashMap;
+
+/**
+ * The MappedFeatureWeights class reads and writes the binary perceptron model format, and
+ * serves feature weights directly from a memory-mapped model file (so loading a model does not
+ * parse or allocate per-feature objects, and processes on the same host share the page cache).
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int     MAGIC
+ *   int     VERSION
+ *   int     number of packed features (n)
+ *   int     number of unpackable features (m)
+ *   int     length of the parser name in bytes, followed by the UTF-8 name
+ *   int[]   NUM_BUCKETS+1 offsets into the key array, one bucket per (arity, template) key prefix
+ *   (padding to a multiple of 8 bytes)
+ *   long[n] packed feature keys (see VariableKeys), sorted in increasing order
+ *   double[n] weights, in key order
+ *   m x (double weight, int length, UTF-8 feature string)
+ * </pre>
+ * Features that can't be packed into a key (e.g. ComplexConditioningVariables) are stored as
+ * strings at the end of the file and kept in a (small) hash map.
+ *
+ * Instances are immutable, and lookups use absolute reads only, so a single instance can be
+ * shared by multiple parsing threads.
+ *
+ * @author ramusa2
+ *
+ */
+public final class MappedFeatureWeights {
+
+	/** Identifies a binary model file ("PPWB") **/
+	public static final int MAGIC = 0x50505742;
+
+	/** Current version of the file layout **/
+	public static final int VERSION = 1;
+
+	/** Number of key prefixes (2 arity bits + 5 template bits) **/
+	private static final int NUM_BUCKETS = 1 << 7;
+
+	/** Shift that maps a packed key to its bucket (the header sits above three 18-bit value fields) **/
+	private static final int BUCKET_SHIFT = 3*18;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Label of the parser model that wrote the file **/
+	private final String parserName;
+
+	/** Offsets of each bucket in the key array **/
+	private final int[] bucketOffsets;
+
+	/** Sorted packed feature keys (mapped) **/
+	private final LongBuffer keys;
+
+	/** Feature weights, in key order (mapped) **/
+	private final DoubleBuffer weights;
+
+	/** Weights of the features that can't be packed **/
+	private final HashMap<ConditioningVariables, Double> unpackedWeights;
+
+	private MappedFeatureWeights(String name, int[] offsets, LongBuffer keyBuffer,
+			DoubleBuffer weightBuffer, HashMap<ConditioningVariables, Double> unpacked) {
+		this.parserName = name;
+		this.bucketOffsets = offsets;
+		this.keys = keyBuffer;
+		this.weights = weightBuffer;
+		this.unpackedWeights = unpacked;
+	}
+
+	/**
+	 * Returns the label of the parser model stored in this file.
+	 */
+	public String parserName() {
+		return this.parserName;
+	}
+
+	/**
+	 * Returns the total number of features stored in this file.
+	 */
+	public int size() {
+		return this.keys.capacity() + this.unpackedWeights.size();
+	}
+
+	/**
+	 * Returns the weight of the feature with the specified packed key (0.0 if the feature is absent).
+	 */
+	public double weight(long packedFeature) {
+		if(packedFeature < 0) {
+			return 0.0;
+		}
+		int bucket = (int) (packedFeature >>> BUCKET_SHIFT);
+		int lo = this.bucketOffsets[bucket];
+		int hi = this.bucketOffsets[bucket+1] - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long k = this.keys.get(mid);
+			if(k < packedFeature) {
+				lo = mid + 1;
+			}
+			else if(k > packedFeature) {
+				hi = mid - 1;
+			}
+			else {
+				return this.weights.get(mid);
+			}
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Returns the weight of the specified feature (0.0 if the feature is absent).
+	 */
+	public double weight(ConditioningVariables feature) {
+		long key = VariableKeys.pack(feature);
+		if(key != VariableKeys.NOT_PACKABLE) {
+			return this.weight(key);
+		}
+		Double w = this.unpackedWeights.get(feature);
+		return w == null ? 0.0 : w;
+	}
+
+	/**
+	 * Returns true iff the file starts with the binary model header.
+	 */
+	public static boolean isBinaryModel(File file) {
+		if(!file.isFile() || file.length() < 8) {
+			return false;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			return in.readInt() == MAGIC;
+		}
+		catch(IOException e) {
+			return false;
+		}
+		finally {
+			if(in != null) {
+				try {
+					in.close();
+				}
+				catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Maps a binary model file into memory.
+	 *
+	 * @param file	the binary model file
+	 * @return		the feature weights stored in the file
+	 * @throws IOException	if the file can't be read or isn't a (supported) binary model
+	 */
+	public static MappedFeatureWeights map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Binary model file is too large to map: "+file.getPath());
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buf.getInt() != MAGIC) {
+				throw new IOException("Not a binary model file: "+file.getPath());
+			}
+			int version = buf.getInt();
+			if(version != VERSION) {
+				throw new IOException("Unsupported binary model version "+version+" in "+file.getPath());
+			}
+			int n = buf.getInt();
+			int m = buf.getInt();
+			String name = readString(buf);
+			int[] offsets = new int[NUM_BUCKETS+1];
+			for(int b=0; b<offsets.length; b++) {
+				offsets[b] = buf.getInt();
+			}
+			buf.position(align(buf.position()));
+			ByteBuffer keySlice = buf.slice();
+			keySlice.limit(n*8);
+			LongBuffer keyBuffer = keySlice.asLongBuffer();
+			buf.position(buf.position()+n*8);
+			ByteBuffer weightSlice = buf.slice();
+			weightSlice.limit(n*8);
+			DoubleBuffer weightBuffer = weightSlice.asDoubleBuffer();
+			buf.position(buf.position()+n*8);
+			HashMap<ConditioningVariables, Double> unpacked = new HashMap<ConditioningVariables, Double>();
+			for(int f=0; f<m; f++) {
+				double w = buf.getDouble();
+				unpacked.put(ConditioningVariables.loadFromString(readString(buf), true), w);
+			}
+			return new MappedFeatureWeights(name, offsets, keyBuffer, weightBuffer, unpacked);
+		}
+		finally {
+			// The mapping remains valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes a binary model file.
+	 *
+	 * @param file				target file
+	 * @param parserName		label of the parser model
+	 * @param features			feature descriptions
+	 * @param featureWeights	feature weights (parallel to features)
+	 * @throws IOException
+	 */
+	public static void write(File file, String parserName, ArrayList<ConditioningVariables> features,
+			ArrayList<Double> featureWeights) throws IOException {
+		double[] weightArray = new double[featureWeights.size()];
+		for(int f=0; f<weightArray.length; f++) {
+			weightArray[f] = featureWeights.get(f);
+		}
+		new Layout(features).write(file, parserName, weightArray);
+	}
+
+	/**
+	 * The Layout class stores the (sorted) order in which a fixed list of features is written,
+	 * so that a series of weight vectors over the same features (e.g. per-iteration snapshots
+	 * during training) can be written without re-packing and re-sorting the keys each time.
+	 */
+	public static final class Layout {
+
+		/** Sorted packed keys **/
+		private final long[] sortedKeys;
+
+		/** Feature index of each sorted key **/
+		private final int[] keyFeatures;
+
+		/** Indices of the features that can't be packed **/
+		private final int[] unpackable;
+
+		/** String forms of the features that can't be packed **/
+		private final String[] unpackableStrings;
+
+		/** Bucket offsets into the key array **/
+		private final int[] offsets;
+
+		/**
+		 * Computes the layout for a list of features (null entries are skipped).
+		 */
+		public Layout(List<ConditioningVariables> features) {
+			// Split features into packed keys and (string) leftovers
+			LongIntOpenHashMap keyToFeature = new LongIntOpenHashMap(features.size());
+			ArrayList<Integer> unpackableList = new ArrayList<Integer>();
+			for(int f=0; f<features.size(); f++) {
+				ConditioningVariables feature = features.get(f);
+				if(feature == null) {
+					continue;
+				}
+				long key = VariableKeys.pack(feature);
+				if(key != VariableKeys.NOT_PACKABLE) {
+					keyToFeature.put(key, f);
+				}
+				else {
+					unpackableList.add(f);
+				}
+			}
+			this.sortedKeys = new long[keyToFeature.size()];
+			int n = 0;
+			for(int f=0; f<features.size(); f++) {
+				ConditioningVariables feature = features.get(f);
+				if(feature != null) {
+					long key = VariableKeys.pack(feature);
+					if(key != VariableKeys.NOT_PACKABLE && keyToFeature.get(key) == f) {
+						this.sortedKeys[n++] = key;
+					}
+				}
+			}
+			Arrays.sort(this.sortedKeys);
+			this.keyFeatures = new int[n];
+			this.offsets = new int[NUM_BUCKETS+1];
+			for(int k=0; k<n; k++) {
+				this.keyFeatures[k] = keyToFeature.get(this.sortedKeys[k]);
+				this.offsets[(int) (this.sortedKeys[k] >>> BUCKET_SHIFT) + 1]++;
+			}
+			for(int b=1; b<this.offsets.length; b++) {
+				this.offsets[b] += this.offsets[b-1];
+			}
+			this.unpackable = new int[unpackableList.size()];
+			this.unpackableStrings = new String[unpackableList.size()];
+			for(int u=0; u<this.unpackable.length; u++) {
+				this.unpackable[u] = unpackableList.get(u);
+				this.unpackableStrings[u] = variableString(features.get(this.unpackable[u]));
+			}
+		}
+
+		/**
+		 * Writes a binary model file using this layout.
+		 *
+		 * @param file			target file
+		 * @param parserName	label of the parser model
+		 * @param weights		feature weights, indexed by feature (missing entries are written as 0.0)
+		 * @throws IOException
+		 */
+		public void write(File file, String parserName, double[] weights) throws IOException {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(this.sortedKeys.length);
+				out.writeInt(this.unpackable.length);
+				writeString(out, parserName);
+				for(int offset : this.offsets) {
+					out.writeInt(offset);
+				}
+				while(out.size() % 8 != 0) {
+					out.writeByte(0);
+				}
+				for(long key : this.sortedKeys) {
+					out.writeLong(key);
+				}
+				for(int f : this.keyFeatures) {
+					out.writeDouble(weightOf(weights, f));
+				}
+				for(int u=0; u<this.unpackable.length; u++) {
+					out.writeDouble(weightOf(weights, this.unpackable[u]));
+					writeString(out, this.unpackableStrings[u]);
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+
+		private static double weightOf(double[] weights, int f) {
+			return (weights == null || f >= weights.length) ? 0.0 : weights[f];
+		}
+	}
+
+	/**
+	 * Returns the string form of a feature that ConditioningVariables.loadFromString can read.
+	 */
+	private static String variableString(ConditioningVariables feature) {
+		String vars = feature.toString();
+		if(vars.trim().equals("null")) {
+			return "";
+		}
+		return vars.replaceAll("\\[", "").replaceAll("\\]", "").replaceAll(",", "").trim();
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static int align(int position) {
+		return (position + 7) & ~7;
+	}
+}
@@ -14,6 +14,7 @@ import illinoisParser.variables.ConditioningVariables;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -23,17 +24,25 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Scanner;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import perceptron.core.representations.parsing.PackedFeatureForest;
 import perceptron.parser.PerceptronChart;
 import perceptron.parser.PerceptronParser;
 import perceptron.parser.SupertaggedSentence;
 import perceptron.parser.SupertaggedTrainingData;
+import perceptron.parser.TrainingForest;
+import perceptron.parser.io.MappedFeatureForests;
 import supertagger.CandCSupertaggerWrapper;
 import supertagger.lewissteedman.LSSupertagger;
 import util.serialization.CompressionType;
+import util.serialization.PrefetchingSerializedData;
 import util.serialization.SerializedData;
-import util.serialization.SerializedFSTDiskData;
+import util.serialization.SerializedSegmentedData;
+import util.serialization.SerializedSlabRAMData;
 
 /**
  * The PPTrainer class manages the {@link perceptron.parser.PerceptronParser} training pipeline. In particular, it
@@ -84,6 +93,12 @@ public class PPTrainer {
 	/** Static/final label for default learned parsing model**/
 	private static String FINAL_PARSER_FILE_NAME = "final_parser";
 
+	/** Static/final label for the flat (memory-mappable) encoding of the packed feature forests **/
+	private static String FLAT_FORESTS_FILE_NAME = "training_forests.flat";
+
+	/** Number of sentences each fold may have in flight per worker thread during parallel preprocessing **/
+	private static final int WINDOW_PER_THREAD = 4;
+
 	/** File system pointer to top-level directory **/
 	private File directory;
 
@@ -312,21 +327,106 @@ public class PPTrainer {
 	 * Multitags sentences in all folds in the training data.
 	 * @param beta	multitagger beam width
 	 */
-	public void multitag(double beta) {
-		for(int f=0; f<this.folds.size(); f++) {
-			this.multitagFold(f, beta);
-			System.out.println("Multitagged fold "+f+".");
-		}
+	public void multitag(final double beta) {
+		this.runOnFolds(new FoldTask("Multitagged") {
+			@Override
+			void process(int foldNum, ExecutorService workers, int window) {
+				folds.get(foldNum).multitag(supertagger, beta, workers, window);
+			}
+		});
 	}
 
 	/**
 	 * Coarse-parses sentences in all folds in the training data.
 	 */
 	public void coarseParse() {
+		this.runOnFolds(new FoldTask("Coarse parsed") {
+			@Override
+			void process(int foldNum, ExecutorService workers, int window) {
+				folds.get(foldNum).coarseParse(grammar, workers, window);
+			}
+		});
+	}
+
+	/**
+	 * Runs a preprocessing step on every fold. If the config specifies more than one thread,
+	 * folds are processed concurrently, and each fold hands its sentences to a shared, bounded 
+	 * pool of worker threads; otherwise folds are processed one at a time on the calling thread.
+	 * If a fold fails, the first failure is rethrown (as a RuntimeException) once every fold has
+	 * stopped, so later steps never run on partial folds.
+	 * 
+	 * @param task	the step to run on each fold
+	 */
+	private void runOnFolds(final FoldTask task) {
+		int numThreads = this.config.getNumThreads();
+		if(numThreads <= 1) {
+			for(int f=0; f<this.folds.size(); f++) {
+				task.process(f, null, 0);
+				System.out.println(task.label+" fold "+f+".");
+			}
+			return;
+		}
+		final ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+		final int window = WINDOW_PER_THREAD*numThreads;
+		// Fold threads only read input, queue sentences and write output; the work runs on the workers
+		ExecutorService foldThreads = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, this.folds.size())));
+		ArrayList<Future<?>> foldFutures = new ArrayList<Future<?>>();
 		for(int f=0; f<this.folds.size(); f++) {
-			this.coarseParseFold(f);
-			System.out.println("Coarse parsed fold "+f+".");
+			final int foldNum = f;
+			foldFutures.add(foldThreads.submit(new Runnable() {
+				@Override
+				public void run() {
+					task.process(foldNum, workers, window);
+					System.out.println(task.label+" fold "+foldNum+".");
+				}
+			}));
+		}
+		RuntimeException failure = null;
+		for(int f=0; f<foldFutures.size(); f++) {
+			try {
+				foldFutures.get(f).get();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = new RuntimeException("Interrupted while processing folds.", e);
+				break;
+			}
+			catch(ExecutionException e) {
+				System.out.println("Failed to process fold "+f+".");
+				if(failure == null) {
+					failure = new RuntimeException("Failed to process fold "+f+".", e.getCause());
+				}
+			}
+		}
+		foldThreads.shutdown();
+		workers.shutdown();
+		if(failure != null) {
+			foldThreads.shutdownNow();
+			workers.shutdownNow();
+			throw failure;
+		}
+	}
+
+	/**
+	 * A preprocessing step that can be run on each fold (see runOnFolds).
+	 */
+	private abstract static class FoldTask {
+
+		/** Label used in progress messages **/
+		final String label;
+
+		FoldTask(String progressLabel) {
+			this.label = progressLabel;
 		}
+
+		/**
+		 * Processes a single fold.
+		 * 
+		 * @param foldNum	index of the fold
+		 * @param workers	shared worker pool (null if the fold should be processed on the calling thread)
+		 * @param window	maximum number of sentences a fold may have in flight at once
+		 */
+		abstract void process(int foldNum, ExecutorService workers, int window);
 	}
 
 	@Deprecated
@@ -345,8 +445,24 @@ public class PPTrainer {
 		int numIterations = this.config.getNumTrainingIterations();		
 		int maxLength = this.config.getMaxSentenceLength();
 		PerceptronParser finalParser = this.loadFinalParserForTraining();		
-		SerializedData<PackedFeatureForest> finalForests = this.loadFinalForests();
-		finalParser.trainOnPackedForests(finalForests, numIterations, maxLength);
+		SerializedData<? extends TrainingForest> finalForests = null;
+		if(this.config.useMappedForests()) {
+			finalForests = this.loadMappedForests();
+		}
+		if(finalForests == null) {
+			SerializedData<PackedFeatureForest> serializedForests = this.loadFinalForests();
+			if(this.config.keepForestsInRAM()) {
+				SerializedSlabRAMData<PackedFeatureForest> ramForests = 
+						SerializedSlabRAMData.copyOf(serializedForests, CompressionType.LZ4);
+				serializedForests.close();
+				System.out.println("Loaded training forests into memory: "+ramForests.statistics());
+				serializedForests = ramForests;
+			}
+			finalForests = PrefetchingSerializedData.wrap(serializedForests, 
+					this.config.getPrefetchDepth(), this.config.getNumDecodeThreads());
+		}
+		finalParser.trainOnPackedForests(finalForests, numIterations, maxLength, 
+				this.config.getNumTrainingThreads());
 		finalParser.save(FINAL_PARSER_FILE_NAME);
 	}
 
@@ -366,7 +482,49 @@ public class PPTrainer {
 	 */
 	@SuppressWarnings("unchecked")
 	private SerializedData<PackedFeatureForest> loadFinalForests() {
-		return (SerializedData<PackedFeatureForest>) SerializedFSTDiskData.useExisting(this.getPrunedForestsDir(), CompressionType.LZ4);
+		return (SerializedData<PackedFeatureForest>) SerializedSegmentedData.openExisting(this.getPrunedForestsDir(), CompressionType.LZ4);
+	}
+
+	/**
+	 * Maps the flat encoding of the training forests, first (re)building it from the serialized 
+	 * forests if it is missing or older than them.
+	 * 
+	 * @return	the mapped forests, or null if they could not be built or mapped
+	 */
+	private MappedFeatureForests loadMappedForests() {
+		File flatFile = this.getFile(TRAINING_DIR_NAME, FLAT_FORESTS_FILE_NAME);
+		try {
+			if(!MappedFeatureForests.isFlatForestFile(flatFile)
+					|| flatFile.lastModified() < newestModificationTime(this.getPrunedForestsDir())) {
+				System.out.println("Writing flat training forests to "+flatFile.getPath());
+				SerializedData<PackedFeatureForest> forests = this.loadFinalForests();
+				int n = MappedFeatureForests.write(flatFile, forests);
+				forests.close();
+				System.out.println("Wrote "+n+" flat training forests");
+			}
+			return MappedFeatureForests.open(flatFile);
+		}
+		catch(IOException e) {
+			System.out.println("Failed to build mapped training forests; reading serialized forests instead");
+			e.printStackTrace();
+			flatFile.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the latest modification time of a file or of any file below a directory (a 
+	 * directory's own time does not change when a file in it is rewritten in place).
+	 */
+	private static long newestModificationTime(File file) {
+		long newest = file.lastModified();
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				newest = Math.max(newest, newestModificationTime(child));
+			}
+		}
+		return newest;
 	}
 
 	/**
@@ -378,7 +536,11 @@ public class PPTrainer {
 		// TODO: don't load features with value 0.0
 		Grammar g = this.grammar;
 		SupervisedParsingConfig c = SupervisedParsingConfig.getDefaultConfig();
-		String filename = "iter_"+iteration+"_saved_parser.txt";
+		// Snapshots are written in the binary format; older runs saved them as text
+		String filename = "iter_"+iteration+"_saved_parser.bin";
+		if(!(new File(this.getFinalModelDir(), filename)).exists()) {
+			filename = "iter_"+iteration+"_saved_parser.txt";
+		}
 		return PerceptronParser.load(g, c, this.getFinalModelDir(), filename, true);
 	}
 
@@ -769,9 +931,23 @@ public class PPTrainer {
 	 * Creates the packed feature forests for all folds in the training data.
 	 */
 	public void buildTrainingForests() {
-		for(int f=0; f<this.folds.size(); f++) {
-			this.buildTrainingForestsForFold(f);
+		if(this.config.getNumThreads() <= 1) {
+			for(int f=0; f<this.folds.size(); f++) {
+				this.buildTrainingForestsForFold(f);
+			}
+			return;
 		}
+		// Load the feature space once, and share it across folds
+		final PerceptronParser parser = 
+				PerceptronParser.loadIntermediateParser(this.getFinalModelDir(), 
+						TRAINING_PARSER_FILE_NAME, true, this.grammar);
+		this.runOnFolds(new FoldTask("Built training forests for") {
+			@Override
+			void process(int foldNum, ExecutorService workers, int window) {
+				folds.get(foldNum).buildTrainingForests(parser, getNewForestsForFold(foldNum), 
+						workers, window);
+			}
+		});
 	}
 
 	/**
@@ -780,15 +956,22 @@ public class PPTrainer {
 	 * @param foldNum	index of that fold
 	 */
 	public void buildTrainingForestsForFold(int foldNum) {
-		@SuppressWarnings("unchecked")
-		SerializedFSTDiskData<PackedFeatureForest> finalForests = 
-				(SerializedFSTDiskData<PackedFeatureForest>) SerializedFSTDiskData.createNew(this.getPrunedForestsDir(), 
-				CompressionType.LZ4, "fold_"+foldNum+"_");
-
+		SerializedData<PackedFeatureForest> finalForests = this.getNewForestsForFold(foldNum);
 		PerceptronParser parser = 
 				PerceptronParser.loadIntermediateParser(this.getFinalModelDir(), 
 						TRAINING_PARSER_FILE_NAME, true, this.grammar);
 		this.folds.get(foldNum).buildTrainingForests(parser, finalForests);
 	}
 
+	/**
+	 * Creates the (empty) packed feature forest storage for a particular fold.
+	 * 
+	 * @param foldNum	index of that fold
+	 */
+	@SuppressWarnings("unchecked")
+	private SerializedData<PackedFeatureForest> getNewForestsForFold(int foldNum) {
+		return (SerializedData<PackedFeatureForest>) SerializedSegmentedData.createNew(this.getPrunedForestsDir(), 
+				CompressionType.LZ4, "fold_"+foldNum+"_");
+	}
+
 }
@@ -29,6 +29,36 @@ public class PPTrainerConfig {
 	 */
 	private int maxSentenceLength = 40;
 	
+	/**
+	 * Number of worker threads used to preprocess the training data (1 processes folds sequentially)
+	 */
+	private int numThreads = 1;
+	
+	/**
+	 * Number of perceptron training shards (threads); more than one uses iterative parameter mixing
+	 */
+	private int numTrainingThreads = 1;
+	
+	/**
+	 * Number of threads that decode packed feature forests ahead of perceptron training (0 disables prefetching)
+	 */
+	private int numDecodeThreads = 2;
+	
+	/**
+	 * Maximum number of packed feature forests decoded ahead of perceptron training
+	 */
+	private int prefetchDepth = 16;
+	
+	/**
+	 * If true, perceptron training reads the forests from a memory-mapped flat encoding (built once)
+	 */
+	private boolean mappedForests = true;
+	
+	/**
+	 * If true (and mappedForests is false), the training forests are loaded into compressed off-heap slabs before training
+	 */
+	private boolean ramForests = false;
+	
 	/**
 	 * Default/empty constructor, used in factory methods.
 	 */
@@ -71,6 +101,24 @@ public class PPTrainerConfig {
 						else if(arg.equalsIgnoreCase("maxSentenceLengths")) {
 							config.maxSentenceLength = Integer.parseInt(val);
 						}
+						else if(arg.equalsIgnoreCase("numThreads")) {
+							config.numThreads = Integer.parseInt(val);
+						}
+						else if(arg.equalsIgnoreCase("numTrainingThreads")) {
+							config.numTrainingThreads = Integer.parseInt(val);
+						}
+						else if(arg.equalsIgnoreCase("numDecodeThreads")) {
+							config.numDecodeThreads = Integer.parseInt(val);
+						}
+						else if(arg.equalsIgnoreCase("prefetchDepth")) {
+							config.prefetchDepth = Integer.parseInt(val);
+						}
+						else if(arg.equalsIgnoreCase("mappedForests")) {
+							config.mappedForests = Boolean.parseBoolean(val);
+						}
+						else if(arg.equalsIgnoreCase("ramForests")) {
+							config.ramForests = Boolean.parseBoolean(val);
+						}
 					}
 				}
 			}
@@ -93,7 +141,13 @@ public class PPTrainerConfig {
 		try {
 			pw = new PrintWriter(file);
 			pw.println("numTrainingIterations\t\t"+this.numTrainingIterations);
-			pw.println("maxSentenceLength    \t\t"+this.maxSentenceLength);				
+			pw.println("maxSentenceLength    \t\t"+this.maxSentenceLength);
+			pw.println("numThreads           \t\t"+this.numThreads);
+			pw.println("numTrainingThreads   \t\t"+this.numTrainingThreads);
+			pw.println("numDecodeThreads     \t\t"+this.numDecodeThreads);
+			pw.println("prefetchDepth        \t\t"+this.prefetchDepth);
+			pw.println("mappedForests        \t\t"+this.mappedForests);
+			pw.println("ramForests           \t\t"+this.ramForests);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		}
@@ -123,4 +177,61 @@ public class PPTrainerConfig {
 	public int getMaxSentenceLength() {
 		return this.maxSentenceLength;
 	}
+
+	/**
+	 * Returns the number of worker threads used to preprocess the training data 
+	 * (values below one use one thread per available core).
+	 */
+	public int getNumThreads() {
+		if(this.numThreads < 1) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return this.numThreads;
+	}
+
+	/**
+	 * Sets the number of worker threads used to preprocess the training data.
+	 */
+	public void setNumThreads(int threads) {
+		this.numThreads = threads;
+	}
+
+	/**
+	 * Returns the number of shards (threads) used by perceptron training; with more than one, 
+	 * training uses iterative parameter mixing, which changes the learned weights.
+	 */
+	public int getNumTrainingThreads() {
+		return Math.max(1, this.numTrainingThreads);
+	}
+
+	/**
+	 * Returns the number of threads that decode training forests ahead of perceptron training
+	 * (zero disables prefetching).
+	 */
+	public int getNumDecodeThreads() {
+		return Math.max(0, this.numDecodeThreads);
+	}
+
+	/**
+	 * Returns the maximum number of training forests decoded ahead of perceptron training.
+	 */
+	public int getPrefetchDepth() {
+		return this.prefetchDepth;
+	}
+
+	/**
+	 * Returns true if perceptron training should read the training forests from a memory-mapped
+	 * flat encoding instead of deserializing them in every iteration.
+	 */
+	public boolean useMappedForests() {
+		return this.mappedForests;
+	}
+
+	/**
+	 * Returns true if the serialized training forests should be held in memory (in compressed
+	 * off-heap slabs) during perceptron training.
+	 */
+	public boolean keepForestsInRAM() {
+		return this.ramForests;
+	}
 }
@@ -4,25 +4,33 @@ import illinoisParser.Grammar;
 import illinoisParser.Sentence;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
 
 import perceptron.core.representations.parsing.PackedFeatureForest;
 import perceptron.parser.PerceptronChart;
 import perceptron.parser.PerceptronParser;
 import perceptron.parser.SupertaggedTrainingData;
+import perceptron.parser.SupertaggedTrainingDataReader;
+import perceptron.parser.SupertaggedTrainingDataWriter;
 
+import supertagger.SupertagAssignment;
 import supertagger.lewissteedman.LSSupertagger;
 import util.CoarseParseGenerator;
+import util.OrderedParallelProcessor;
 import util.serialization.CompressionType;
 import util.serialization.SerializedData;
-import util.serialization.SerializedFSTDiskData;
+import util.serialization.SerializedSegmentedData;
 
 public class PPTrainingFold {
 
 	private static CompressionType COMPRESSION_TYPE = CompressionType.LZ4;
 
 	private static String SENTENCE_FILE_NAME = "sentences.auto.gz";
-	private static String MULTITAGGED_FILE_NAME = "sentences.multitagged.txt";
+	private static String MULTITAGGED_FILE_NAME = "sentences.multitagged.bin";
+	private static String MULTITAGGED_TEXT_FILE_NAME = "sentences.multitagged.txt";
 	private static String COARSEPARSE_DIR_NAME = "coarse_parses";
 	private static String EXTRACTION_DIR_NAME = "feature_extraction";
 	private static String INTER_FORESTS_DIR_NAME = "intermediate_fine_parses";
@@ -41,23 +49,98 @@ public class PPTrainingFold {
 	}
 
 	public void multitag(LSSupertagger supertagger, double beta) {
+		this.multitag(supertagger, beta, null, 0);
+	}
+
+	/**
+	 * Multitags the sentences in this fold, using the worker pool if one is provided 
+	 * (sentences are saved in their original order).
+	 * 
+	 * @param supertagger	supertagger (shared; calls to it are serialized)
+	 * @param beta			multitagger beam
+	 * @param workers		worker pool, or null to multitag on the calling thread
+	 * @param window		maximum number of sentences in flight at once
+	 */
+	public void multitag(final LSSupertagger supertagger, final double beta, 
+			ExecutorService workers, int window) {
 		Collection<Sentence> sentences = Sentence.readFromGZIPFile(
 				new File(this.directory.getPath()+File.separator+SENTENCE_FILE_NAME));
-		SupertaggedTrainingData data = new SupertaggedTrainingData();
-		for(Sentence sen : sentences) {
-			data.addSentence(sen, supertagger.tagSentence(sen, beta));			
+		File outFile = new File(this.directory.getPath()+File.separator+MULTITAGGED_FILE_NAME);
+		try {
+			// Tagged sentences are streamed to disk as they are finished
+			final SupertaggedTrainingDataWriter data = new SupertaggedTrainingDataWriter(outFile,
+					supertagger.getCategoryList());
+			if(workers == null) {
+				for(Sentence sen : sentences) {
+					data.write(sen, supertagger.tagSentence(sen, beta));			
+				}
+			}
+			else {
+				final Iterator<Sentence> iter = sentences.iterator();
+				new OrderedParallelProcessor<Sentence, SupertagAssignment>() {
+					@Override
+					protected Sentence nextInput() {
+						return iter.hasNext() ? iter.next() : null;
+					}
+
+					@Override
+					protected SupertagAssignment process(Sentence sen) {
+						// Tagging does not modify the tagger, so workers share it without locking
+						return supertagger.tagSentence(sen, beta);
+					}
+
+					@Override
+					protected void consume(Sentence sen, SupertagAssignment tags) {
+						if(tags != null) {
+							try {
+								data.write(sen, tags);
+							}
+							catch(IOException e) {
+								System.out.println("Failed to write multitagged sentence: "+sen);
+								e.printStackTrace();
+							}
+						}
+					}
+				}.run(workers, window);
+			}
+			data.close();
+		}
+		catch(IOException e) {
+			System.out.println("Failed to write multitagged data: "+outFile.getPath());
+			e.printStackTrace();
 		}
-		data.save(this.directory.getPath()+File.separator+MULTITAGGED_FILE_NAME);
 	}
 
 	public void coarseParse(Grammar grammar) {
+		this.coarseParse(grammar, null, 0);
+	}
+
+	/**
+	 * Coarse-parses the multitagged sentences in this fold, using the worker pool if one is provided
+	 * (charts are saved in the original sentence order).
+	 * 
+	 * @param grammar	grammar (shared)
+	 * @param workers	worker pool, or null to parse on the calling thread
+	 * @param window	maximum number of sentences in flight at once
+	 */
+	public void coarseParse(Grammar grammar, ExecutorService workers, int window) {
 		File cpDir = new File(this.directory.getPath()+File.separator+COARSEPARSE_DIR_NAME);
 		cpDir.mkdir();
 		@SuppressWarnings("unchecked")
-		SerializedData<PerceptronChart> parses = (SerializedData<PerceptronChart>) SerializedFSTDiskData.createNew(
+		SerializedData<PerceptronChart> parses = (SerializedData<PerceptronChart>) SerializedSegmentedData.createNew(
 				cpDir, COMPRESSION_TYPE);
-		SupertaggedTrainingData data = this.getSupertaggedSentences();
-		CoarseParseGenerator.generateCoarseParses(data, grammar, parses);
+		SupertaggedTrainingDataReader data = this.streamSupertaggedSentences();
+		if(data == null) {
+			parses.close();
+			return;
+		}
+		if(workers == null) {
+			CoarseParseGenerator.generateCoarseParses(data, grammar, parses);
+		}
+		else {
+			CoarseParseGenerator.generateCoarseParses(data, grammar, parses, workers, window);
+		}
+		parses.close();
 	}
 
 	public void extractFeatures(PerceptronParser intermediateParser) {
@@ -75,12 +158,13 @@ public class PPTrainingFold {
 		// Extract features from coarse parses, and save (intermediate) packed feature forests
 		@SuppressWarnings("unchecked")
 		SerializedData<PackedFeatureForest> intermediateForests = 
-				(SerializedData<PackedFeatureForest>) SerializedFSTDiskData.createNew(interForestDir, COMPRESSION_TYPE);
+				(SerializedData<PackedFeatureForest>) SerializedSegmentedData.createNew(interForestDir, COMPRESSION_TYPE);
 		SerializedData<PerceptronChart> coarseForests = this.getCoarseForests();
 
 		PPFeatureExtractor extractor = new PPFeatureExtractor(feDir, intermediateParser, coarseForests,
 				intermediateForests);
 		extractor.extractFeaturesAndBuildFeatureForests();
+		intermediateForests.close();
 
 		// Save intermediate parser to disk
 		(new File(interParserDir.getPath())).mkdir();
@@ -110,7 +194,7 @@ public class PPTrainingFold {
 			SerializedData<PackedFeatureForest> finalForests) {
 		@SuppressWarnings("unchecked")
 		SerializedData<PackedFeatureForest> intermediateForests = 
-				(SerializedData<PackedFeatureForest>) SerializedFSTDiskData.useExisting(new File(this.getIntermediateForestsDirPath()), COMPRESSION_TYPE);
+				(SerializedData<PackedFeatureForest>) SerializedSegmentedData.openExisting(new File(this.getIntermediateForestsDirPath()), COMPRESSION_TYPE);
 		PPFeatureExtractor extractor = this.getFeatureExtractor();
 		extractor.pruneFeatureFromForests(finalParser, intermediateForests, finalForests);
 	}
@@ -147,33 +231,102 @@ public class PPTrainingFold {
 		for(File child : cpDir.listFiles()) {
 			child.delete();
 		}
-		return SupertaggedTrainingData.load(
-				this.directory.getPath()+File.separator+MULTITAGGED_FILE_NAME);
+		return SupertaggedTrainingData.load(this.getMultitaggedFilepath());
+	}
+
+	/**
+	 * Returns a reader that streams the multitagged sentences in this fold (without loading them all
+	 * into memory), or null if they can't be read.
+	 */
+	public SupertaggedTrainingDataReader streamSupertaggedSentences() {
+		return SupertaggedTrainingData.stream(this.getMultitaggedFilepath());
+	}
+
+	/**
+	 * Returns the path to the multitagged sentences (binary, or text if the fold was multitagged 
+	 * by an older version).
+	 */
+	private String getMultitaggedFilepath() {
+		File binary = new File(this.directory.getPath()+File.separator+MULTITAGGED_FILE_NAME);
+		File text = new File(this.directory.getPath()+File.separator+MULTITAGGED_TEXT_FILE_NAME);
+		if(!binary.exists() && text.exists()) {
+			return text.getPath();
+		}
+		return binary.getPath();
 	}
 
 	@SuppressWarnings("unchecked")
 	public SerializedData<PerceptronChart> getCoarseForests() {
 		File cpDir = new File(this.directory.getPath()+File.separator+COARSEPARSE_DIR_NAME);
-		return (SerializedData<PerceptronChart>) SerializedFSTDiskData.useExisting(cpDir, COMPRESSION_TYPE);
+		return (SerializedData<PerceptronChart>) SerializedSegmentedData.openExisting(cpDir, COMPRESSION_TYPE);
 	}
 
 	public void buildTrainingForests(PerceptronParser parser,
-			SerializedFSTDiskData<PackedFeatureForest> finalForests) {
-		SerializedData<PerceptronChart> coarseForests = this.getCoarseForests();
-		PerceptronChart chart;
-		while((chart=coarseForests.next())!= null) {
-			if(chart.successfulCoarseParse()) {
-				chart.grammar = parser.grammar();
-				chart.fineParseWithPerceptronModel(parser, false);
-				PackedFeatureForest pruned = new PackedFeatureForest(chart, parser, false);
-				finalForests.addObject(pruned);
-			}
+			SerializedData<PackedFeatureForest> finalForests) {
+		this.buildTrainingForests(parser, finalForests, null, 0);
+	}
 
-			// TODO: we need to either:
-			//	a) construct a packed feature forest using only the features in parser
-			//	b) construct an unpruned feature forest, then prune it using the features in parse
+	/**
+	 * Builds the packed feature forests for the coarse parses in this fold, using the worker pool
+	 * if one is provided (forests are saved in the original sentence order).
+	 * 
+	 * @param parser		parser that defines the feature space (shared; not modified)
+	 * @param finalForests	output forests
+	 * @param workers		worker pool, or null to build forests on the calling thread
+	 * @param window		maximum number of charts in flight at once
+	 */
+	public void buildTrainingForests(final PerceptronParser parser,
+			final SerializedData<PackedFeatureForest> finalForests, 
+			ExecutorService workers, int window) {
+		final SerializedData<PerceptronChart> coarseForests = this.getCoarseForests();
+		if(workers == null) {
+			PerceptronChart chart;
+			while((chart=coarseForests.next())!= null) {
+				PackedFeatureForest pruned = buildTrainingForest(parser, chart);
+				if(pruned != null) {
+					finalForests.addObject(pruned);
+				}
+			}
+		}
+		else {
+			new OrderedParallelProcessor<PerceptronChart, PackedFeatureForest>() {
+				@Override
+				protected PerceptronChart nextInput() {
+					return coarseForests.next();
+				}
+
+				@Override
+				protected PackedFeatureForest process(PerceptronChart chart) {
+					return buildTrainingForest(parser, chart);
+				}
+
+				@Override
+				protected void consume(PerceptronChart chart, PackedFeatureForest pruned) {
+					if(pruned != null) {
+						finalForests.addObject(pruned);
+					}
+				}
+			}.run(workers, window);
 		}
 		coarseForests.reset();
+		finalForests.close();
+	}
+
+	/**
+	 * Fine-parses a single coarse chart and returns its packed feature forest 
+	 * (or null if the chart has no coarse parse).
+	 */
+	private static PackedFeatureForest buildTrainingForest(PerceptronParser parser, PerceptronChart chart) {
+		if(chart.successfulCoarseParse()) {
+			chart.grammar = parser.grammar();
+			chart.fineParseWithPerceptronModel(parser, false);
+			return new PackedFeatureForest(chart, parser, false);
+		}
+
+		// TODO: we need to either:
+		//	a) construct a packed feature forest using only the features in parser
+		//	b) construct an unpruned feature forest, then prune it using the features in parse
+		return null;
 	}
 
 }
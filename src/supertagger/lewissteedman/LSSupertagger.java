@@ -5,12 +5,14 @@ import illinoisParser.Sentence;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -29,6 +31,11 @@ import supertagger.nn.modules.SoftMaxLayer;
  * This class defines the neural net used in the Lewis and Steedman supertagger
  * (specifically, this class does NOT use the additional hard-tanh hidden layer).
  * 
+ * Tagging and prediction do not modify the network, so a single tagger may be shared by
+ * several threads: the sentence-level methods use freshly allocated batch matrices, and
+ * the per-word methods use a {@link Workspace} (either passed in by the caller or owned by
+ * the calling thread). Training (trainOn/train) caches activations and is single-threaded.
+ * 
  * @author ramusa2
  *
  */
@@ -48,6 +55,31 @@ public class LSSupertagger {
 	private ArrayList<String> catList;
 	private HashMap<String, Integer> catToID;
 
+	/** Per-thread scratch buffers for the per-word predict methods **/
+	private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return newWorkspace();
+		}
+	};
+
+	/**
+	 * Scratch buffers for a single thread's forward passes through a tagger (the vectors
+	 * returned by predict are owned by the workspace, and are overwritten by its next use).
+	 */
+	public static class Workspace {
+
+		private final DoubleMatrix lookupOutput;
+		private final DoubleMatrix linearOutput;
+		private final DoubleMatrix prediction;
+
+		private Workspace(int numInputs, int numLabels) {
+			this.lookupOutput = new DoubleMatrix(numInputs, 1);
+			this.linearOutput = new DoubleMatrix(numLabels, 1);
+			this.prediction = new DoubleMatrix(numLabels, 1);
+		}
+	}
+
 	/**
 	 * Constructs a new supertagger.
 	 * 
@@ -108,11 +140,30 @@ public class LSSupertagger {
 	/**
 	 * Returns a column vector where the i'th element is the probability of the i'th label,
 	 * according to the network's current parameters.
+	 * 
+	 * The vector belongs to the calling thread's workspace, and is overwritten by that 
+	 * thread's next call to predict.
 	 */
 	public DoubleMatrix predict(LSVariableEntry[] context) {
 		//return this.outputLayer.predict(this.firstLinearLayer.output(this.lookupLayer.output(context)));
 		// TODO: verify correctness
-		return this.outputLayer.predict(this.lookupLayer.output(context));
+		return this.predict(context, this.workspaces.get());
+	}
+
+	/**
+	 * Returns a column vector where the i'th element is the probability of the i'th label,
+	 * computed using (and stored in) the caller's workspace.
+	 */
+	public DoubleMatrix predict(LSVariableEntry[] context, Workspace workspace) {
+		return this.outputLayer.predict(this.lookupLayer.output(context, workspace.lookupOutput), 
+				workspace.linearOutput, workspace.prediction);
+	}
+
+	/**
+	 * Creates scratch buffers for the predict methods (one per thread).
+	 */
+	public Workspace newWorkspace() {
+		return new Workspace(this.lookupLayer.getNumberOfOutputs(), this.outputLayer.numberOfClasses());
 	}
 
 	private DoubleMatrix getRandomGaussianNoise(int dimension) {
@@ -127,11 +178,16 @@ public class LSSupertagger {
 
 	public SupertagAssignment tagSentence(Sentence sentence) {
 		SupertagAssignment assign = new SupertagAssignment(sentence);
+		if(sentence.length() == 0) {
+			return assign;
+		}
+		double[] predictions = this.predictSentence(sentence).data;
+		int offset = 0;
 		for(int w=0; w<sentence.length(); w++) {
-			DoubleMatrix prediction = this.predict(sentence, w);
-			for(int c=0; c<prediction.length; c++) {
-				assign.addLexcat(w, this.catList.get(c), prediction.get(c));
+			for(int c=0; c<this.numLabels; c++) {
+				assign.addLexcat(w, this.catList.get(c), predictions[offset+c]);
 			}
+			offset += this.numLabels;
 		}
 		return assign;
 	}
@@ -139,20 +195,59 @@ public class LSSupertagger {
 
 	public SupertagAssignment tagSentence(Sentence sentence, double beta) {
 		SupertagAssignment assign = new SupertagAssignment(sentence);
-		for(int w=0; w<sentence.length(); w++) {
-			DoubleMatrix prediction = this.predict(sentence, w);
+		if(sentence.length() == 0) {
+			return assign;
+		}
+		this.addBetaTags(assign, this.predictSentence(sentence).data, 0, beta);
+		return assign;
+	}
+
+	/**
+	 * Tags several sentences (e.g. a document) at once: the context windows of every word are
+	 * assembled into a single input matrix, so the whole batch needs only one matrix-matrix 
+	 * product. Returns one assignment per sentence, in order.
+	 */
+	public ArrayList<SupertagAssignment> tagSentences(List<Sentence> sentences, double beta) {
+		ArrayList<SupertagAssignment> assignments = new ArrayList<SupertagAssignment>(sentences.size());
+		double[] predictions = this.predictSentences(sentences).data;
+		int offset = 0;
+		for(Sentence sentence : sentences) {
+			SupertagAssignment assign = new SupertagAssignment(sentence);
+			this.addBetaTags(assign, predictions, offset, beta);
+			offset += sentence.length()*this.numLabels;
+			assignments.add(assign);
+		}
+		return assignments;
+	}
+
+	/**
+	 * Adds the categories within beta of the best category for each word of the assignment's
+	 * sentence, reading the words' predicted distributions (one column per word) from 
+	 * predictions starting at offset.
+	 */
+	private void addBetaTags(SupertagAssignment assign, double[] predictions, int offset, double beta) {
+		for(int w=0; w<assign.sentence().length(); w++) {
 			double best = -1.0;
-			for(int c=0; c<prediction.length; c++) {
-				best = Math.max(best, prediction.get(c));
+			for(int c=0; c<this.numLabels; c++) {
+				best = Math.max(best, predictions[offset+c]);
 			}
 			double cutoff = best*beta;
-			for(int c=0; c<prediction.length; c++) {
-				if(prediction.get(c) >= cutoff) {
-					assign.addLexcat(w, this.catList.get(c), prediction.get(c));
+			for(int c=0; c<this.numLabels; c++) {
+				if(predictions[offset+c] >= cutoff) {
+					assign.addLexcat(w, this.catList.get(c), predictions[offset+c]);
 				}
 			}
+			offset += this.numLabels;
 		}
-		return assign;
+	}
+
+	/**
+	 * Trains with mini-batch SGD (see {@link LSSupertaggerTrainer}), using batches of the given
+	 * size and, if numThreads is greater than one, Hogwild-style parallel updates.
+	 */
+	public void train(Collection<Sentence> data, int numIterations, double learningRate, String saveDir, 
+			int startIter, int batchSize, int numThreads) {
+		new LSSupertaggerTrainer(this, batchSize, numThreads).train(data, numIterations, learningRate, saveDir, startIter);
 	}
 
 	public void train(Collection<Sentence> data, int numIterations, double learningRate) {
@@ -192,12 +287,15 @@ public class LSSupertagger {
 		lookupWeights.mkdir();
 		this.lookupLayer.saveWeightsToFile(lookupWeights);
 		File linearWeights = new File(dir.getPath()+File.separator+"linear");
-		this.firstLinearLayer.saveWeightsToFile(linearWeights);
+		// Matches loadWeights (the hidden linear layer is not used)
+		this.outputLayer.saveWeightsToFile(linearWeights);
 		try {
 			File config = new File(dir.getPath()+File.separator+"config");
 			this.writeConfig(config);
 			File categories = new File(dir.getPath()+File.separator+"categories");
 			this.writeCategories(categories);
+			// Write binary bundle (read by load in place of the text files)
+			LSSupertaggerBundle.save(this, new File(dir.getPath()+File.separator+BUNDLE_FILE_NAME));
 		}
 		catch(Exception e) {
 			System.err.println("Failed to save supertagger.");
@@ -205,6 +303,29 @@ public class LSSupertagger {
 		}
 	}
 
+	/** Name of the binary bundle written by save (see LSSupertaggerBundle) **/
+	public static final String BUNDLE_FILE_NAME = "tagger.bin";
+
+	/** Text files and directories written by save **/
+	private static final String[] TEXT_FILE_NAMES = {"config", "categories", "linear", 
+		"lookup"+File.separator+"embeddings", "lookup"+File.separator+"capitalization", "lookup"+File.separator+"suffix"};
+
+	/**
+	 * Returns true iff the bundle exists and none of the text files is newer than it.
+	 */
+	private static boolean isBundleCurrent(File dir, File bundle) {
+		if(!bundle.isFile()) {
+			return false;
+		}
+		for(String name : TEXT_FILE_NAMES) {
+			File text = new File(dir, name);
+			if(text.exists() && text.lastModified() > bundle.lastModified()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void writeCategories(File catFile) throws FileNotFoundException {
 		PrintWriter pw = new PrintWriter(catFile);
 		for(String cat : this.catList) {
@@ -237,13 +358,34 @@ public class LSSupertagger {
 		
 	}
 
+	/**
+	 * Loads a supertagger from a directory written by save, or from a bundle file. A directory's
+	 * bundle is used if it is at least as new as the text files.
+	 */
 	public static LSSupertagger load(File dir) {
 		try {
+			File bundle = dir.isFile() ? dir : new File(dir.getPath()+File.separator+BUNDLE_FILE_NAME);
+			if(dir.isFile() || isBundleCurrent(dir, bundle)) {
+				try {
+					return LSSupertaggerBundle.load(bundle);
+				}
+				catch(IOException e) {
+					System.out.println("Failed to load supertagger bundle "+bundle.getPath()
+							+"; reading text files instead.");
+					e.printStackTrace();
+				}
+			}
 			File categoriesFile = new File(dir.getPath()+File.separator+"categories");
 			ArrayList<String> categories = readCategories(categoriesFile);
 			File config = new File(dir.getPath()+File.separator+"config");
 			LSSupertagger tagger = readFromConfig(config, categories);
 			tagger.loadWeights(dir);
+			try {
+				LSSupertaggerBundle.save(tagger, bundle);
+			}
+			catch(IOException e) {
+				System.out.println("Failed to save supertagger bundle: "+bundle.getPath());
+			}
 			return tagger;
 		}
 		catch(Exception e) {
@@ -277,24 +419,27 @@ public class LSSupertagger {
 
 	public SupertagAssignment tagSentenceOracle(Sentence sentence) {
 		SupertagAssignment assign = new SupertagAssignment(sentence);
+		if(sentence.length() == 0) {
+			return assign;
+		}
+		DoubleMatrix predictions = this.predictSentence(sentence);
 		for(int w=0; w<sentence.length(); w++) {
-			DoubleMatrix prediction = this.predict(sentence, w);
 			double goldProb = -1.0;
-			for(int c=0; c<prediction.length; c++) {
+			for(int c=0; c<this.numLabels; c++) {
 				if(this.catList.get(c).equals(sentence.get(w).getCategory())) {
-					goldProb = prediction.get(c);
+					goldProb = predictions.get(c, w);
 				}
 			}
 			if(goldProb >= 0.0) {
-				for(int c=0; c<prediction.length; c++) {
-					if(prediction.get(c) >= goldProb) {
-						assign.addLexcat(w, this.catList.get(c), prediction.get(c));
+				for(int c=0; c<this.numLabels; c++) {
+					if(predictions.get(c, w) >= goldProb) {
+						assign.addLexcat(w, this.catList.get(c), predictions.get(c, w));
 					}
 				}
 			}
 			else {
-				for(int c=0; c<prediction.length; c++) {
-					assign.addLexcat(w, this.catList.get(c), prediction.get(c));
+				for(int c=0; c<this.numLabels; c++) {
+					assign.addLexcat(w, this.catList.get(c), predictions.get(c, w));
 				}
 			}
 		}
@@ -304,19 +449,22 @@ public class LSSupertagger {
 
 	public SupertagAssignment tagSentenceRestrictLexicon(Sentence sentence, HashMap<String, HashSet<String>> lexicon, double beta) {
 		SupertagAssignment assign = new SupertagAssignment(sentence);
+		if(sentence.length() == 0) {
+			return assign;
+		}
+		DoubleMatrix predictions = this.predictSentence(sentence);
 		for(int w=0; w<sentence.length(); w++) {
 			HashSet<String> allowedCats = lexicon.get(sentence.get(w).getWord());
-			DoubleMatrix prediction = this.predict(sentence, w);
 			double best = -1.0;
-			for(int c=0; c<prediction.length; c++) {
+			for(int c=0; c<this.numLabels; c++) {
 				if(allowedCats == null || allowedCats.contains(this.catList.get(c))) {
-					best = Math.max(best, prediction.get(c));
+					best = Math.max(best, predictions.get(c, w));
 				}
 			}
 			double cutoff = best*beta;
-			for(int c=0; c<prediction.length; c++) {
-				if(prediction.get(c) >= cutoff && (allowedCats == null || allowedCats.contains(this.catList.get(c)))) {
-					assign.addLexcat(w, this.catList.get(c), prediction.get(c));
+			for(int c=0; c<this.numLabels; c++) {
+				if(predictions.get(c, w) >= cutoff && (allowedCats == null || allowedCats.contains(this.catList.get(c)))) {
+					assign.addLexcat(w, this.catList.get(c), predictions.get(c, w));
 				}
 			}
 		}
@@ -324,6 +472,18 @@ public class LSSupertagger {
 	}
 
 
+	LSLookupTableLayer getLookupLayer() {
+		return this.lookupLayer;
+	}
+
+	SoftMaxLayer getOutputLayer() {
+		return this.outputLayer;
+	}
+
+	int getContextWindowSize() {
+		return this.CONTEXT_WINDOW_SIZE;
+	}
+
 	public ArrayList<String> getCategoryList() {
 		return this.catList;
 	}
@@ -346,8 +506,49 @@ public class LSSupertagger {
 	public DoubleMatrix predict(Sentence sentence, int i) {
 		//return this.outputLayer.predict(getHiddenLayerOutput(sentence, i));
 		// TODO: verify correctness
-		return this.outputLayer.predict(this.lookupLayer.output(
-				this.getContext(sentence, i)));
+		return this.predict(this.getContext(sentence, i));
+	}
+
+	public DoubleMatrix predict(Sentence sentence, int i, Workspace workspace) {
+		return this.predict(this.getContext(sentence, i), workspace);
+	}
+
+	/**
+	 * Returns a matrix whose w'th column is the distribution over labels for the w'th word of
+	 * the sentence, computed with a single matrix-matrix product for the whole sentence 
+	 * (rather than one matrix-vector product per word, as in predict(sentence, w)).
+	 */
+	public DoubleMatrix predictSentence(Sentence sentence) {
+		ArrayList<LSVariableEntry[]> contexts = new ArrayList<LSVariableEntry[]>(sentence.length());
+		for(int w=0; w<sentence.length(); w++) {
+			contexts.add(this.getContext(sentence, w));
+		}
+		return this.predictBatch(contexts);
+	}
+
+	/**
+	 * Returns a matrix with one column per word of the sentences (in order), where each column
+	 * is the distribution over labels for that word.
+	 */
+	public DoubleMatrix predictSentences(List<Sentence> sentences) {
+		ArrayList<LSVariableEntry[]> contexts = new ArrayList<LSVariableEntry[]>();
+		for(Sentence sentence : sentences) {
+			for(int w=0; w<sentence.length(); w++) {
+				contexts.add(this.getContext(sentence, w));
+			}
+		}
+		return this.predictBatch(contexts);
+	}
+
+	/**
+	 * Returns a matrix whose j'th column is the distribution over labels for the j'th
+	 * context window.
+	 */
+	public DoubleMatrix predictBatch(List<LSVariableEntry[]> contexts) {
+		if(contexts.isEmpty()) {
+			return new DoubleMatrix(this.numLabels, 0);
+		}
+		return this.outputLayer.predictBatch(this.lookupLayer.outputBatch(contexts));
 	}
 
 	public int getCategoryIndex(String category) {
@@ -0,0 +1,196 @@
+package supertagger.lewissteedman;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jblas.DoubleMatrix;
+
+import supertagger.nn.modules.LSLookupTableLayer;
+
+/**
+ * The LSSupertaggerBundle class stores a complete LSSupertagger (configuration, categories,
+ * vocabulary, embeddings, discrete feature tables and output weights) in a single binary file.
+ * Loading a bundle memory-maps the file: the lookup tables read their weights directly from the
+ * mapping (see EmbeddingTable.readFrom), so the weights are not parsed, and several processes
+ * on one host that load the same bundle share its pages. Only the string tables and the output
+ * layer (which jblas needs on the heap) are copied.
+ *
+ * File layout (big-endian; strings are an int length followed by UTF-8 bytes):
+ * <pre>
+ *   int      MAGIC
+ *   int      VERSION
+ *   int      context window size, features per variable, embedding dimension, K
+ *   int      number of categories, followed by the categories (in output order)
+ *   int      number of words, followed by (string word, int id) pairs
+ *   int      number of suffixes, followed by (string suffix, int id) pairs
+ *   tables   word embeddings, capitalization features, suffix features (EmbeddingTable.writeTo)
+ *   int      number of output nodes (L) and of inputs (I)
+ *   padding  to a multiple of 8 bytes
+ *   double[L*I] output weights (column-major), double[L] output bias
+ * </pre>
+ * Bundles are written to a temporary file and renamed, so processes that have mapped an older
+ * bundle keep reading it unchanged.
+ *
+ * @author ramusa2
+ *
+ */
+public class LSSupertaggerBundle {
+
+	/** Identifies a supertagger bundle ("LSTB") **/
+	public static final int MAGIC = 0x4C535442;
+
+	/** Current version of the file layout **/
+	public static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private LSSupertaggerBundle() {}
+
+	/**
+	 * Writes a supertagger to a bundle file.
+	 */
+	public static void save(LSSupertagger tagger, File file) throws IOException {
+		LSLookupTableLayer lookup = tagger.getLookupLayer();
+		File tmp = new File(file.getPath()+".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(tagger.getContextWindowSize());
+			out.writeInt(lookup.getNumberOfFeaturesPerInput());
+			out.writeInt(lookup.getEmbeddingDimension());
+			out.writeInt(lookup.getDiscreteFeatureDimension());
+			ArrayList<String> categories = tagger.getCategoryList();
+			out.writeInt(categories.size());
+			for(String cat : categories) {
+				writeString(out, cat);
+			}
+			writeIDs(out, lookup.getWordIDs());
+			writeIDs(out, lookup.getSuffixIDs());
+			lookup.getWordEmbeddingTable().writeTo(out);
+			lookup.getCapitalizationTable().writeTo(out);
+			lookup.getSuffixTable().writeTo(out);
+			DoubleMatrix weights = tagger.getOutputLayer().getLinearLayer().getWeights();
+			DoubleMatrix bias = tagger.getOutputLayer().getLinearLayer().getBias();
+			out.writeInt(weights.rows);
+			out.writeInt(weights.columns);
+			while(out.size()%8 != 0) {
+				out.writeByte(0);
+			}
+			for(double w : weights.data) {
+				out.writeDouble(w);
+			}
+			for(double b : bias.data) {
+				out.writeDouble(b);
+			}
+		}
+		finally {
+			out.close();
+		}
+		file.delete();
+		if(!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Failed to rename "+tmp.getPath());
+		}
+	}
+
+	/**
+	 * Loads a supertagger from a bundle file written by save.
+	 */
+	public static LSSupertagger load(File file) throws IOException {
+		MappedByteBuffer in;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if(raf.length() > Integer.MAX_VALUE) {
+				throw new IOException("Supertagger bundle is too large to map: "+file.getPath());
+			}
+			// The mapping stays valid after the file is closed
+			in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally {
+			raf.close();
+		}
+		if(in.remaining() < 8 || in.getInt() != MAGIC) {
+			throw new IOException("Not a supertagger bundle: "+file.getPath());
+		}
+		int version = in.getInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported supertagger bundle version "+version+": "+file.getPath());
+		}
+		int contextWindowSize = in.getInt();
+		int featuresPerVariable = in.getInt();
+		int embeddingDimension = in.getInt();
+		int K = in.getInt();
+		int numCategories = in.getInt();
+		ArrayList<String> categories = new ArrayList<String>(numCategories);
+		for(int c=0; c<numCategories; c++) {
+			categories.add(readString(in));
+		}
+		LSSupertagger tagger = new LSSupertagger(contextWindowSize, featuresPerVariable, embeddingDimension, categories);
+		LSLookupTableLayer lookup = tagger.getLookupLayer();
+		if(lookup.getDiscreteFeatureDimension() != K) {
+			throw new IOException("Expected discrete features of dimension "+lookup.getDiscreteFeatureDimension()
+					+", found "+K+": "+file.getPath());
+		}
+		readIDs(in, lookup.getWordIDs());
+		readIDs(in, lookup.getSuffixIDs());
+		lookup.getWordEmbeddingTable().readFrom(in);
+		lookup.getCapitalizationTable().readFrom(in);
+		lookup.getSuffixTable().readFrom(in);
+		DoubleMatrix weights = tagger.getOutputLayer().getLinearLayer().getWeights();
+		DoubleMatrix bias = tagger.getOutputLayer().getLinearLayer().getBias();
+		int rows = in.getInt();
+		int columns = in.getInt();
+		if(rows != weights.rows || columns != weights.columns) {
+			throw new IOException("Expected "+weights.rows+"x"+weights.columns+" output weights, found "
+					+rows+"x"+columns+": "+file.getPath());
+		}
+		while(in.position()%8 != 0) {
+			in.get();
+		}
+		DoubleBuffer doubles = in.slice().asDoubleBuffer();
+		doubles.get(weights.data);
+		doubles.get(bias.data);
+		return tagger;
+	}
+
+	private static void writeIDs(DataOutputStream out, Map<String, Integer> ids) throws IOException {
+		out.writeInt(ids.size());
+		for(Map.Entry<String, Integer> entry : ids.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	private static void readIDs(ByteBuffer in, ConcurrentHashMap<String, Integer> ids) {
+		int count = in.getInt();
+		for(int i=0; i<count; i++) {
+			String key = readString(in);
+			ids.put(key, in.getInt());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,236 @@
+package supertagger.lewissteedman;
+
+import illinoisParser.Sentence;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import neuralnet.simplelayers.LinearLayer;
+
+import org.jblas.DoubleMatrix;
+
+import supertagger.nn.modules.LSLookupTableLayer;
+
+/**
+ * The LSSupertaggerTrainer class trains an LSSupertagger with mini-batch stochastic gradient
+ * descent. Each step copies a batch of context windows into one input matrix (one column per
+ * word), and computes the softmax outputs, the output layer's gradient and the gradient with
+ * respect to the inputs with matrix-matrix products; it then updates the output layer and the
+ * lookup-table rows of the features active in the batch (all other rows are left untouched).
+ * The learning rate applies to the batch's average gradient.
+ *
+ * With more than one thread, threads take batches from a shared counter. The lookup-table
+ * updates are Hogwild-style (without locks): each batch touches only a few rows, so conflicting
+ * writes are rare. The output layer's update is dense (every batch writes every weight), so it
+ * is applied under a lock; threads still compute their forward and backward passes concurrently.
+ * If a worker fails, the remaining workers stop and train throws without saving the iteration.
+ *
+ * Unlike LSSupertagger.trainOn, the output layer's weights are updated as well as the lookup
+ * tables.
+ *
+ * @author ramusa2
+ *
+ */
+public class LSSupertaggerTrainer {
+
+	/** Number of tokens between progress messages **/
+	private static final int REPORT_INTERVAL = 100000;
+
+	private final LSSupertagger tagger;
+
+	private final int batchSize;
+
+	private final int numThreads;
+
+	/** If set, the training examples are shuffled (with this seed) before every iteration **/
+	private Random shuffler;
+
+	/** Guards the (dense) output layer update **/
+	private final Object outputLayerLock = new Object();
+
+	/**
+	 * Creates a new trainer.
+	 *
+	 * @param net				tagger to train
+	 * @param miniBatchSize		number of tokens per update
+	 * @param numberOfThreads	number of Hogwild worker threads (values below one use one thread per available core)
+	 */
+	public LSSupertaggerTrainer(LSSupertagger net, int miniBatchSize, int numberOfThreads) {
+		this.tagger = net;
+		this.batchSize = Math.max(1, miniBatchSize);
+		if(numberOfThreads < 1) {
+			numberOfThreads = Runtime.getRuntime().availableProcessors();
+		}
+		this.numThreads = numberOfThreads;
+		this.shuffler = null;
+	}
+
+	/**
+	 * Shuffles the training examples before every iteration, using the specified seed.
+	 */
+	public void shuffleExamples(long seed) {
+		this.shuffler = new Random(seed);
+	}
+
+	/**
+	 * Trains for iterations startIter+1 through numIterations, saving the tagger to
+	 * saveDir/tagger__iter=T after each iteration (as LSSupertagger.train does). If training on a
+	 * batch fails, a RuntimeException is thrown and the unfinished iteration is not saved.
+	 */
+	public void train(Collection<Sentence> data, int numIterations, double learningRate, String saveDir, int startIter) {
+		LSLookupTableLayer lookup = this.tagger.getLookupLayer();
+		int C = this.tagger.getContextWindowSize();
+		final ArrayList<LSVariableEntry[]> contexts = new ArrayList<LSVariableEntry[]>();
+		ArrayList<Integer> labelList = new ArrayList<Integer>();
+		for(Sentence sentence : data) {
+			for(int w=0; w<sentence.length(); w++) {
+				int label = this.tagger.getCategoryIndex(sentence.get(w).getCategory());
+				if(label >= 0) {
+					contexts.add(lookup.extractContext(sentence, w, C));
+					labelList.add(label);
+				}
+			}
+		}
+		final int[] labels = new int[labelList.size()];
+		for(int t=0; t<labels.length; t++) {
+			labels[t] = labelList.get(t);
+		}
+		final int[] order = new int[labels.length];
+		for(int t=0; t<order.length; t++) {
+			order[t] = t;
+		}
+		System.out.println("Training on "+labels.length+" tokens with mini-batches of "+this.batchSize
+				+" on "+this.numThreads+" thread(s).");
+		ExecutorService pool = (this.numThreads > 1) ? Executors.newFixedThreadPool(this.numThreads) : null;
+		try {
+			for(int T=startIter; T<numIterations; T++) {
+				if(this.shuffler != null) {
+					shuffle(order, this.shuffler);
+				}
+				long start = System.nanoTime();
+				this.runIteration(pool, contexts, labels, order, learningRate, T);
+				double seconds = (System.nanoTime()-start)/1e9;
+				System.out.println("Iteration "+(T+1)+": trained on "+labels.length+" tokens in "
+						+String.format("%.1f", seconds)+" seconds ("
+						+String.format("%.0f", labels.length/Math.max(seconds, 1e-9))+" tokens/sec).");
+				this.tagger.save(new File(saveDir+File.separator+"tagger__iter="+(T+1)));
+			}
+		}
+		finally {
+			if(pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Trains on every example once, on the calling thread or (Hogwild-style) on the pool.
+	 */
+	private void runIteration(ExecutorService pool, final List<LSVariableEntry[]> contexts, final int[] labels,
+			final int[] order, final double learningRate, final int T) {
+		final AtomicInteger nextBatch = new AtomicInteger(0);
+		Callable<Void> worker = new Callable<Void>() {
+			@Override
+			public Void call() {
+				ArrayList<LSVariableEntry[]> batch = new ArrayList<LSVariableEntry[]>(batchSize);
+				int[] batchLabels = new int[batchSize];
+				int first;
+				while((first = nextBatch.getAndAdd(batchSize)) < order.length) {
+					int last = Math.min(order.length, first+batchSize);
+					batch.clear();
+					for(int t=first; t<last; t++) {
+						batch.add(contexts.get(order[t]));
+						batchLabels[t-first] = labels[order[t]];
+					}
+					trainOnBatch(batch, batchLabels, learningRate);
+					if(first/REPORT_INTERVAL != last/REPORT_INTERVAL) {
+						System.out.println("Iteration "+(T+1)+": trained on "+last+" out of "+order.length+" words.");
+					}
+				}
+				return null;
+			}
+		};
+		if(pool == null) {
+			try {
+				worker.call();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new RuntimeException("Failed to train on mini-batch.", e);
+			}
+			return;
+		}
+		ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(int k=0; k<this.numThreads; k++) {
+			futures.add(pool.submit(worker));
+		}
+		RuntimeException failure = null;
+		for(Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				nextBatch.set(order.length);
+				failure = new RuntimeException("Interrupted while training supertagger.", e);
+				break;
+			} catch (ExecutionException e) {
+				// Stop the other workers (they finish their current batch)
+				nextBatch.set(order.length);
+				if(failure == null) {
+					failure = new RuntimeException("Failed to train on mini-batch.", e.getCause());
+				}
+			}
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Performs one SGD step on a batch of context windows and their (gold) labels.
+	 */
+	private void trainOnBatch(List<LSVariableEntry[]> batch, int[] batchLabels, double learningRate) {
+		LSLookupTableLayer lookup = this.tagger.getLookupLayer();
+		LinearLayer linear = this.tagger.getOutputLayer().getLinearLayer();
+		int n = batch.size();
+		// Forward: inputs (one column per word) and predicted distributions
+		DoubleMatrix inputs = lookup.outputBatch(batch);
+		DoubleMatrix gradients = this.tagger.getOutputLayer().predictBatch(inputs);
+		// Gradient of the log-likelihood with respect to the linear outputs (target minus
+		// predicted), scaled for the averaged step
+		int numLabels = gradients.rows;
+		double scale = learningRate/n;
+		double[] g = gradients.data;
+		for(int j=0; j<n; j++) {
+			int offset = j*numLabels;
+			for(int c=0; c<numLabels; c++) {
+				g[offset+c] = -scale*g[offset+c];
+			}
+			g[offset+batchLabels[j]] += scale;
+		}
+		// Backward (input gradients use the weights from before this step's update)
+		DoubleMatrix inputGradients = linear.backwardBatch(gradients);
+		synchronized(this.outputLayerLock) {
+			linear.updateParametersBatch(inputs, gradients, 1.0);
+		}
+		lookup.updateParameters(batch, inputGradients, 1.0);
+	}
+
+	private static void shuffle(int[] array, Random random) {
+		for(int i=array.length-1; i>0; i--) {
+			int j = random.nextInt(i+1);
+			int tmp = array[i];
+			array[i] = array[j];
+			array[j] = tmp;
+		}
+	}
+}
@@ -9,6 +9,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.jblas.DoubleMatrix;
 
+import supertagger.nn.modules.EmbeddingTable;
+
 /**
  * Class to store lookup table for word embeddings (e.g. Turian, Mikolov, etc.). 
  * 
@@ -20,8 +22,17 @@ public class WordEmbeddings {
 	/** Stores UNKNOWN word string **/
 	private static final String UNK = "*UNKNOWN*";
 	
-	/** Lookup table for getting embeddings **/
-	private ConcurrentHashMap<String, DoubleMatrix> lookupTable;
+	/** Row ID of the UNKNOWN word's embedding **/
+	private static final int UNK_ID = -1;
+	
+	/** Maps (formatted) words to their row in the embedding table **/
+	private ConcurrentHashMap<String, Integer> lookupTable;
+	
+	/** Embedding weights, one contiguous row per word **/
+	private EmbeddingTable embeddingTable;
+	
+	/** Row ID for the next new word **/
+	private int nextID;
 	
 	/** Stores unformatted words **/
 	private ArrayList<String> rawWords;
@@ -30,28 +41,42 @@ public class WordEmbeddings {
 	private int D;
 	
 	public WordEmbeddings(int numDimensions, boolean randomlyGenerateUnkVector) {
-		this.lookupTable = new ConcurrentHashMap<String, DoubleMatrix>();
+		this.lookupTable = new ConcurrentHashMap<String, Integer>();
+		this.embeddingTable = new EmbeddingTable(numDimensions, 1);
+		this.nextID = 0;
 		this.D = numDimensions;
 		this.rawWords = new ArrayList<String>();
 		if(randomlyGenerateUnkVector) {
-			this.lookupTable.put(UNK, getGaussianNoise(numDimensions));
+			this.put(UNK, getGaussianNoise(numDimensions));
 		}
 	}
 	
+	/**
+	 * Returns (a copy of) the embedding for word, or null if neither the word nor UNKNOWN has an embedding
+	 */
 	public DoubleMatrix lookup(String word) {
 		String formatted = this.format(word);
-		DoubleMatrix vec = this.lookupTable.get(formatted);
-		if(vec != null) {
-			return vec;
-		}
-		int lastHyphen = formatted.lastIndexOf("-");
-		if(lastHyphen > -1 && lastHyphen < formatted.length()-1) {
-			String prefix = formatted.substring(lastHyphen+1);
-			if(this.lookupTable.containsKey(prefix)) {
-				return this.lookupTable.get(prefix);
+		Integer id = this.lookupTable.get(formatted);
+		if(id == null) {
+			int lastHyphen = formatted.lastIndexOf("-");
+			if(lastHyphen > -1 && lastHyphen < formatted.length()-1) {
+				id = this.lookupTable.get(formatted.substring(lastHyphen+1));
 			}
 		}
-		return this.lookupTable.get(UNK);
+		double[] vec = this.embeddingTable.get(id == null ? UNK_ID : id);
+		return (vec == null) ? null : new DoubleMatrix(vec);
+	}
+	
+	/**
+	 * Stores weights as the embedding for a (formatted) word, assigning it the next row ID
+	 */
+	private void put(String formatted, double[] weights) {
+		Integer id = this.lookupTable.get(formatted);
+		if(id == null) {
+			id = formatted.equals(UNK) ? UNK_ID : this.nextID++;
+			this.lookupTable.put(formatted, id);
+		}
+		this.embeddingTable.put(id, weights);
 	}
 	
 	/**
@@ -68,11 +93,11 @@ public class WordEmbeddings {
 	 * by a pseudorandom draw from a Gaussian distribution with mean 0.0 
 	 * and standard deviation 1.0
 	 */
-	private static DoubleMatrix getGaussianNoise(int D) {
-		DoubleMatrix vec = new DoubleMatrix(D);
+	private static double[] getGaussianNoise(int D) {
+		double[] vec = new double[D];
 		Random r = new Random();
 		for(int d=0; d<D; d++) {
-			vec.put(d, r.nextGaussian());
+			vec[d] = r.nextGaussian();
 		}
 		return vec;
 	}
@@ -89,14 +114,14 @@ public class WordEmbeddings {
 					if(toks.length == this.D+1) {
 						String var = toks[0];
 						this.rawWords.add(var);
-						DoubleMatrix weights = new DoubleMatrix(this.D);
+						double[] weights = new double[this.D];
 						for(int i=1; i<toks.length; i++) {
-							weights.put(i-1, Double.parseDouble(toks[i]));
+							weights[i-1] = Double.parseDouble(toks[i]);
 						}
 						String formatted = this.format(var);
 						if(!this.lookupTable.containsKey(formatted)) {
 							// Only use most-frequent entry if multiple words map to same formatted string
-							this.lookupTable.put(formatted,  weights);
+							this.put(formatted,  weights);
 						}
 					}
 					else {
@@ -108,7 +133,7 @@ public class WordEmbeddings {
 			}
 			sc.close();
 			if(!this.lookupTable.containsKey(UNK)) {
-				this.lookupTable.put(UNK, getGaussianNoise(D));
+				this.put(UNK, getGaussianNoise(D));
 			}
 		} catch (FileNotFoundException e) {
 			System.out.println("Failed to save lookup layer weights to: "+file.getPath());
@@ -67,7 +67,22 @@ public class MultitaggerTrainingData implements Externalizable {
 	}
 
 
+	/**
+	 * Saves the data in the columnar format (see {@link MultitaggerTrainingDataFile}).
+	 */
 	public void saveToFile(File file) {
+		try {
+			MultitaggerTrainingDataFile.write(file, this.data, this.topK);
+		} catch(IOException e) {
+			System.out.println("Failed to save multitagger training data: "+file.getPath());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Saves the data with Java serialization (the format used before the columnar format).
+	 */
+	public void saveSerializedToFile(File file) {
 	      try {
 	         FileOutputStream fileOut =
 	         new FileOutputStream(file);
@@ -80,7 +95,20 @@ public class MultitaggerTrainingData implements Externalizable {
 	      }
 	}
 	
+	/**
+	 * Loads data saved by saveToFile (columnar) or saveSerializedToFile.
+	 */
 	public static MultitaggerTrainingData loadMultitaggerTrainingData(File file) {
+		if(MultitaggerTrainingDataFile.isColumnarFile(file)) {
+			try {
+				return MultitaggerTrainingDataFile.open(file).toTrainingData();
+			}
+			catch(IOException e) {
+				System.out.println("Failed to load multitagger training data: "+file.getPath());
+				e.printStackTrace();
+				return null;
+			}
+		}
 	      MultitaggerTrainingData data = null;
 	      try
 	      {
@@ -101,6 +129,13 @@ public class MultitaggerTrainingData implements Externalizable {
 	      }
 	      return data;
 	}
+	
+	/**
+	 * Returns the number of categories stored per item
+	 */
+	public int getTopK() {
+		return this.topK;
+	}
 
 
 	public void generateAndAddToData(LSSupertagger tagger,
@@ -0,0 +1,495 @@
+package supertagger.lsbeta;
+
+import illinoisParser.LexicalToken;
+import illinoisParser.Sentence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The MultitaggerTrainingDataFile class stores multitagger training data in a columnar binary file:
+ * one int (or float) column per field, indexed by sentence, by token, or by (token, rank), with
+ * words and categories replaced by ids into string tables. Opening a file memory-maps the columns,
+ * so per-token statistics (e.g. the gold rank or the top-k probabilities) can be read without
+ * deserializing any objects; sentences are only materialized as {@link MultitaggerTrainingSentence}s
+ * on request (by sentence(s), by iterating, or by toTrainingData).
+ *
+ * File layout (big-endian):
+ * <pre>
+ *   int      MAGIC
+ *   int      VERSION
+ *   int      k (categories stored per token)
+ *   int      number of sentences (S)
+ *   int      number of tokens (N)
+ *   int      number of testing indices (M)
+ *   int[S]   sentence id (NO_SENTENCE for items without a sentence)
+ *   int[S+1] first token of each sentence (and N)
+ *   int[S+1] first testing index of each sentence (and M)
+ *   int[M]   testing indices (token positions within their sentence)
+ *   int[N]   word id
+ *   int[N]   POS tag id
+ *   int[N]   gold category id
+ *   int[N]   gold rank (index of the gold category in the tagger's ranking, or -1)
+ *   int[N*k] category ids of the top k categories, by rank
+ *   float[N*k] probabilities of the top k categories, by rank
+ *   string tables: categories, words, POS tags (each an int count followed by UTF strings)
+ * </pre>
+ * Missing values (no gold category, fewer than k categories, items without a sentence) are
+ * stored as -1 (probabilities as 0).
+ *
+ * @author ramusa2
+ *
+ */
+public class MultitaggerTrainingDataFile implements Iterable<MultitaggerTrainingSentence> {
+
+	/** Identifies a columnar multitagger training data file ("MTTD") **/
+	public static final int MAGIC = 0x4D545444;
+
+	/** Current version of the file layout **/
+	public static final int VERSION = 1;
+
+	/** Sentence id of a sentence built from individual items (see MultitaggerTrainingData.addItem) **/
+	public static final int NO_SENTENCE = Integer.MIN_VALUE;
+
+	/** Bytes before the first column **/
+	private static final int HEADER_BYTES = 24;
+
+	private final int topK;
+	private final int numSentences;
+	private final int numTokens;
+
+	/** Columns **/
+	private final IntBuffer sentenceID;
+	private final IntBuffer tokenStart;
+	private final IntBuffer testStart;
+	private final IntBuffer testIndex;
+	private final IntBuffer wordID;
+	private final IntBuffer posID;
+	private final IntBuffer goldID;
+	private final IntBuffer goldRank;
+	private final IntBuffer catID;
+	private final FloatBuffer prob;
+
+	/** String tables **/
+	private final String[] categories;
+	private final String[] words;
+	private final String[] posTags;
+
+	private MultitaggerTrainingDataFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		long tablesPosition;
+		try {
+			if(raf.length() < HEADER_BYTES || raf.readInt() != MAGIC) {
+				throw new IOException("Not a multitagger training data file: "+file.getPath());
+			}
+			int version = raf.readInt();
+			if(version != VERSION) {
+				throw new IOException("Unsupported multitagger training data version "+version+": "+file.getPath());
+			}
+			this.topK = raf.readInt();
+			this.numSentences = raf.readInt();
+			this.numTokens = raf.readInt();
+			int numTestIndices = raf.readInt();
+			// Each column is mapped separately (mappings stay valid after the file is closed)
+			FileChannel channel = raf.getChannel();
+			long position = HEADER_BYTES;
+			this.sentenceID = mapInts(channel, position, this.numSentences);
+			position += 4L*this.numSentences;
+			this.tokenStart = mapInts(channel, position, this.numSentences+1);
+			position += 4L*(this.numSentences+1);
+			this.testStart = mapInts(channel, position, this.numSentences+1);
+			position += 4L*(this.numSentences+1);
+			this.testIndex = mapInts(channel, position, numTestIndices);
+			position += 4L*numTestIndices;
+			this.wordID = mapInts(channel, position, this.numTokens);
+			position += 4L*this.numTokens;
+			this.posID = mapInts(channel, position, this.numTokens);
+			position += 4L*this.numTokens;
+			this.goldID = mapInts(channel, position, this.numTokens);
+			position += 4L*this.numTokens;
+			this.goldRank = mapInts(channel, position, this.numTokens);
+			position += 4L*this.numTokens;
+			long ranked = ((long) this.numTokens)*this.topK;
+			if(ranked > Integer.MAX_VALUE/4) {
+				throw new IOException("Too many ranked categories to map: "+file.getPath());
+			}
+			this.catID = mapInts(channel, position, (int) ranked);
+			position += 4L*ranked;
+			this.prob = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*ranked).asFloatBuffer();
+			position += 4L*ranked;
+			tablesPosition = position;
+		}
+		finally {
+			raf.close();
+		}
+		// Read string tables
+		InputStream fin = new FileInputStream(file);
+		try {
+			long skipped = 0;
+			while(skipped < tablesPosition) {
+				long s = fin.skip(tablesPosition-skipped);
+				if(s <= 0) {
+					throw new IOException("Truncated multitagger training data file: "+file.getPath());
+				}
+				skipped += s;
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fin, 1 << 16));
+			this.categories = readTable(in);
+			this.words = readTable(in);
+			this.posTags = readTable(in);
+		}
+		finally {
+			fin.close();
+		}
+	}
+
+	private static IntBuffer mapInts(FileChannel channel, long position, int length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, 4L*length).asIntBuffer();
+	}
+
+	private static String[] readTable(DataInputStream in) throws IOException {
+		String[] table = new String[in.readInt()];
+		for(int i=0; i<table.length; i++) {
+			table[i] = in.readUTF();
+		}
+		return table;
+	}
+
+	/**
+	 * Maps an existing columnar file.
+	 */
+	public static MultitaggerTrainingDataFile open(File file) throws IOException {
+		return new MultitaggerTrainingDataFile(file);
+	}
+
+	/**
+	 * Returns true iff the file exists and starts with the columnar format's magic number.
+	 */
+	public static boolean isColumnarFile(File file) {
+		if(!file.isFile() || file.length() < HEADER_BYTES) {
+			return false;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			return raf.readInt() == MAGIC;
+		}
+		catch(IOException e) {
+			return false;
+		}
+		finally {
+			if(raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a collection of multitagger training sentences to a columnar file.
+	 *
+	 * @param file		output file
+	 * @param sentences	training sentences
+	 * @param topK		number of categories stored per token
+	 */
+	public static void write(File file, ArrayList<MultitaggerTrainingSentence> sentences, int topK) throws IOException {
+		StringTable cats = new StringTable();
+		StringTable wordTable = new StringTable();
+		StringTable posTable = new StringTable();
+		int numTokens = 0;
+		int numTestIndices = 0;
+		for(MultitaggerTrainingSentence sen : sentences) {
+			numTokens += sen.getItems().size();
+			numTestIndices += sen.getTestingIndices().size();
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(topK);
+			out.writeInt(sentences.size());
+			out.writeInt(numTokens);
+			out.writeInt(numTestIndices);
+			// Sentence columns
+			for(MultitaggerTrainingSentence sen : sentences) {
+				out.writeInt(sen.sentence() == null ? NO_SENTENCE : sen.sentence().getID());
+			}
+			int start = 0;
+			for(MultitaggerTrainingSentence sen : sentences) {
+				out.writeInt(start);
+				start += sen.getItems().size();
+			}
+			out.writeInt(start);
+			start = 0;
+			for(MultitaggerTrainingSentence sen : sentences) {
+				out.writeInt(start);
+				start += sen.getTestingIndices().size();
+			}
+			out.writeInt(start);
+			for(MultitaggerTrainingSentence sen : sentences) {
+				for(Integer i : sen.getTestingIndices()) {
+					out.writeInt(i);
+				}
+			}
+			// Token columns
+			for(MultitaggerTrainingSentence sen : sentences) {
+				for(int i=0; i<sen.getItems().size(); i++) {
+					out.writeInt(sen.sentence() == null ? -1 : wordTable.id(sen.sentence().getTokens()[i].getWord()));
+				}
+			}
+			for(MultitaggerTrainingSentence sen : sentences) {
+				for(int i=0; i<sen.getItems().size(); i++) {
+					out.writeInt(sen.sentence() == null ? -1 : posTable.id(sen.sentence().getTokens()[i].getPOS().toString()));
+				}
+			}
+			for(MultitaggerTrainingSentence sen : sentences) {
+				for(int i=0; i<sen.getItems().size(); i++) {
+					String gold = (sen.sentence() == null) ? null : sen.sentence().getTokens()[i].getCategory();
+					out.writeInt((gold == null || gold.equals(LexicalToken.EMPTY_CAT)) ? -1 : cats.id(gold));
+				}
+			}
+			for(MultitaggerTrainingSentence sen : sentences) {
+				for(MultitaggerTrainingItem item : sen.getItems()) {
+					out.writeInt(item.goldCategoryIndex);
+				}
+			}
+			// Ranked columns
+			for(MultitaggerTrainingSentence sen : sentences) {
+				for(MultitaggerTrainingItem item : sen.getItems()) {
+					for(int k=0; k<topK; k++) {
+						String cat = (k < item.topKCats.length) ? item.topKCats[k] : null;
+						out.writeInt(cat == null ? -1 : cats.id(cat));
+					}
+				}
+			}
+			for(MultitaggerTrainingSentence sen : sentences) {
+				for(MultitaggerTrainingItem item : sen.getItems()) {
+					for(int k=0; k<topK; k++) {
+						out.writeFloat(k < item.probs.length ? (float) item.probs[k] : 0.0f);
+					}
+				}
+			}
+			// String tables
+			cats.write(out);
+			wordTable.write(out);
+			posTable.write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the number of categories stored per token
+	 */
+	public int topK() {
+		return this.topK;
+	}
+
+	/**
+	 * Returns the number of sentences
+	 */
+	public int numSentences() {
+		return this.numSentences;
+	}
+
+	/**
+	 * Returns the total number of tokens (items)
+	 */
+	public int numTokens() {
+		return this.numTokens;
+	}
+
+	/**
+	 * Returns the index of the first token of sentence s (tokens are numbered across sentences)
+	 */
+	public int firstToken(int s) {
+		return this.tokenStart.get(s);
+	}
+
+	/**
+	 * Returns the number of tokens in sentence s
+	 */
+	public int sentenceLength(int s) {
+		return this.tokenStart.get(s+1)-this.tokenStart.get(s);
+	}
+
+	/**
+	 * Returns the id of the k-th ranked category of token t, or -1
+	 */
+	public int categoryID(int t, int k) {
+		return this.catID.get(t*this.topK+k);
+	}
+
+	/**
+	 * Returns the probability of the k-th ranked category of token t
+	 */
+	public float probability(int t, int k) {
+		return this.prob.get(t*this.topK+k);
+	}
+
+	/**
+	 * Returns the rank of token t's gold category, or -1 if the tagger did not propose it
+	 */
+	public int goldRank(int t) {
+		return this.goldRank.get(t);
+	}
+
+	/**
+	 * Returns true iff the tagger's top-ranked category for token t is its gold category
+	 * (see MultitaggerTrainingItem.isCorrect)
+	 */
+	public boolean isCorrect(int t) {
+		return this.goldRank.get(t) == 0;
+	}
+
+	/**
+	 * Returns the category with the given id
+	 */
+	public String category(int id) {
+		return (id < 0) ? null : this.categories[id];
+	}
+
+	/**
+	 * Returns the word of token t
+	 */
+	public String word(int t) {
+		int id = this.wordID.get(t);
+		return (id < 0) ? null : this.words[id];
+	}
+
+	/**
+	 * Returns the number of tokens whose top-ranked category is correct
+	 */
+	public int countCorrect() {
+		int correct = 0;
+		for(int t=0; t<this.numTokens; t++) {
+			if(this.goldRank.get(t) == 0) {
+				correct++;
+			}
+		}
+		return correct;
+	}
+
+	/**
+	 * Materializes sentence s.
+	 */
+	public MultitaggerTrainingSentence sentence(int s) {
+		int first = this.tokenStart.get(s);
+		int n = this.tokenStart.get(s+1)-first;
+		Sentence sen = null;
+		if(this.sentenceID.get(s) != NO_SENTENCE) {
+			LexicalToken[] tokens = new LexicalToken[n];
+			for(int i=0; i<n; i++) {
+				int t = first+i;
+				String word = this.words[this.wordID.get(t)];
+				String pos = this.posTags[this.posID.get(t)];
+				int gold = this.goldID.get(t);
+				tokens[i] = (gold < 0) ? new LexicalToken(word, pos) : new LexicalToken(word, pos, this.categories[gold]);
+			}
+			sen = new Sentence(tokens, this.sentenceID.get(s), null);
+		}
+		ArrayList<MultitaggerTrainingItem> items = new ArrayList<MultitaggerTrainingItem>(n);
+		for(int i=0; i<n; i++) {
+			int t = first+i;
+			double[] probs = new double[this.topK];
+			String[] cats = new String[this.topK];
+			for(int k=0; k<this.topK; k++) {
+				probs[k] = this.prob.get(t*this.topK+k);
+				cats[k] = this.category(this.catID.get(t*this.topK+k));
+			}
+			items.add(new MultitaggerTrainingItem(this.goldRank.get(t), probs, cats));
+		}
+		int firstTest = this.testStart.get(s);
+		int lastTest = this.testStart.get(s+1);
+		ArrayList<Integer> testing = new ArrayList<Integer>(lastTest-firstTest);
+		for(int i=firstTest; i<lastTest; i++) {
+			testing.add(this.testIndex.get(i));
+		}
+		return new MultitaggerTrainingSentence(sen, items, testing);
+	}
+
+	/**
+	 * Materializes every sentence into a new MultitaggerTrainingData object.
+	 */
+	public MultitaggerTrainingData toTrainingData() {
+		MultitaggerTrainingData data = new MultitaggerTrainingData(this.topK);
+		for(int s=0; s<this.numSentences; s++) {
+			data.addSentence(this.sentence(s));
+		}
+		return data;
+	}
+
+	/**
+	 * Iterates over the sentences, materializing one at a time.
+	 */
+	@Override
+	public Iterator<MultitaggerTrainingSentence> iterator() {
+		return new Iterator<MultitaggerTrainingSentence>() {
+
+			private int next = 0;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < numSentences;
+			}
+
+			@Override
+			public MultitaggerTrainingSentence next() {
+				if(this.next >= numSentences) {
+					throw new NoSuchElementException();
+				}
+				return sentence(this.next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Assigns ids to strings in order of first use.
+	 */
+	private static class StringTable {
+
+		private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		private final ArrayList<String> strings = new ArrayList<String>();
+
+		int id(String str) {
+			Integer id = this.ids.get(str);
+			if(id == null) {
+				id = this.strings.size();
+				this.ids.put(str, id);
+				this.strings.add(str);
+			}
+			return id;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(this.strings.size());
+			for(String str : this.strings) {
+				out.writeUTF(str);
+			}
+		}
+	}
+}
@@ -16,6 +16,12 @@ public class MultitaggerTrainingItem implements Serializable {
 	
 	public MultitaggerTrainingItem() {}
 	
+	MultitaggerTrainingItem(int goldIndex, double[] topKProbs, String[] topKCategories) {
+		this.goldCategoryIndex = goldIndex;
+		this.probs = topKProbs;
+		this.topKCats = topKCategories;
+	}
+	
 	public MultitaggerTrainingItem(SupertagAssignment tagAssignment, int i, int topK) {
 		this.goldCategoryIndex = -1;
 		this.probs = new double[topK];
@@ -26,6 +26,13 @@ public class MultitaggerTrainingSentence implements Externalizable {
 		this.itemsToTest = new ArrayList<Integer>();
 	}
 	
+	MultitaggerTrainingSentence(Sentence sen, ArrayList<MultitaggerTrainingItem> trainingItems, 
+			ArrayList<Integer> testingIndices) {
+		this.sentence = sen;
+		this.items = trainingItems;
+		this.itemsToTest = testingIndices;
+	}
+	
 	public MultitaggerTrainingSentence(SupertagAssignment tags, int topK) {
 		this.sentence = tags.sentence();
 		this.items = new ArrayList<MultitaggerTrainingItem>();
@@ -235,10 +235,7 @@ class SampleLookupLayer extends LookupTableLayer {
 	@Override
 	public void updateParameters(DoubleMatrix outputGradient,
 			double learningRate) {
-		double[] embedding = super.wordEmbeddingsLookupTable.get(super.stringToIndex.get(word));
-		for(int w=0; w<embedding.length; w++) {
-			embedding[w] += outputGradient.get(w);
-		}		
+		super.wordEmbeddingsLookupTable.addTo(super.stringToIndex.get(word), outputGradient.data, 0, 1.0);
 	}
 
 	public DoubleMatrix getOutput(DoubleMatrix rawInput) {
@@ -0,0 +1,229 @@
+package supertagger.nn.modules;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * The EmbeddingTable class stores a lookup table of fixed-width weight vectors in a single
+ * contiguous row-major array, indexed by dense integer ids. A fixed number of negative ids
+ * (e.g. START/END and unknown-word tokens) are reserved at the front of the array, so id i
+ * is stored at row i+numberOfSpecialIDs. Gathering a row into an input vector is a single
+ * array copy, without hashing or boxing.
+ *
+ * Rows are added (and the table grown) with put, during initialization or loading; after that,
+ * several threads may read rows concurrently (and Hogwild-style training may update them in
+ * place with addTo).
+ *
+ * A table read with readFrom is backed by the (e.g. memory-mapped) buffer it was read from, so
+ * several processes mapping the same file share one copy of the weights; the rows are copied to
+ * the heap the first time the table is modified.
+ *
+ * @author ramusa2
+ *
+ */
+public class EmbeddingTable {
+
+	/** Width of each row **/
+	private final int dim;
+
+	/** Number of reserved negative ids (-numSpecial through -1) **/
+	private final int numSpecial;
+
+	/** Row-major weights (capacity rows), or null while the table is backed by mappedWeights
+	 * (volatile, so that readers see the heap copy made by heapWeights in full) **/
+	private volatile double[] weights;
+
+	/** Row-major weights read by readFrom (read-only; kept after the heap copy is made, since 
+	 * readers that saw a null weights array may still be using it) **/
+	private volatile DoubleBuffer mappedWeights;
+
+	/** Marks the rows that have been set **/
+	private boolean[] present;
+
+	/** Number of rows that have been set **/
+	private int size;
+
+	/**
+	 * Creates an empty table.
+	 *
+	 * @param dimension				width of each row
+	 * @param numberOfSpecialIDs	number of reserved negative ids (-numberOfSpecialIDs through -1)
+	 */
+	public EmbeddingTable(int dimension, int numberOfSpecialIDs) {
+		this.dim = dimension;
+		this.numSpecial = numberOfSpecialIDs;
+		int capacity = Math.max(16, numberOfSpecialIDs+1);
+		this.weights = new double[capacity*dimension];
+		this.present = new boolean[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the width of each row
+	 */
+	public int dimension() {
+		return this.dim;
+	}
+
+	/**
+	 * Returns the number of rows that have been set
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns true iff the row for id has been set
+	 */
+	public boolean containsKey(int id) {
+		int row = id+this.numSpecial;
+		return row >= 0 && row < this.present.length && this.present[row];
+	}
+
+	/**
+	 * Returns a copy of the row for id, or null if it has not been set
+	 */
+	public double[] get(int id) {
+		if(!this.containsKey(id)) {
+			return null;
+		}
+		double[] row = new double[this.dim];
+		this.copyTo(id, row, 0);
+		return row;
+	}
+
+	/**
+	 * Sets (copies) the row for id, growing the table if necessary.
+	 */
+	public synchronized void put(int id, double[] row) {
+		int r = id+this.numSpecial;
+		if(r < 0) {
+			throw new IllegalArgumentException("Embedding id "+id+" is below the reserved range (-"+this.numSpecial+")");
+		}
+		if(row.length != this.dim) {
+			throw new IllegalArgumentException("Expected a row of "+this.dim+" weights, got "+row.length);
+		}
+		double[] w = this.heapWeights();
+		if(r >= this.present.length) {
+			int capacity = Math.max(r+1, 2*this.present.length);
+			this.weights = w = Arrays.copyOf(w, capacity*this.dim);
+			this.present = Arrays.copyOf(this.present, capacity);
+		}
+		System.arraycopy(row, 0, w, r*this.dim, this.dim);
+		if(!this.present[r]) {
+			this.present[r] = true;
+			this.size++;
+		}
+	}
+
+	/**
+	 * Copies the row for id into dest at offset, and returns the offset after the row.
+	 */
+	public int copyTo(int id, double[] dest, int offset) {
+		double[] w = this.weights;
+		if(w != null) {
+			System.arraycopy(w, (id+this.numSpecial)*this.dim, dest, offset, this.dim);
+		}
+		else {
+			DoubleBuffer mapped = this.mappedWeights;
+			int start = (id+this.numSpecial)*this.dim;
+			for(int d=0; d<this.dim; d++) {
+				dest[offset+d] = mapped.get(start+d);
+			}
+		}
+		return offset+this.dim;
+	}
+
+	/**
+	 * Adds scale times src[offset...] to the row for id (in place, without locking), and
+	 * returns the offset after the used values.
+	 */
+	public int addTo(int id, double[] src, int offset, double scale) {
+		double[] w = this.weights;
+		if(w == null) {
+			w = this.heapWeights();
+		}
+		int start = (id+this.numSpecial)*this.dim;
+		for(int d=0; d<this.dim; d++) {
+			w[start+d] += scale*src[offset+d];
+		}
+		return offset+this.dim;
+	}
+
+	/**
+	 * Returns the heap array of weights, first copying the rows out of the mapped buffer if
+	 * the table was read with readFrom.
+	 */
+	private synchronized double[] heapWeights() {
+		if(this.weights == null) {
+			double[] w = new double[this.present.length*this.dim];
+			DoubleBuffer view = this.mappedWeights.duplicate();
+			view.position(0);
+			view.get(w);
+			this.weights = w;
+		}
+		return this.weights;
+	}
+
+	/**
+	 * Writes the table in the layout read by readFrom: dimension, number of special ids and
+	 * number of rows (ints), one presence byte per row, padding to a multiple of 8 bytes (from
+	 * the start of the stream), and the row-major weights (doubles).
+	 */
+	public synchronized void writeTo(DataOutputStream out) throws IOException {
+		int rows = this.present.length;
+		while(rows > 0 && !this.present[rows-1]) {
+			rows--;
+		}
+		out.writeInt(this.dim);
+		out.writeInt(this.numSpecial);
+		out.writeInt(rows);
+		for(int r=0; r<rows; r++) {
+			out.writeByte(this.present[r] ? 1 : 0);
+		}
+		while(out.size()%8 != 0) {
+			out.writeByte(0);
+		}
+		double[] w = this.weights;
+		DoubleBuffer view = (w == null) ? this.mappedWeights.duplicate() : null;
+		for(int i=0; i<rows*this.dim; i++) {
+			out.writeDouble((w == null) ? view.get(i) : w[i]);
+		}
+	}
+
+	/**
+	 * Replaces the contents of this table with a table written by writeTo, starting at the
+	 * buffer's position (which is left after the table). The weights are not copied: the table
+	 * reads them from the buffer until it is first modified.
+	 */
+	public synchronized void readFrom(ByteBuffer in) throws IOException {
+		int dimension = in.getInt();
+		int numberOfSpecialIDs = in.getInt();
+		if(dimension != this.dim || numberOfSpecialIDs != this.numSpecial) {
+			throw new IOException("Expected a table of "+this.dim+" weights per row with "+this.numSpecial
+					+" special ids, found "+dimension+" and "+numberOfSpecialIDs);
+		}
+		int rows = in.getInt();
+		boolean[] isPresent = new boolean[rows];
+		int count = 0;
+		for(int r=0; r<rows; r++) {
+			isPresent[r] = in.get() != 0;
+			if(isPresent[r]) {
+				count++;
+			}
+		}
+		while(in.position()%8 != 0) {
+			in.get();
+		}
+		ByteBuffer slice = in.slice();
+		slice.limit(8*rows*this.dim);
+		in.position(in.position()+8*rows*this.dim);
+		this.mappedWeights = slice.asDoubleBuffer();
+		this.weights = null;
+		this.present = isPresent;
+		this.size = count;
+	}
+}
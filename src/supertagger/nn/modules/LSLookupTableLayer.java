@@ -60,6 +60,9 @@ public class LSLookupTableLayer extends LookupTableLayer {
 	/** ID for *UNK_SPECIAL* symbol **/
 	private static final int UNK_SPECIAL_ID = -5;
 
+	/** Number of negative word IDs (START, END and the UNK tokens) **/
+	private static final int NUM_SPECIAL_WORD_IDS = 5;
+
 	/** Marker for capitalization feature for Capitalized Words **/
 	private final static Integer CAPS_UPPER_ID = -1;	
 
@@ -70,23 +73,29 @@ public class LSLookupTableLayer extends LookupTableLayer {
 	/** Marker for capitalization feature for START/END symbols**/
 	private final static Integer CAPS_START_END_ID = -3;	
 
+	/** Number of (negative) capitalization feature IDs **/
+	private final static int NUM_CAPS_IDS = 3;
+
 	/** Shared feature ID for suffix feature for START/END symbols **/
 	private final static int SUFFIX_START_END = -1;	
 
 	/** Shared feature ID for unknown suffix feature (used when suffix hasn't been seen before) **/
 	private final static int SUFFIX_UNSEEN = -2;	
 
+	/** Number of negative suffix feature IDs **/
+	private final static int NUM_SPECIAL_SUFFIX_IDS = 2;
+
 	/** Number of nodes to add for each discrete feature **/
 	private final int discreteK;
 
 	/** Cache map for discrete suffix feature **/
 	private final ConcurrentHashMap<String, Integer> suffixIDLookupTable;
 
-	/** Cache map for discrete suffix feature **/
-	private final ConcurrentHashMap<Integer, double[]> suffixFeatureLookupTable;
+	/** Weights for discrete suffix feature **/
+	private final EmbeddingTable suffixFeatureLookupTable;
 
-	/** Cache map for discrete capitalization feature **/
-	private final ConcurrentHashMap<Integer, double[]> capsFeatureLookupTable;
+	/** Weights for discrete capitalization feature **/
+	private final EmbeddingTable capsFeatureLookupTable;
 
 	/** Caches context (not necessary for testing, but speeds up training) **/
 	private LSVariableEntry[] cachedTrainingContext;
@@ -105,12 +114,12 @@ public class LSLookupTableLayer extends LookupTableLayer {
 	 * @param K						number of nodes to add for each discrete feature
 	 */
 	public LSLookupTableLayer(int numberOfInputVariables, int dimensionsPerInput, int embeddingDimension, int K) {
-		super(numberOfInputVariables, dimensionsPerInput);
+		super(numberOfInputVariables, dimensionsPerInput, embeddingDimension, NUM_SPECIAL_WORD_IDS);
 		this.wordEmbeddingDimension = embeddingDimension;
 		this.discreteK = K;
 		this.suffixIDLookupTable = new ConcurrentHashMap<String, Integer>();
-		this.suffixFeatureLookupTable = new ConcurrentHashMap<Integer, double[]>();
-		this.capsFeatureLookupTable = new ConcurrentHashMap<Integer, double[]>();
+		this.suffixFeatureLookupTable = new EmbeddingTable(K, NUM_SPECIAL_SUFFIX_IDS);
+		this.capsFeatureLookupTable = new EmbeddingTable(K, NUM_CAPS_IDS);
 		// Update ID maps
 		this.stringToIndex.put(START, START_ID);
 		this.stringToIndex.put(END, END_ID);
@@ -129,21 +138,21 @@ public class LSLookupTableLayer extends LookupTableLayer {
 	}
 
 	/**
-	 * Returns the weight vector for a word's embedding.
+	 * Returns (a copy of) the weight vector for a word's embedding.
 	 */
 	private double[] getWordEmbeddingWeights(Integer embeddingID) {
 		return this.wordEmbeddingsLookupTable.get(embeddingID);
 	}
 
 	/**
-	 * Returns the weight vector for a word's capitalization feature.
+	 * Returns (a copy of) the weight vector for a word's capitalization feature.
 	 */
 	private double[] getCapitalizationWeights(Integer capitalizationID) {
 		return this.capsFeatureLookupTable.get(capitalizationID);
 	}
 
 	/**
-	 * Returns the weight vector for a word's suffix feature.
+	 * Returns (a copy of) the weight vector for a word's suffix feature.
 	 */
 	private double[] getSuffixWeights(Integer suffixID) {
 		return this.suffixFeatureLookupTable.get(suffixID);
@@ -202,14 +211,50 @@ public class LSLookupTableLayer extends LookupTableLayer {
 		return buildDoubleMatrix(vec);
 	}
 
+	/**
+	 * Writes the concatenated current weights for a context window into a caller-owned
+	 * vector and returns it. Unlike output(context), the context is not cached, so this 
+	 * method may be called from several threads at once (for inference only).
+	 */
+	public DoubleMatrix output(LSVariableEntry[] context, DoubleMatrix outputVector) {
+		double[] data = outputVector.data;
+		int offset = 0;
+		for(LSVariableEntry entry : context) {
+			offset = this.copyContextVectorForEntry(entry, data, offset);
+		}
+		return outputVector;
+	}
+
+	/**
+	 * Returns a matrix with one column per context window, where each column is the
+	 * concatenated current weights for that window (i.e. the output of output(context)).
+	 * Does not change the cached training context.
+	 */
+	public DoubleMatrix outputBatch(List<LSVariableEntry[]> contexts) {
+		DoubleMatrix batch = new DoubleMatrix(this.numOutputs, contexts.size());
+		double[] data = batch.data;
+		int offset = 0;
+		for(LSVariableEntry[] context : contexts) {
+			for(LSVariableEntry entry : context) {
+				offset = this.copyContextVectorForEntry(entry, data, offset);
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Copies the concatenated weights for an entry into vec at offset, and returns the
+	 * offset after the copied weights.
+	 */
+	private int copyContextVectorForEntry(LSVariableEntry entry, double[] vec, int offset) {
+		offset = this.wordEmbeddingsLookupTable.copyTo(entry.getEmbeddingIndex(), vec, offset);
+		offset = this.capsFeatureLookupTable.copyTo(entry.getCapitalizationIndex(), vec, offset);
+		return this.suffixFeatureLookupTable.copyTo(entry.getSuffixIndex(), vec, offset);
+	}
+
 	private double[] buildContextVectorForEntry(LSVariableEntry entry) {
 		double[] vec = new double[this.numFeaturesPerInputVariable];
-		double[] embeddingVec = this.getWordEmbeddingWeights(entry.getEmbeddingIndex());
-		double[] capsVec = this.getCapitalizationWeights(entry.getCapitalizationIndex());
-		double[] suffixVec = this.getSuffixWeights(entry.getSuffixIndex());
-		System.arraycopy(embeddingVec, 0, vec, 0, embeddingVec.length);
-		System.arraycopy(capsVec, 0, vec, embeddingVec.length, capsVec.length);
-		System.arraycopy(suffixVec, 0, vec, embeddingVec.length+capsVec.length, suffixVec.length);		
+		this.copyContextVectorForEntry(entry, vec, 0);
 		return vec;
 	}
 
@@ -316,29 +361,33 @@ public class LSLookupTableLayer extends LookupTableLayer {
 	 * the back-propagated gradient.
 	 */
 	public void updateParameters(DoubleMatrix outputGradient, double learningRate) {
-		// Scale gradient by the learning rate
-		outputGradient.muli(learningRate);
-		// Update weights
+		// Update weights (scaled by the learning rate)
+		double[] grad = outputGradient.data;
 		int offset = 0;
 		for(LSVariableEntry entry : this.cachedTrainingContext) {
-			// Update word embeddings
-			double[] embeddings = this.getWordEmbeddingWeights(entry.getEmbeddingIndex());
-			for(int w=0; w<embeddings.length; w++) {
-				embeddings[w] += outputGradient.get(offset);
-				offset++;
+			offset = this.wordEmbeddingsLookupTable.addTo(entry.getEmbeddingIndex(), grad, offset, learningRate);
+			offset = this.capsFeatureLookupTable.addTo(entry.getCapitalizationIndex(), grad, offset, learningRate);
+			offset = this.suffixFeatureLookupTable.addTo(entry.getSuffixIndex(), grad, offset, learningRate);
+		}
+	}
+
+	/**
+	 * Adds learningRate times the gradient for each context window in a batch (one column of
+	 * inputGradients per window, in the layout of outputBatch) to the weights of the features
+	 * active in that window; no other rows of the lookup tables are touched.
+	 * 
+	 * No locks are taken, so concurrent calls (e.g. Hogwild-style training) may interleave
+	 * their updates.
+	 */
+	public void updateParameters(List<LSVariableEntry[]> contexts, DoubleMatrix inputGradients, double learningRate) {
+		double[] grad = inputGradients.data;
+		int offset = 0;
+		for(LSVariableEntry[] context : contexts) {
+			for(LSVariableEntry entry : context) {
+				offset = this.wordEmbeddingsLookupTable.addTo(entry.getEmbeddingIndex(), grad, offset, learningRate);
+				offset = this.capsFeatureLookupTable.addTo(entry.getCapitalizationIndex(), grad, offset, learningRate);
+				offset = this.suffixFeatureLookupTable.addTo(entry.getSuffixIndex(), grad, offset, learningRate);
 			}
-			// Update capitalization feature weights
-			double[] caps = this.getCapitalizationWeights(entry.getCapitalizationIndex());
-			for(int c=0; c<caps.length; c++) {
-				caps[c] += outputGradient.get(offset);
-				offset++;
-			}			
-			// Update suffix feature weights
-			double[] suff = this.getSuffixWeights(entry.getSuffixIndex());
-			for(int s=0; s<suff.length; s++) {
-				suff[s] += outputGradient.get(offset);
-				offset++;
-			}		
 		}
 	}
 
@@ -364,6 +413,8 @@ public class LSLookupTableLayer extends LookupTableLayer {
 			pw.close();
 			// Suffix
 			pw = new PrintWriter(new File(saveDir.getPath()+File.separator+SUFFIX_FILE));
+			pw.println("*SUFFIX_START_END* "+SUFFIX_START_END+" "+arrToString(this.getSuffixWeights(SUFFIX_START_END)));
+			pw.println("*SUFFIX_UNSEEN* "+SUFFIX_UNSEEN+" "+arrToString(this.getSuffixWeights(SUFFIX_UNSEEN)));
 			for(String suff : this.suffixIDLookupTable.keySet()) {
 				int id = this.suffixIDLookupTable.get(suff);
 				pw.println(suff+" "+id+" "+arrToString(this.suffixFeatureLookupTable.get(id)));
@@ -443,7 +494,10 @@ public class LSLookupTableLayer extends LookupTableLayer {
 					String[] toks = line.split("\\s+");
 					String suff = toks[0];
 					Integer index = Integer.parseInt(toks[1]);
-					this.suffixIDLookupTable.put(suff, index);
+					if(index >= 0) {
+						// Negative IDs are the START/END and unseen suffix features
+						this.suffixIDLookupTable.put(suff, index);
+					}
 					this.suffixFeatureLookupTable.put(index,  stringToDoubleArr(line, 2));
 				}
 			}
@@ -455,6 +509,48 @@ public class LSLookupTableLayer extends LookupTableLayer {
 	}
 
 
+	/**
+	 * Returns the map from words (and START/END/UNK tokens) to word embedding IDs.
+	 */
+	public ConcurrentHashMap<String, Integer> getWordIDs() {
+		return this.stringToIndex;
+	}
+
+	/**
+	 * Returns the map from suffixes to suffix feature IDs.
+	 */
+	public ConcurrentHashMap<String, Integer> getSuffixIDs() {
+		return this.suffixIDLookupTable;
+	}
+
+	/**
+	 * Returns the word embedding weights.
+	 */
+	public EmbeddingTable getWordEmbeddingTable() {
+		return this.wordEmbeddingsLookupTable;
+	}
+
+	/**
+	 * Returns the capitalization feature weights.
+	 */
+	public EmbeddingTable getCapitalizationTable() {
+		return this.capsFeatureLookupTable;
+	}
+
+	/**
+	 * Returns the suffix feature weights.
+	 */
+	public EmbeddingTable getSuffixTable() {
+		return this.suffixFeatureLookupTable;
+	}
+
+	/**
+	 * Returns the number of nodes added for each discrete feature.
+	 */
+	public int getDiscreteFeatureDimension() {
+		return this.discreteK;
+	}
+
 	/**
 	 * Constructs a DoubleMatrix vector from an underlying array.
 	 */
@@ -41,8 +41,8 @@ public abstract class LookupTableLayer extends Module {
 	protected ConcurrentHashMap<String, Integer> stringToIndex;
 	
 	/** Stores the embedding parameters for this layer; because only a few variables are active at a time,
-	 * we need a way to access them efficiently. **/
-	protected ConcurrentHashMap<Integer, double[]> wordEmbeddingsLookupTable;
+	 * we need a way to access them efficiently (rows are stored contiguously, indexed by variable index). **/
+	protected EmbeddingTable wordEmbeddingsLookupTable;
 	
 
 	/**
@@ -54,11 +54,25 @@ public abstract class LookupTableLayer extends Module {
 	 * @param dimensionsPerInput	number of features to match each variable to
 	 */
 	public LookupTableLayer(int numberOfInputVariables, int dimensionsPerInput) {
+		this(numberOfInputVariables, dimensionsPerInput, dimensionsPerInput, 0);
+	}
+	
+	/**
+	 * Creates a LookupTableLayer whose word embeddings are narrower than the features stored
+	 * for each variable (e.g. when discrete features are added to each embedding).
+	 * 
+	 * @param numberOfInputVariables		size of the input variable space
+	 * @param dimensionsPerInput	number of features to match each variable to
+	 * @param embeddingDimension	dimensionality of the word embeddings
+	 * @param numberOfSpecialIDs	number of negative variable indices reserved for special tokens
+	 */
+	protected LookupTableLayer(int numberOfInputVariables, int dimensionsPerInput, 
+			int embeddingDimension, int numberOfSpecialIDs) {
 		this.numVariables = numberOfInputVariables;
 		this.numFeaturesPerInputVariable = dimensionsPerInput;
 		this.numOutputs = this.numVariables*this.numFeaturesPerInputVariable;
 		this.stringToIndex = new ConcurrentHashMap<String, Integer>();
-		this.wordEmbeddingsLookupTable = new ConcurrentHashMap<Integer, double[]>();
+		this.wordEmbeddingsLookupTable = new EmbeddingTable(embeddingDimension, numberOfSpecialIDs);
 	}
 	
 	/**
@@ -13,6 +13,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.ObjectOutputStream;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.GZIPOutputStream;
 
 import perceptron.parser.PerceptronChart;
@@ -103,29 +105,16 @@ public class CoarseParseGenerator {
 		}
 	}
 
-	public static void generateCoarseParses(SupertaggedTrainingData data,
+	public static void generateCoarseParses(Iterable<SupertaggedSentence> data,
 			Grammar grammar,
 			SerializedData<PerceptronChart> mem) {
 		SupervisedParsingConfig c2 = SupervisedParsingConfig.getDefaultConfig();
 		try {   
-			for(SupertaggedSentence taggedSen : data.getData()) {
-				PerceptronChart chart = new PerceptronChart(taggedSen.sentence(), grammar);
-				SupertagAssignment tags = taggedSen.tags();
-				if(grammar.licenses(taggedSen.sentence())) {
-					chart.coarseParseWithSupertags(grammar, c2, tags, false);
-					if(chart.successfulCoarseParse()) {
-						System.out.println("Parses: "+chart.coarseRoot().parses);
-						chart.cleanChart();    		
-					}
-					else {
-						System.out.println("Coarse parse failure for sentence: "+taggedSen.sentence()+"\n"+taggedSen.sentence().getCCGbankParse()+"\n");
-						chart = new PerceptronChart(taggedSen.sentence(), grammar);
-					}
+			for(SupertaggedSentence taggedSen : data) {
+				PerceptronChart chart = coarseParse(taggedSen, grammar, c2);
+				if(chart != null) {
 					mem.addObject(chart);
 				}
-				else {
-					System.out.println("Unlicensed sentence: "+taggedSen.sentence()+"\n"+taggedSen.sentence().getCCGbankParse()+"\n");
-				}
 			}
 		}
 		catch(Exception e) {
@@ -133,4 +122,57 @@ public class CoarseParseGenerator {
 		}
 	}
 
+	/**
+	 * Coarse-parses the sentences on a pool of worker threads that share the grammar; 
+	 * charts are added to mem in the original sentence order.
+	 */
+	public static void generateCoarseParses(Iterable<SupertaggedSentence> data,
+			final Grammar grammar,
+			final SerializedData<PerceptronChart> mem, ExecutorService workers, int window) {
+		final SupervisedParsingConfig c2 = SupervisedParsingConfig.getDefaultConfig();
+		final Iterator<SupertaggedSentence> iter = data.iterator();
+		new OrderedParallelProcessor<SupertaggedSentence, PerceptronChart>() {
+			@Override
+			protected SupertaggedSentence nextInput() {
+				return iter.hasNext() ? iter.next() : null;
+			}
+
+			@Override
+			protected PerceptronChart process(SupertaggedSentence taggedSen) throws Exception {
+				return coarseParse(taggedSen, grammar, c2);
+			}
+
+			@Override
+			protected void consume(SupertaggedSentence taggedSen, PerceptronChart chart) {
+				if(chart != null) {
+					mem.addObject(chart);
+				}
+			}
+		}.run(workers, window);
+	}
+
+	/**
+	 * Returns the (cleaned) coarse chart for a multitagged sentence, an empty chart if the sentence
+	 * has no coarse parse, or null if the grammar doesn't license the gold parse.
+	 */
+	private static PerceptronChart coarseParse(SupertaggedSentence taggedSen, Grammar grammar,
+			SupervisedParsingConfig c2) throws Exception {
+		PerceptronChart chart = new PerceptronChart(taggedSen.sentence(), grammar);
+		SupertagAssignment tags = taggedSen.tags();
+		if(grammar.licenses(taggedSen.sentence())) {
+			chart.coarseParseWithSupertags(grammar, c2, tags, false);
+			if(chart.successfulCoarseParse()) {
+				System.out.println("Parses: "+chart.coarseRoot().parses);
+				chart.cleanChart();    		
+			}
+			else {
+				System.out.println("Coarse parse failure for sentence: "+taggedSen.sentence()+"\n"+taggedSen.sentence().getCCGbankParse()+"\n");
+				chart = new PerceptronChart(taggedSen.sentence(), grammar);
+			}
+			return chart;
+		}
+		System.out.println("Unlicensed sentence: "+taggedSen.sentence()+"\n"+taggedSen.sentence().getCCGbankParse()+"\n");
+		return null;
+	}
+
 }
@@ -0,0 +1,32 @@
+package util;
+
+import perceptron.parser.PerceptronParser;
+
+/**
+ * Given two arguments (a saved perceptron parser in the text format and an output file),
+ * writes the parser's features and weights in the binary model format, which
+ * PerceptronParser.load/loadBinary memory-map instead of parsing.
+ *
+ * @author ramusa2
+ *
+ */
+public class ConvertParserModelToBinary {
+
+	public static void main(String[] args) {
+		if(args.length < 2) {
+			System.out.println("Please provide two arguments, a saved parser (text format) to read and a target file to write the binary model to.");
+			return;
+		}
+		String inputFile = args[0];
+		String outputFile = args[1];
+		System.out.println("Reading from parser file: "+inputFile);
+		System.out.println("Writing binary model to: "+outputFile);
+		long start = System.currentTimeMillis();
+		if(PerceptronParser.convertTextModelToBinary(inputFile, outputFile)) {
+			System.out.println("Done ("+(System.currentTimeMillis()-start)/1000.0+" seconds).");
+		}
+		else {
+			System.out.println("Conversion failed.");
+		}
+	}
+}
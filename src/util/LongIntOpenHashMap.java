@@ -0,0 +1,146 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A primitive hash map from non-negative long keys to int values, using open addressing
+ * with linear probing (no boxing, and no allocation on lookup).
+ *
+ * The map is not synchronized: concurrent reads are safe only if no thread is writing.
+ *
+ * @author ramusa2
+ *
+ */
+public class LongIntOpenHashMap {
+
+	/** Marks an empty slot (keys must be non-negative) **/
+	private static final long EMPTY = -1L;
+
+	/** Value returned by get() for a missing key **/
+	public static final int MISSING = -1;
+
+	/** Maximum fraction of slots in use before the table is resized **/
+	private static final double LOAD_FACTOR = 0.5;
+
+	private long[] keys;
+
+	private int[] values;
+
+	private int mask;
+
+	private int size;
+
+	private int resizeThreshold;
+
+	public LongIntOpenHashMap() {
+		this(1024);
+	}
+
+	public LongIntOpenHashMap(int expectedSize) {
+		this.allocate(tableSizeFor(expectedSize));
+	}
+
+	/**
+	 * Returns the value mapped to key, or MISSING if key is not in the map.
+	 */
+	public final int get(long key) {
+		final long[] k = this.keys;
+		int slot = mix(key) & this.mask;
+		while(true) {
+			long cur = k[slot];
+			if(cur == key) {
+				return this.values[slot];
+			}
+			if(cur == EMPTY) {
+				return MISSING;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	/**
+	 * Maps key to value, replacing any existing value.
+	 */
+	public void put(long key, int value) {
+		if(key < 0) {
+			throw new IllegalArgumentException("Keys must be non-negative: "+key);
+		}
+		int slot = mix(key) & this.mask;
+		while(true) {
+			long cur = this.keys[slot];
+			if(cur == key) {
+				this.values[slot] = value;
+				return;
+			}
+			if(cur == EMPTY) {
+				this.keys[slot] = key;
+				this.values[slot] = value;
+				this.size++;
+				if(this.size > this.resizeThreshold) {
+					this.resize(this.keys.length*2);
+				}
+				return;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	public final boolean containsKey(long key) {
+		return this.get(key) != MISSING;
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	public void clear() {
+		Arrays.fill(this.keys, EMPTY);
+		this.size = 0;
+	}
+
+	private void resize(int newCapacity) {
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.allocate(newCapacity);
+		for(int i=0; i<oldKeys.length; i++) {
+			if(oldKeys[i] != EMPTY) {
+				int slot = mix(oldKeys[i]) & this.mask;
+				while(this.keys[slot] != EMPTY) {
+					slot = (slot + 1) & this.mask;
+				}
+				this.keys[slot] = oldKeys[i];
+				this.values[slot] = oldValues[i];
+				this.size++;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		Arrays.fill(this.keys, EMPTY);
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+		this.size = 0;
+		this.resizeThreshold = (int) (capacity*LOAD_FACTOR);
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int capacity = 16;
+		while(capacity*LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3 (spreads packed keys across the table).
+	 */
+	private static int mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb93fe53ec34bL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
@@ -0,0 +1,98 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The OrderedParallelProcessor class processes a stream of inputs on a shared pool of worker
+ * threads, and hands the outputs to consume() (on the calling thread) in input order. At most
+ * window inputs are in flight at any time, so memory use is bounded regardless of stream length.
+ *
+ * Subclasses define where the inputs come from (nextInput), the work done per input (process,
+ * which must be thread-safe), and what happens to each output (consume).
+ *
+ * @author ramusa2
+ *
+ * @param <I>	input type
+ * @param <O>	output type
+ */
+public abstract class OrderedParallelProcessor<I, O> {
+
+	/**
+	 * Returns the next input to process, or null when there are no more inputs
+	 * (only called from the thread that calls run).
+	 */
+	protected abstract I nextInput();
+
+	/**
+	 * Processes a single input (called concurrently on the worker threads).
+	 */
+	protected abstract O process(I input) throws Exception;
+
+	/**
+	 * Receives the output for an input, in input order (only called from the thread that calls run);
+	 * output is whatever process returned (inputs whose processing threw are never consumed).
+	 */
+	protected abstract void consume(I input, O output);
+
+	/**
+	 * Processes every input on the worker pool, and returns the number of inputs processed.
+	 * If processing an input throws, the inputs still in flight are cancelled and a 
+	 * RuntimeException (wrapping the failure) is thrown; outputs before it have been consumed.
+	 *
+	 * @param workers	executor that runs the process calls
+	 * @param window	maximum number of inputs in flight at once
+	 */
+	public int run(ExecutorService workers, int window) {
+		window = Math.max(window, 1);
+		ArrayDeque<I> pendingInputs = new ArrayDeque<I>(window);
+		ArrayDeque<Future<O>> pendingOutputs = new ArrayDeque<Future<O>>(window);
+		int processed = 0;
+		I input = this.nextInput();
+		while(input != null || !pendingInputs.isEmpty()) {
+			while(input != null && pendingInputs.size() < window) {
+				pendingInputs.add(input);
+				pendingOutputs.add(workers.submit(new ProcessCallable(input)));
+				input = this.nextInput();
+			}
+			I head = pendingInputs.poll();
+			O output;
+			try {
+				output = pendingOutputs.poll().get();
+			}
+			catch(Exception e) {
+				for(Future<O> pending : pendingOutputs) {
+					pending.cancel(true);
+				}
+				if(e instanceof InterruptedException) {
+					Thread.currentThread().interrupt();
+				}
+				Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+				throw new RuntimeException("Failed to process input: "+head, cause);
+			}
+			this.consume(head, output);
+			processed++;
+		}
+		return processed;
+	}
+
+	/**
+	 * Task wrapper for processing a single input on a worker thread.
+	 */
+	private class ProcessCallable implements Callable<O> {
+
+		private final I input;
+
+		ProcessCallable(I in) {
+			this.input = in;
+		}
+
+		@Override
+		public O call() throws Exception {
+			return process(this.input);
+		}
+	}
+}
@@ -33,7 +33,12 @@ public class SupertaggedSentenceDataGenerator {
 		else {
 			sens = CCGbankReader.getSentencesFromAutoFile(args[1]);
 			SupertaggedTrainingData predata = new SupertaggedTrainingData(sens, maxLength, beta);
-			predata.save(args[2]);
+			if(args[2].endsWith(".bin")) {
+				predata.saveBinary(args[2], null);
+			}
+			else {
+				predata.save(args[2]);
+			}
 		}
 	}
 }
@@ -19,11 +19,15 @@ import org.nustaq.serialization.FSTConfiguration;
 import org.nustaq.serialization.FSTObjectInput;
 import org.nustaq.serialization.FSTObjectOutput;
 
+import perceptron.parser.PerceptronChart;
+
 public class FSTSerializerAndCompressor<T> {
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	static final ThreadLocal<FSTConfiguration> conf = new ThreadLocal() {
 		public FSTConfiguration initialValue() {
-			return FSTConfiguration.createDefaultConfiguration();
+			FSTConfiguration configuration = FSTConfiguration.createDefaultConfiguration();
+			configuration.registerSerializer(PerceptronChart.class, new PerceptronChartFSTSerializer(), false);
+			return configuration;
 		}};
 
 
@@ -91,7 +95,7 @@ public class FSTSerializerAndCompressor<T> {
 				}
 			}
 
-			public synchronized T decompressDeserializeLZ4(byte[] compressed, int decompressedLength) {
+			public T decompressDeserializeLZ4(byte[] compressed, int decompressedLength) {
 				return deserialize(decompressLZ4(compressed, decompressedLength));
 			}
 
@@ -152,11 +156,11 @@ public class FSTSerializerAndCompressor<T> {
 				}
 			}
 
-			public synchronized T deserializeAndDecompress(File file) {
+			public T deserializeAndDecompress(File file) {
 				return this.deserializeAndDecompress(file, CompressionType.NONE);
 			}
 
-			public synchronized T deserializeAndDecompress(File file, CompressionType compType) {
+			public T deserializeAndDecompress(File file, CompressionType compType) {
 				try {
 					T object = null;
 					BufferedInputStream BIS = new BufferedInputStream(new FileInputStream(file));
@@ -23,6 +23,7 @@ public class FastSerializationUtil {
 	
 	static {
 		  conf.registerSerializer(Sentence.class, new SentenceFSTSerializer(), false);
+		  conf.registerSerializer(PerceptronChart.class, new PerceptronChartFSTSerializer(), false);
 
 			conf.registerClass(LexicalToken.class, POS.class);
 		//conf.registerClass(Sentence.class, LexicalToken.class, POS.class);
@@ -61,27 +62,6 @@ public class FastSerializationUtil {
 
 	public static PerceptronChart readPerceptronChart(InputStream stream) throws IOException, ClassNotFoundException
 	{
-		Sentence sen = null;
-		try {
-			sen = (Sentence) in.readObject(Sentence.class);
-			//sen = (Sentence) in.readObject(Sentence.class);
-
-			/*
-			LexicalToken[] sentenceLT = (LexicalToken[]) in.readObject();
-			LexicalToken[]sentence_wP = (LexicalToken[]) in.readObject(); 
-			int id = in.readInt();
-			String autoString = (String) in.readObject();
-			String pargString = (String) in.readObject();
-			sen = new Sentence();
-			*/
-			//stream.close();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		return new PerceptronChart(sen, null);
-		/*
-		FSTObjectInput in = conf.getObjectInput(stream);
 		PerceptronChart result = null;
 		try {
 			result = (PerceptronChart) in.readObject(PerceptronChart.class);
@@ -89,18 +69,12 @@ public class FastSerializationUtil {
 			e.printStackTrace();
 		}
 		return result;
-		*/
 	}
 
 	public static void writePerceptronChart( OutputStream stream, PerceptronChart toWrite) throws IOException 
 	{
-		out.writeObject(toWrite.getSentence(), Sentence.class);
-		out.flush();
-		/*
-		FSTObjectOutput out = conf.getObjectOutput(stream);
 		out.writeObject(toWrite, PerceptronChart.class);
 		out.flush();
-		*/
 	}
 
 	public static int readInt(InputStream stream) throws IOException
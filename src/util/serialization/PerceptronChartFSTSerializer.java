@@ -0,0 +1,50 @@
+package util.serialization;
+
+import java.io.IOException;
+
+import org.nustaq.serialization.FSTBasicObjectSerializer;
+import org.nustaq.serialization.FSTClazzInfo;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
+import org.nustaq.serialization.util.FSTUtil;
+
+import perceptron.parser.PerceptronChart;
+
+/**
+ * FST serializer for coarse charts: writes a {@link PerceptronChart} in the compact format of 
+ * Chart.writeCompact (cells as flat arrays of items and backpointer indices), instead of the
+ * object graph of nested cells, items, backpointers and hash maps written by writeExternal.
+ * 
+ * @author ramusa2
+ *
+ */
+public class PerceptronChartFSTSerializer extends FSTBasicObjectSerializer {
+
+	@Override
+	public void writeObject(FSTObjectOutput out, Object toWrite, FSTClazzInfo clzInfo, 
+			FSTClazzInfo.FSTFieldInfo referencedBy, int streamPosition) throws IOException {
+		((PerceptronChart) toWrite).writeCompact(out);
+	}
+
+	/**
+	 * The chart is fully read by instantiate.
+	 */
+	@Override
+	public void readObject(FSTObjectInput in, Object toRead, FSTClazzInfo clzInfo, 
+			FSTClazzInfo.FSTFieldInfo referencedBy) {}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Object instantiate(Class objectClass, FSTObjectInput in, FSTClazzInfo serializationInfo, 
+			FSTClazzInfo.FSTFieldInfo referencee, int streamPosition) throws IOException, 
+			ClassNotFoundException, InstantiationException, IllegalAccessException {
+		try {
+			PerceptronChart chart = new PerceptronChart();
+			chart.readCompact(in);
+			return chart;
+		} catch (Throwable th) {
+			FSTUtil.<RuntimeException>rethrow(th);
+		}
+		return null;
+	}
+}
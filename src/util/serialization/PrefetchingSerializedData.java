@@ -0,0 +1,177 @@
+package util.serialization;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The PrefetchingSerializedData class wraps another {@link SerializedData} collection and decodes
+ * (reads, decompresses and deserializes) the objects ahead of the iterator on a small pool of
+ * background threads, so that a consumer calling next() in a loop rarely waits on decoding.
+ *
+ * Up to lookAhead objects are decoded (or queued for decoding) ahead of the last object returned,
+ * using the wrapped collection's random access (get); objects are still returned in order.
+ * All other operations are delegated to the wrapped collection. If an object cannot be decoded,
+ * next throws a RuntimeException (rather than returning null, which would end the iteration early).
+ *
+ * @author ramusa2
+ *
+ * @param <T>	type of the stored objects
+ */
+public class PrefetchingSerializedData<T> extends SerializedData<T> {
+
+	/** Wrapped collection **/
+	private final SerializedData<T> source;
+
+	/** Maximum number of objects decoded ahead of the iterator **/
+	private final int lookAhead;
+
+	/** Number of decoding threads **/
+	private final int numThreads;
+
+	/** Decoding threads (created on first use, shut down by close) **/
+	private ExecutorService decoders;
+
+	/** Pending decodes, in iteration order **/
+	private final ArrayDeque<Future<T>> pending;
+
+	/** Id of the next object to submit for decoding **/
+	private int nextToSubmit;
+
+	/**
+	 * Wraps a collection.
+	 *
+	 * @param data			collection to read from
+	 * @param lookAheadDepth	maximum number of objects decoded ahead of the iterator
+	 * @param decodeThreads	number of background decoding threads
+	 */
+	public PrefetchingSerializedData(SerializedData<T> data, int lookAheadDepth, int decodeThreads) {
+		super();
+		this.source = data;
+		this.lookAhead = Math.max(1, lookAheadDepth);
+		this.numThreads = Math.max(1, decodeThreads);
+		this.pending = new ArrayDeque<Future<T>>(this.lookAhead);
+		this.nextToSubmit = 0;
+	}
+
+	/**
+	 * Returns the wrapped collection, unless prefetching is disabled (decodeThreads < 1),
+	 * in which case the collection is returned as is.
+	 */
+	public static <T> SerializedData<T> wrap(SerializedData<T> data, int lookAheadDepth, int decodeThreads) {
+		if(decodeThreads < 1 || lookAheadDepth < 1) {
+			return data;
+		}
+		return new PrefetchingSerializedData<T>(data, lookAheadDepth, decodeThreads);
+	}
+
+	@Override
+	public synchronized T next() {
+		this.fill();
+		Future<T> head = this.pending.poll();
+		if(head == null) {
+			return null;
+		}
+		// Keep the decoders busy while the caller works on this object
+		this.fill();
+		this.current.incrementAndGet();
+		try {
+			return head.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for prefetched object", e);
+		}
+		catch(ExecutionException e) {
+			// Callers treat null as the end of the data, so a decode error must not return null
+			throw new RuntimeException("Failed to decode prefetched object", e.getCause());
+		}
+	}
+
+	/**
+	 * Submits decodes until lookAhead objects are pending (or the collection is exhausted).
+	 */
+	private void fill() {
+		if(this.decoders == null) {
+			this.decoders = Executors.newFixedThreadPool(this.numThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "serialized-data-prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		int size = this.source.size();
+		while(this.pending.size() < this.lookAhead && this.nextToSubmit < size) {
+			final int id = this.nextToSubmit++;
+			this.pending.add(this.decoders.submit(new Callable<T>() {
+				@Override
+				public T call() {
+					T obj = source.get(id);
+					if(obj == null) {
+						throw new IllegalStateException("Failed to read object "+id);
+					}
+					return obj;
+				}
+			}));
+		}
+	}
+
+	@Override
+	public T get(int id) {
+		return this.source.get(id);
+	}
+
+	@Override
+	public void addObject(T obj) {
+		this.source.addObject(obj);
+	}
+
+	@Override
+	public int size() {
+		return this.source.size();
+	}
+
+	@Override
+	public void open() {
+		this.source.open();
+	}
+
+	/**
+	 * Discards any pending decodes and restarts iteration from the first object.
+	 */
+	@Override
+	public synchronized void reset() {
+		this.discardPending();
+		this.current.set(0);
+		this.source.reset();
+	}
+
+	/**
+	 * Resets the iterator, closes the wrapped collection and stops the decoding threads
+	 * (they are restarted if iteration continues).
+	 */
+	@Override
+	public synchronized void close() {
+		this.discardPending();
+		this.current.set(0);
+		if(this.decoders != null) {
+			this.decoders.shutdown();
+			this.decoders = null;
+		}
+		this.source.close();
+	}
+
+	private void discardPending() {
+		for(Future<T> future : this.pending) {
+			future.cancel(false);
+		}
+		this.pending.clear();
+		this.nextToSubmit = 0;
+	}
+}
@@ -21,19 +21,12 @@ public class SentenceFSTSerializer extends FSTBasicObjectSerializer {
     }
     
 
+    /**
+     * The sentence is fully read by instantiate (FST calls readObject on the instantiated object 
+     * afterwards, so reading here would consume the next object's data).
+     */
     @Override
-    public void readObject(FSTObjectInput in, Object toRead, FSTClazzInfo clzInfo, FSTClazzInfo.FSTFieldInfo referencedBy)
-    {
-    	try {
-    	Sentence sen = (Sentence) toRead;
-    	sen.setID(in.readInt());
-    	sen.setSentence((LexicalToken[]) in.readObjectInternal());
-    	sen.addCCGbankParse((String) in.readObjectInternal());
-    	}
-    	catch(Exception e) {
-    		e.printStackTrace();
-    	}
-    }
+    public void readObject(FSTObjectInput in, Object toRead, FSTClazzInfo clzInfo, FSTClazzInfo.FSTFieldInfo referencedBy) {}
 
     @SuppressWarnings({ "unused", "rawtypes" })
 	@Override
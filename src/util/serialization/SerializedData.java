@@ -16,6 +16,12 @@ public abstract class SerializedData<T> {
 	
 	public abstract T next();
 	
+	/**
+	 * Returns the object with the specified id (its position in insertion order), or null if the
+	 * id is out of range; does not move the iterator, and may be called from several threads at once.
+	 */
+	public abstract T get(int id);
+	
 	public abstract void open();
 	
 	public abstract void reset();
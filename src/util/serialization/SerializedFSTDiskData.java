@@ -76,8 +76,7 @@ public class SerializedFSTDiskData<T> extends SerializedData<T> {
 
 
 
-	// TODO: write a second-threaded version of next() that uses Future<T>
-	//		 to cache/precompute the next de-serialization
+	// See PrefetchingSerializedData for a version of next() that decodes ahead on other threads
 
 	@Override
 	public T next() {
@@ -85,7 +84,19 @@ public class SerializedFSTDiskData<T> extends SerializedData<T> {
 		if(id >= total.get()) {
 			return null;
 		}
-		return this.serializer.deserializeAndDecompress(this.dataFiles.get(id), this.compType);
+		return this.get(id);
+	}
+
+	@Override
+	public T get(int id) {
+		File file;
+		synchronized(this) {
+			if(id < 0 || id >= total.get()) {
+				return null;
+			}
+			file = this.dataFiles.get(id);
+		}
+		return this.serializer.deserializeAndDecompress(file, this.compType);
 	}
 	
 	/**
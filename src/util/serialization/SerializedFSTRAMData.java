@@ -48,21 +48,29 @@ public class SerializedFSTRAMData<T> extends SerializedData<T> {
 		this.total.incrementAndGet();
 	}
 
-	// TODO: write a second-threaded version of next() that uses Future<T>
-	//		 to cache/precompute the next de-serialization
+	// See PrefetchingSerializedData for a version of next() that decodes ahead on other threads
 	
 	@Override
-	public synchronized T next() {
+	public T next() {
 		int id = this.current.getAndIncrement();
 		if(id >= total.get()) {
 			return null;
 		}
+		return this.get(id);
+	}
+
+	@Override
+	public T get(int id) {
 		byte[] arr = this.data.get(id);
+		if(arr == null) {
+			return null;
+		}
 		switch(compType) {
 			case NONE:
 				return this.serializer.deserialize(arr);
 			case LZ4:
-				return this.serializer.decompressDeserializeLZ4(arr, this.decompressedLengths.get(id));
+				return this.serializer.deserialize(
+						this.serializer.decompressLZ4(arr, this.decompressedLengths.get(id)));
 			case GZIP:
 				return this.serializer.decompressDeserializeGZIP(arr);
 		}
@@ -0,0 +1,563 @@
+package util.serialization;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * The SerializedSegmentedData class stores serialized objects in a small number of large,
+ * append-only segment files instead of one file per object (as SerializedFSTDiskData does).
+ *
+ * Each object is written as a single record: its stored (possibly compressed) length, its serialized
+ * length, and the stored bytes. An index file holds the segment, offset and lengths of each record
+ * in insertion order, which gives random access by id (see get) as well as sequential iteration.
+ * A new segment is started once the current one reaches the segment size limit.
+ *
+ * Several containers may share a directory if they use different file prefixes (e.g. one per fold);
+ * opening an existing directory without a prefix concatenates all of them, in prefix order.
+ *
+ * Reads use positional channel reads, so get may be called concurrently with other reads;
+ * serialization and compression in addObject also happen outside the lock.
+ *
+ * @author ramusa2
+ *
+ * @param <T>	type of the stored objects
+ */
+public class SerializedSegmentedData<T> extends SerializedData<T> {
+
+	/** Identifies an index file (and its format version) **/
+	private static final int INDEX_MAGIC = 0x53454758;
+	private static final int INDEX_VERSION = 1;
+
+	/** Name suffixes of index and segment files **/
+	private static final String INDEX_SUFFIX = "segments.idx";
+	private static final String SEGMENT_NAME = "segment_";
+
+	/** Bytes per record header (stored length, serialized length) **/
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	/** Default maximum segment size (a single large record may exceed it) **/
+	public static final long DEFAULT_SEGMENT_BYTES = 256L*1024L*1024L;
+
+	private final File dir;
+
+	private final CompressionType compType;
+
+	private final FSTSerializerAndCompressor<T> serializer;
+
+	private final long maxSegmentBytes;
+
+	/** Prefix of the container being written (null if opened read-only) **/
+	private final String writePrefix;
+
+	/** All segment files (of every container in this collection) **/
+	private final ArrayList<File> segmentFiles;
+
+	/** Open read channels, indexed like segmentFiles (opened lazily) **/
+	private FileChannel[] readChannels;
+
+	/** Record locations, indexed by id **/
+	private int[] recordSegment;
+	private long[] recordOffset;
+	private int[] recordStoredLength;
+	private int[] recordSerializedLength;
+
+	/** Writer state **/
+	private int writeSegment;
+	private FileChannel writeChannel;
+	private DataOutputStream indexOut;
+
+	private SerializedSegmentedData(File dataDirectory, CompressionType compressionType,
+			String filePrefix, long segmentBytes) {
+		super();
+		this.dir = dataDirectory;
+		this.dir.mkdirs();
+		this.compType = compressionType;
+		this.serializer = new FSTSerializerAndCompressor<T>();
+		this.writePrefix = filePrefix;
+		this.maxSegmentBytes = segmentBytes;
+		this.segmentFiles = new ArrayList<File>();
+		this.readChannels = new FileChannel[0];
+		this.recordSegment = new int[64];
+		this.recordOffset = new long[64];
+		this.recordStoredLength = new int[64];
+		this.recordSerializedLength = new int[64];
+		this.writeSegment = -1;
+	}
+
+	/**
+	 * Creates a new, empty container in the specified directory (replacing any segments and index
+	 * previously written there with the same prefix).
+	 */
+	public static SerializedSegmentedData<?> createNew(File dataDirectory, CompressionType compressionType) {
+		return createNew(dataDirectory, compressionType, "");
+	}
+
+	public static SerializedSegmentedData<?> createNew(File dataDirectory, CompressionType compressionType,
+			String filePrefix) {
+		return createNew(dataDirectory, compressionType, filePrefix, DEFAULT_SEGMENT_BYTES);
+	}
+
+	public static SerializedSegmentedData<?> createNew(File dataDirectory, CompressionType compressionType,
+			String filePrefix, long segmentBytes) {
+		SerializedSegmentedData<Object> data =
+				new SerializedSegmentedData<Object>(dataDirectory, compressionType, filePrefix, segmentBytes);
+		for(File file : data.containerFiles(filePrefix)) {
+			file.delete();
+		}
+		return data;
+	}
+
+	/**
+	 * Opens every container in the specified directory (in prefix order) for reading.
+	 */
+	public static SerializedSegmentedData<?> useExisting(File dataDirectory, CompressionType compressionType) {
+		SerializedSegmentedData<Object> data =
+				new SerializedSegmentedData<Object>(dataDirectory, compressionType, null, DEFAULT_SEGMENT_BYTES);
+		for(String filePrefix : containerPrefixes(dataDirectory, extension(compressionType))) {
+			data.loadContainer(filePrefix);
+		}
+		return data;
+	}
+
+	/**
+	 * Opens the container with the specified prefix for reading.
+	 */
+	public static SerializedSegmentedData<?> useExisting(File dataDirectory, CompressionType compressionType,
+			String filePrefix) {
+		SerializedSegmentedData<Object> data =
+				new SerializedSegmentedData<Object>(dataDirectory, compressionType, null, DEFAULT_SEGMENT_BYTES);
+		data.loadContainer(filePrefix);
+		return data;
+	}
+
+	/**
+	 * Opens the objects saved in a directory, as a segmented collection if the directory has an index,
+	 * or else as one file per object (SerializedFSTDiskData, used by earlier versions).
+	 */
+	public static SerializedData<?> openExisting(File dataDirectory, CompressionType compressionType) {
+		if(hasSegments(dataDirectory, compressionType)) {
+			return useExisting(dataDirectory, compressionType);
+		}
+		return SerializedFSTDiskData.useExisting(dataDirectory, compressionType);
+	}
+
+	/**
+	 * Returns true iff the directory holds at least one segmented container.
+	 */
+	public static boolean hasSegments(File dataDirectory, CompressionType compressionType) {
+		return !containerPrefixes(dataDirectory, extension(compressionType)).isEmpty();
+	}
+
+	/**
+	 * Returns the (sorted) prefixes of the containers in a directory: every prefix with an index 
+	 * or a first segment (an index may be missing if writing was interrupted).
+	 */
+	private static TreeSet<String> containerPrefixes(File dataDirectory, String segmentExtension) {
+		TreeSet<String> prefixes = new TreeSet<String>();
+		String firstSegment = SEGMENT_NAME+String.format("%05d", 0)+segmentExtension;
+		String[] names = dataDirectory.list();
+		if(names != null) {
+			for(String name : names) {
+				if(name.endsWith(INDEX_SUFFIX)) {
+					prefixes.add(name.substring(0, name.length()-INDEX_SUFFIX.length()));
+				}
+				else if(name.endsWith(firstSegment)) {
+					prefixes.add(name.substring(0, name.length()-firstSegment.length()));
+				}
+			}
+		}
+		return prefixes;
+	}
+
+	@Override
+	public void addObject(T obj) {
+		byte[] serialized = this.serializer.serialize(obj);
+		byte[] stored;
+		switch(this.compType) {
+		case LZ4:
+			stored = this.serializer.compressLZ4(serialized);
+			break;
+		case GZIP:
+			stored = this.serializer.compressGZIP(serialized);
+			break;
+		default:
+			stored = serialized;
+		}
+		this.appendRecord(stored, serialized.length);
+	}
+
+	/**
+	 * Appends a record to the current segment (starting a new one if necessary) and to the index.
+	 */
+	private synchronized void appendRecord(byte[] stored, int serializedLength) {
+		if(this.writePrefix == null) {
+			throw new IllegalStateException("Segmented data in "+this.dir.getPath()+" was opened read-only");
+		}
+		try {
+			if(this.writeChannel == null) {
+				this.openWriter();
+			}
+			if(this.writeChannel.size() > 0
+					&& this.writeChannel.size()+RECORD_HEADER_BYTES+stored.length > this.maxSegmentBytes) {
+				this.startSegment();
+			}
+			long offset = this.writeChannel.size();
+			ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES+stored.length);
+			buffer.putInt(stored.length);
+			buffer.putInt(serializedLength);
+			buffer.put(stored);
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				this.writeChannel.write(buffer, offset+buffer.position());
+			}
+			this.indexOut.writeInt(this.writeSegment);
+			this.indexOut.writeLong(offset);
+			this.indexOut.writeInt(stored.length);
+			this.indexOut.writeInt(serializedLength);
+			this.indexOut.flush();
+			this.addLocation(this.writeSegment, offset, stored.length, serializedLength);
+		}
+		catch(IOException e) {
+			System.out.println("Failed to append object to segment in "+this.dir.getPath());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Opens the index for appending, and continues the last segment (after close) or starts the first.
+	 * A writer's segments are the only ones in its collection, so local and global segment numbers agree.
+	 */
+	private void openWriter() throws IOException {
+		File indexFile = new File(this.dir, this.writePrefix+INDEX_SUFFIX);
+		boolean newIndex = !indexFile.exists() || indexFile.length() == 0;
+		this.indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+		if(newIndex) {
+			this.indexOut.writeInt(INDEX_MAGIC);
+			this.indexOut.writeInt(INDEX_VERSION);
+		}
+		if(this.writeSegment >= 0) {
+			this.writeChannel = new RandomAccessFile(this.segmentFiles.get(this.writeSegment), "rw").getChannel();
+		}
+		else {
+			this.startSegment();
+		}
+	}
+
+	/**
+	 * Closes the current segment (if any) and starts the next one.
+	 */
+	private void startSegment() throws IOException {
+		if(this.writeChannel != null) {
+			this.writeChannel.close();
+		}
+		this.writeSegment = this.segmentFiles.size();
+		File segment = this.segmentFile(this.writePrefix, this.writeSegment);
+		this.segmentFiles.add(segment);
+		this.writeChannel = new RandomAccessFile(segment, "rw").getChannel();
+		this.writeChannel.truncate(0);
+	}
+
+	private File segmentFile(String filePrefix, int segment) {
+		return new File(this.dir, filePrefix+SEGMENT_NAME+String.format("%05d", segment)+this.extension());
+	}
+
+	/**
+	 * Returns the index and segment files of the container with the specified prefix.
+	 */
+	private ArrayList<File> containerFiles(String filePrefix) {
+		ArrayList<File> files = new ArrayList<File>();
+		File[] children = this.dir.listFiles();
+		if(children != null) {
+			for(File file : children) {
+				String name = file.getName();
+				if(name.equals(filePrefix+INDEX_SUFFIX)
+						|| (name.startsWith(filePrefix+SEGMENT_NAME) && name.endsWith(this.extension()))) {
+					files.add(file);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Reads a container's index (rebuilding it from the segments if it is missing or damaged)
+	 * and appends its records to this collection.
+	 */
+	private void loadContainer(String filePrefix) {
+		int firstSegment = this.segmentFiles.size();
+		int numSegments = 0;
+		while(this.segmentFile(filePrefix, numSegments).exists()) {
+			this.segmentFiles.add(this.segmentFile(filePrefix, numSegments));
+			numSegments++;
+		}
+		File indexFile = new File(this.dir, filePrefix+INDEX_SUFFIX);
+		int before = this.total.get();
+		if(!this.readIndex(indexFile, firstSegment, numSegments)) {
+			System.out.println("Rebuilding segment index for "+indexFile.getPath());
+			this.total.set(before);
+			this.scanSegments(firstSegment, numSegments);
+		}
+	}
+
+	/**
+	 * Adds the records listed in an index file; returns false if the index is unusable.
+	 */
+	private boolean readIndex(File indexFile, int firstSegment, int numSegments) {
+		if(!indexFile.exists()) {
+			return false;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if(in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+				return false;
+			}
+			while(true) {
+				int segment;
+				try {
+					segment = in.readInt();
+				}
+				catch(EOFException e) {
+					break;
+				}
+				long offset = in.readLong();
+				int storedLength = in.readInt();
+				int serializedLength = in.readInt();
+				if(segment < 0 || segment >= numSegments
+						|| offset+RECORD_HEADER_BYTES+storedLength > this.segmentFiles.get(firstSegment+segment).length()) {
+					// Record was not fully written
+					break;
+				}
+				this.addLocation(firstSegment+segment, offset, storedLength, serializedLength);
+			}
+			return true;
+		}
+		catch(EOFException e) {
+			// Truncated final entry
+			return true;
+		}
+		catch(IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the (complete) records found by walking the record headers of each segment.
+	 */
+	private void scanSegments(int firstSegment, int numSegments) {
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		for(int s=firstSegment; s<firstSegment+numSegments; s++) {
+			try {
+				FileChannel channel = this.getReadChannel(s);
+				long size = channel.size();
+				long offset = 0;
+				while(offset+RECORD_HEADER_BYTES <= size) {
+					header.clear();
+					readFully(channel, header, offset);
+					header.flip();
+					int storedLength = header.getInt();
+					int serializedLength = header.getInt();
+					if(storedLength < 0 || offset+RECORD_HEADER_BYTES+storedLength > size) {
+						break;
+					}
+					this.addLocation(s, offset, storedLength, serializedLength);
+					offset += RECORD_HEADER_BYTES+storedLength;
+				}
+			}
+			catch(IOException e) {
+				System.out.println("Failed to scan segment "+this.segmentFiles.get(s).getPath());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void addLocation(int segment, long offset, int storedLength, int serializedLength) {
+		int id = this.total.get();
+		if(id == this.recordOffset.length) {
+			int capacity = 2*id;
+			this.recordSegment = Arrays.copyOf(this.recordSegment, capacity);
+			this.recordOffset = Arrays.copyOf(this.recordOffset, capacity);
+			this.recordStoredLength = Arrays.copyOf(this.recordStoredLength, capacity);
+			this.recordSerializedLength = Arrays.copyOf(this.recordSerializedLength, capacity);
+		}
+		this.recordSegment[id] = segment;
+		this.recordOffset[id] = offset;
+		this.recordStoredLength[id] = storedLength;
+		this.recordSerializedLength[id] = serializedLength;
+		this.total.incrementAndGet();
+	}
+
+	@Override
+	public T next() {
+		int id = this.current.getAndIncrement();
+		if(id >= this.total.get()) {
+			return null;
+		}
+		return this.get(id);
+	}
+
+	/**
+	 * Returns the object with the specified id (its position in insertion order), or null
+	 * if the id is out of range or the object could not be read.
+	 */
+	@Override
+	public T get(int id) {
+		byte[] serialized = this.getSerializedBytes(id);
+		if(serialized == null) {
+			return null;
+		}
+		return this.serializer.deserialize(serialized);
+	}
+
+	/**
+	 * Returns the stored (possibly compressed) bytes of the object with the specified id.
+	 */
+	public byte[] getStoredBytes(int id) {
+		int segment;
+		long offset;
+		int storedLength;
+		synchronized(this) {
+			if(id < 0 || id >= this.total.get()) {
+				return null;
+			}
+			segment = this.recordSegment[id];
+			offset = this.recordOffset[id];
+			storedLength = this.recordStoredLength[id];
+		}
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(storedLength);
+			readFully(this.getReadChannel(segment), buffer, offset+RECORD_HEADER_BYTES);
+			return buffer.array();
+		}
+		catch(IOException e) {
+			System.out.println("Failed to read object "+id+" from "+this.dir.getPath());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the serialized length of the object with the specified id (for LZ4 decompression).
+	 */
+	public synchronized int getSerializedLength(int id) {
+		return this.recordSerializedLength[id];
+	}
+
+	/**
+	 * Returns the (decompressed) serialized bytes of the object with the specified id.
+	 */
+	private byte[] getSerializedBytes(int id) {
+		byte[] stored = this.getStoredBytes(id);
+		if(stored == null) {
+			return null;
+		}
+		switch(this.compType) {
+		case LZ4:
+			return this.serializer.decompressLZ4(stored, this.getSerializedLength(id));
+		case GZIP:
+			return this.serializer.decompressGZIP(stored);
+		default:
+			return stored;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position+buffer.position());
+			if(read < 0) {
+				throw new EOFException("Unexpected end of segment at "+(position+buffer.position()));
+			}
+		}
+	}
+
+	private synchronized FileChannel getReadChannel(int segment) throws IOException {
+		if(segment >= this.readChannels.length) {
+			this.readChannels = Arrays.copyOf(this.readChannels, this.segmentFiles.size());
+		}
+		if(this.readChannels[segment] == null) {
+			this.readChannels[segment] = new RandomAccessFile(this.segmentFiles.get(segment), "r").getChannel();
+		}
+		return this.readChannels[segment];
+	}
+
+	private String extension() {
+		return extension(this.compType);
+	}
+
+	private static String extension(CompressionType compressionType) {
+		switch(compressionType) {
+		case LZ4:
+			return ".seg.lz4";
+		case GZIP:
+			return ".seg.gz";
+		default:
+			return ".seg";
+		}
+	}
+
+	/**
+	 * Returns the {@link CompressionType} used to compress objects in this collection
+	 */
+	public CompressionType getCompressionType() {
+		return this.compType;
+	}
+
+	@Override
+	public void reset() {
+		this.current.set(0);
+	}
+
+	/**
+	 * Resets the iterator and closes all open files (they are reopened on demand).
+	 */
+	@Override
+	public synchronized void close() {
+		this.current.set(0);
+		try {
+			for(int s=0; s<this.readChannels.length; s++) {
+				if(this.readChannels[s] != null) {
+					this.readChannels[s].close();
+					this.readChannels[s] = null;
+				}
+			}
+			if(this.writeChannel != null) {
+				this.writeChannel.close();
+				this.writeChannel = null;
+			}
+			if(this.indexOut != null) {
+				this.indexOut.close();
+				this.indexOut = null;
+			}
+		}
+		catch(IOException e) {
+			System.out.println("Failed to close segments in "+this.dir.getPath());
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void open() {}
+}
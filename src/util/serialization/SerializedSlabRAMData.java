@@ -0,0 +1,267 @@
+package util.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The SerializedSlabRAMData class keeps a collection of serialized (and, by default, LZ4-compressed)
+ * objects in memory, packed into a few large direct (off-heap) buffers ("slabs") with an offset
+ * table, instead of one byte array per object as in SerializedFSTRAMData. The stored bytes are
+ * invisible to the garbage collector, so a large training set can stay in memory without GC
+ * pressure (the JVM's direct memory limit, -XX:MaxDirectMemorySize, must allow for it).
+ *
+ * Readers (get and next) take no locks: the offset table is published through the object count,
+ * and slab contents are only read with absolute operations. Writers are serialized, but
+ * serialization and compression happen outside the lock.
+ *
+ * @author ramusa2
+ *
+ * @param <T>	type of the stored objects
+ */
+public class SerializedSlabRAMData<T> extends SerializedData<T> {
+
+	/** Default slab size (a single larger object gets a slab of its own) **/
+	public static final int DEFAULT_SLAB_BYTES = 64*1024*1024;
+
+	private final CompressionType compType;
+
+	private final FSTSerializerAndCompressor<T> serializer;
+
+	private final int slabBytes;
+
+	/** Record locations (replaced, never modified in place, when grown) **/
+	private volatile OffsetTable table;
+
+	/** Slabs (replaced when a slab is added) **/
+	private volatile ByteBuffer[] slabs;
+
+	/** Writer state: current slab and its fill level **/
+	private int writeSlab;
+	private int writeOffset;
+
+	/** Totals for reporting **/
+	private long storedBytes;
+	private long serializedBytes;
+
+	public SerializedSlabRAMData(CompressionType compressionType) {
+		this(compressionType, DEFAULT_SLAB_BYTES);
+	}
+
+	public SerializedSlabRAMData(CompressionType compressionType, int slabSize) {
+		super();
+		this.compType = compressionType;
+		this.serializer = new FSTSerializerAndCompressor<T>();
+		this.slabBytes = slabSize;
+		this.table = new OffsetTable(1024);
+		this.slabs = new ByteBuffer[0];
+		this.writeSlab = -1;
+		this.writeOffset = 0;
+	}
+
+	/**
+	 * Copies every object in a collection (in order) into a new slab store; the source collection
+	 * is reset afterwards.
+	 */
+	public static <T> SerializedSlabRAMData<T> copyOf(SerializedData<T> source, CompressionType compressionType) {
+		SerializedSlabRAMData<T> ram = new SerializedSlabRAMData<T>(compressionType);
+		source.reset();
+		T next;
+		while((next = source.next()) != null) {
+			ram.addObject(next);
+		}
+		source.reset();
+		return ram;
+	}
+
+	@Override
+	public void addObject(T obj) {
+		byte[] serialized = this.serializer.serialize(obj);
+		byte[] stored;
+		switch(this.compType) {
+		case LZ4:
+			stored = this.serializer.compressLZ4(serialized);
+			break;
+		case GZIP:
+			stored = this.serializer.compressGZIP(serialized);
+			break;
+		default:
+			stored = serialized;
+		}
+		this.append(stored, serialized.length);
+	}
+
+	/**
+	 * Copies a record into the current slab (allocating a new slab if it does not fit) and
+	 * publishes it.
+	 */
+	private synchronized void append(byte[] stored, int serializedLength) {
+		if(this.writeSlab < 0 || this.writeOffset + stored.length > this.slabs[this.writeSlab].capacity()) {
+			ByteBuffer[] grown = Arrays.copyOf(this.slabs, this.slabs.length+1);
+			grown[grown.length-1] = ByteBuffer.allocateDirect(Math.max(this.slabBytes, stored.length));
+			this.slabs = grown;
+			this.writeSlab = grown.length-1;
+			this.writeOffset = 0;
+		}
+		ByteBuffer slab = this.slabs[this.writeSlab].duplicate();
+		slab.position(this.writeOffset);
+		slab.put(stored);
+
+		int id = this.total.get();
+		OffsetTable current = this.table;
+		if(id == current.capacity()) {
+			current = current.grow();
+			this.table = current;
+		}
+		current.slab[id] = this.writeSlab;
+		current.offset[id] = this.writeOffset;
+		current.storedLength[id] = stored.length;
+		current.serializedLength[id] = serializedLength;
+		this.writeOffset += stored.length;
+		this.storedBytes += stored.length;
+		this.serializedBytes += serializedLength;
+		// Publishes the record (and the table and slab references written above) to readers
+		this.total.incrementAndGet();
+	}
+
+	@Override
+	public T next() {
+		int id = this.current.getAndIncrement();
+		if(id >= this.total.get()) {
+			return null;
+		}
+		return this.get(id);
+	}
+
+	@Override
+	public T get(int id) {
+		if(id < 0 || id >= this.total.get()) {
+			return null;
+		}
+		OffsetTable locations = this.table;
+		ByteBuffer slab = this.slabs[locations.slab[id]];
+		int offset = locations.offset[id];
+		int storedLength = locations.storedLength[id];
+		int serializedLength = locations.serializedLength[id];
+		byte[] serialized;
+		switch(this.compType) {
+		case LZ4:
+			serialized = new byte[serializedLength];
+			FSTSerializerAndCompressor.lz4.get().fastDecompressor().decompress(slab, offset,
+					ByteBuffer.wrap(serialized), 0, serializedLength);
+			break;
+		case GZIP:
+			serialized = this.serializer.decompressGZIP(copy(slab, offset, storedLength));
+			break;
+		default:
+			serialized = copy(slab, offset, storedLength);
+		}
+		return this.serializer.deserialize(serialized);
+	}
+
+	private static byte[] copy(ByteBuffer slab, int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer view = slab.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of bytes used by the stored (compressed) objects.
+	 */
+	public synchronized long bytesUsed() {
+		return this.storedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes allocated for slabs (bytesUsed plus unused slab space).
+	 */
+	public synchronized long bytesAllocated() {
+		long allocated = 0;
+		for(ByteBuffer slab : this.slabs) {
+			allocated += slab.capacity();
+		}
+		return allocated;
+	}
+
+	/**
+	 * Returns the total serialized (uncompressed) size of the stored objects, in bytes.
+	 */
+	public synchronized long serializedBytes() {
+		return this.serializedBytes;
+	}
+
+	/**
+	 * Returns the ratio of serialized to stored bytes (1.0 for an empty or uncompressed store).
+	 */
+	public synchronized double compressionRatio() {
+		if(this.storedBytes == 0) {
+			return 1.0;
+		}
+		return ((double) this.serializedBytes)/this.storedBytes;
+	}
+
+	/**
+	 * Returns a one-line summary of the store's memory use.
+	 */
+	public String statistics() {
+		double mb = 1024.0*1024.0;
+		return this.size()+" objects, "+String.format("%.1f", this.bytesUsed()/mb)+"MB stored in "
+				+this.slabs.length+" slabs ("+String.format("%.1f", this.bytesAllocated()/mb)+"MB allocated), "
+				+"compression ratio "+String.format("%.2f", this.compressionRatio());
+	}
+
+	/**
+	 * Returns the {@link CompressionType} used to compress objects in this store
+	 */
+	public CompressionType getCompressionType() {
+		return this.compType;
+	}
+
+	@Override
+	public void open() {}
+
+	@Override
+	public void reset() {
+		this.current.set(0);
+	}
+
+	@Override
+	public void close() {
+		this.current.set(0);
+	}
+
+	/**
+	 * Slab index, offset and lengths of each record; entries are written once, before the record
+	 * is published.
+	 */
+	private static final class OffsetTable {
+
+		final int[] slab;
+		final int[] offset;
+		final int[] storedLength;
+		final int[] serializedLength;
+
+		OffsetTable(int capacity) {
+			this.slab = new int[capacity];
+			this.offset = new int[capacity];
+			this.storedLength = new int[capacity];
+			this.serializedLength = new int[capacity];
+		}
+
+		private OffsetTable(OffsetTable old, int capacity) {
+			this.slab = Arrays.copyOf(old.slab, capacity);
+			this.offset = Arrays.copyOf(old.offset, capacity);
+			this.storedLength = Arrays.copyOf(old.storedLength, capacity);
+			this.serializedLength = Arrays.copyOf(old.serializedLength, capacity);
+		}
+
+		int capacity() {
+			return this.slab.length;
+		}
+
+		OffsetTable grow() {
+			return new OffsetTable(this, 2*this.capacity());
+		}
+	}
+}